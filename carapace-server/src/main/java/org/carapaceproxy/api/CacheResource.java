@@ -26,7 +26,10 @@ import javax.servlet.ServletContext;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
 import org.carapaceproxy.core.HttpProxyServer;
+import org.carapaceproxy.server.cache.CacheInvalidator.Invalidation;
 import org.carapaceproxy.server.cache.CacheStats;
 import org.carapaceproxy.server.cache.ContentsCache;
 
@@ -46,14 +49,50 @@ public class CacheResource {
     @GET
     public Map<String, Object> flush() {
         HttpProxyServer server = (HttpProxyServer) context.getAttribute("server");
-        ContentsCache cache = server.getCache();
-        int size = cache.clear();
+        Map<String, Object> invalidated = server.getCacheInvalidator().invalidate(Invalidation.flush());
         Map<String, Object> res = new HashMap<>();
         res.put("result", "ok");
-        res.put("cachesize", size);
+        res.put("cachesize", invalidated.get("purged"));
+        res.put("peers", invalidated.get("peers"));
         return res;
     }
 
+    @Path("/purge/host")
+    @GET
+    public Response purgeHost(@QueryParam("host") String host) {
+        if (host == null || host.isEmpty()) {
+            return Response.status(422).entity("ERROR: param 'host' required").build();
+        }
+        HttpProxyServer server = (HttpProxyServer) context.getAttribute("server");
+        return purgeResult(server.getCacheInvalidator().invalidate(Invalidation.host(host)));
+    }
+
+    @Path("/purge/prefix")
+    @GET
+    public Response purgePrefix(@QueryParam("host") String host, @QueryParam("prefix") String prefix) {
+        if (prefix == null || prefix.isEmpty()) {
+            return Response.status(422).entity("ERROR: param 'prefix' required").build();
+        }
+        HttpProxyServer server = (HttpProxyServer) context.getAttribute("server");
+        return purgeResult(server.getCacheInvalidator().invalidate(Invalidation.prefix(host == null || host.isEmpty() ? null : host, prefix)));
+    }
+
+    @Path("/purge/tag")
+    @GET
+    public Response purgeTag(@QueryParam("tag") String tag) {
+        if (tag == null || tag.isEmpty()) {
+            return Response.status(422).entity("ERROR: param 'tag' required").build();
+        }
+        HttpProxyServer server = (HttpProxyServer) context.getAttribute("server");
+        return purgeResult(server.getCacheInvalidator().invalidate(Invalidation.tag(tag)));
+    }
+
+    private static Response purgeResult(Map<String, Object> invalidated) {
+        Map<String, Object> res = new HashMap<>(invalidated);
+        res.put("result", "ok");
+        return Response.ok(res).build();
+    }
+
     @Path("/info")
     @GET
     public Map<String, Object> info() {
@@ -69,6 +108,8 @@ public class CacheResource {
         res.put("directMemoryUsed", stats.getDirectMemoryUsed());
         res.put("heapMemoryUsed", stats.getHeapMemoryUsed());
         res.put("totalMemoryUsed", stats.getTotalMemoryUsed());
+        res.put("diskcachesize", cache.getDiskCacheSize());
+        res.put("diskUsed", cache.getDiskCacheUsage());
         return res;
     }
     
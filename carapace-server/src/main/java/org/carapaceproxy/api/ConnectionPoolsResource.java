@@ -22,6 +22,7 @@ package org.carapaceproxy.api;
 import static java.util.stream.Collectors.groupingBy;
 import static java.util.stream.Collectors.summingInt;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import javax.servlet.ServletContext;
@@ -31,8 +32,10 @@ import javax.ws.rs.Produces;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.carapaceproxy.client.EndpointKey;
 import org.carapaceproxy.core.HttpProxyServer;
 import org.carapaceproxy.core.HttpProxyServer.ConnectionPoolStats;
+import org.carapaceproxy.server.config.BackendConfiguration;
 import org.carapaceproxy.server.config.ConnectionPoolConfiguration;
 
 /**
@@ -62,7 +65,11 @@ public class ConnectionPoolsResource {
         private int disposeTimeout;
         private boolean enabled;
         private int totalConnections;
-
+        private int minIdleConnections;
+        private int warmUpProgress; // % of the idle connections to keep open to the backends actually open
+        private String httpProtocol;
+        private int maxConcurrentStreams;
+        private int activeStreams;
     }
 
     @GET
@@ -71,14 +78,24 @@ public class ConnectionPoolsResource {
         Map<String, ConnectionPoolBean> res = new HashMap<>();
 
         Map<String, Integer> poolsStats = new HashMap<>();
+        Map<String, Integer> poolsStreams = new HashMap<>();
         Collection<Map<String, ConnectionPoolStats>> stats = server.getConnectionPoolsStats().values();
         if (stats != null) {
             poolsStats.putAll(stats.stream()
                     .flatMap(m -> m.entrySet().stream())
                     .collect(groupingBy(Map.Entry::getKey, summingInt(e -> e.getValue().getTotalConnections())))
             );
+            poolsStreams.putAll(stats.stream()
+                    .flatMap(m -> m.entrySet().stream())
+                    .collect(groupingBy(Map.Entry::getKey, summingInt(e -> e.getValue().getActiveStreams())))
+            );
         }
 
+        Map<EndpointKey, Map<String, ConnectionPoolStats>> endpointsStats = server.getConnectionPoolsStats();
+        Collection<BackendConfiguration> backends = server.getMapper() != null
+                ? server.getMapper().getBackends().values()
+                : Collections.emptyList();
+
         // custom pools
         server.getCurrentConfiguration().getConnectionPools().forEach(conf -> {
             ConnectionPoolBean bean = new ConnectionPoolBean(conf.getId(),
@@ -90,7 +107,12 @@ public class ConnectionPoolsResource {
                     conf.getIdleTimeout(),
                     conf.getDisposeTimeout(),
                     conf.isEnabled(),
-                    poolsStats.getOrDefault(conf.getId(), 0)
+                    poolsStats.getOrDefault(conf.getId(), 0),
+                    conf.getMinIdleConnections(),
+                    computeWarmUpProgress(conf, backends, endpointsStats),
+                    conf.getHttpProtocol(),
+                    conf.getMaxConcurrentStreams(),
+                    poolsStreams.getOrDefault(conf.getId(), 0)
             );
 
             res.put(conf.getId(), bean);
@@ -108,10 +130,37 @@ public class ConnectionPoolsResource {
                 defaultConnectionPool.getIdleTimeout(),
                 defaultConnectionPool.getDisposeTimeout(),
                 defaultConnectionPool.isEnabled(),
-                poolsStats.getOrDefault(defaultConnectionPool.getId(), 0)
+                poolsStats.getOrDefault(defaultConnectionPool.getId(), 0),
+                defaultConnectionPool.getMinIdleConnections(),
+                computeWarmUpProgress(defaultConnectionPool, backends, endpointsStats),
+                defaultConnectionPool.getHttpProtocol(),
+                defaultConnectionPool.getMaxConcurrentStreams(),
+                poolsStreams.getOrDefault(defaultConnectionPool.getId(), 0)
         ));
 
         return res;
     }
 
+    private static int computeWarmUpProgress(ConnectionPoolConfiguration conf, Collection<BackendConfiguration> backends,
+                                             Map<EndpointKey, Map<String, ConnectionPoolStats>> endpointsStats) {
+        int minIdleConnections = conf.getMinIdleConnections();
+        if (minIdleConnections <= 0 || backends.isEmpty()) {
+            return 100;
+        }
+        if (!conf.isEnabled()) {
+            return 0;
+        }
+        long warmedUp = 0;
+        for (BackendConfiguration backend : backends) {
+            ConnectionPoolStats stats = endpointsStats
+                    .getOrDefault(EndpointKey.make(backend.getHost(), backend.getPort()), Collections.emptyMap())
+                    .get(conf.getId());
+            if (stats != null) {
+                // connections in use count as warmed up too
+                warmedUp += Math.min(stats.getTotalConnections(), minIdleConnections);
+            }
+        }
+        return (int) (warmedUp * 100 / ((long) minIdleConnections * backends.size()));
+    }
+
 }
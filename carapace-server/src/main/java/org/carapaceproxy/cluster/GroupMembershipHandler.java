@@ -56,6 +56,42 @@ public interface GroupMembershipHandler {
      */
     void fireEvent(String eventId);
 
+    /**
+     * Publish a message on a queue of the group. Unlike events, messages are never coalesced: the peers watching the
+     * queue get every message, in order of publication, until it is deleted.
+     *
+     * @param queueId
+     * @param data JSON serializable data
+     * @return id of the message, to delete it
+     * @throws RuntimeException whether the message cannot be published
+     */
+    String publishMessage(String queueId, Map<String, Object> data);
+
+    /**
+     * Register a callback to be called for the messages published on a queue by the other peers from now on, see
+     * {@link EventCallback#eventFired(java.lang.String, java.util.Map)}.
+     *
+     * @param queueId
+     * @param callback
+     */
+    void watchMessages(String queueId, EventCallback callback);
+
+    /**
+     * Delete a message from a queue, e.g. once read by all the peers.
+     *
+     * @param queueId
+     * @param messageId as returned by {@link #publishMessage(java.lang.String, java.util.Map)}
+     */
+    void deleteMessage(String queueId, String messageId);
+
+    /**
+     * Delete the messages of a queue published more than some time ago, whoever published them.
+     *
+     * @param queueId
+     * @param retention ms
+     */
+    void deleteExpiredMessages(String queueId, long retention);
+
      /**
      * To execute code in mutual exclusion to other peers.
      *
@@ -112,7 +148,19 @@ public interface GroupMembershipHandler {
         void eventFired(String eventId);
 
         /**
-         * Called whenever ZK connection has been re-established.
+         * Called for every message of a watched queue, with the same constraints of
+         * {@link #eventFired(java.lang.String)}.
+         *
+         * @param queueId
+         * @param data data of the message
+         */
+        default void eventFired(String queueId, Map<String, Object> data) {
+            eventFired(queueId);
+        }
+
+        /**
+         * Called whenever ZK connection has been re-established. For queues, only whether the session has been lost in
+         * the meantime: messages could have been deleted before being read.
          */
         void reconnected();
     }
@@ -49,6 +49,25 @@ public class NullGroupMembershipHandler implements GroupMembershipHandler {
         // nothing to do, 'cause self events have to be ignored.
     }
 
+    @Override
+    public String publishMessage(String queueId, Map<String, Object> data) {
+        // nothing to do, 'cause self messages have to be ignored.
+        return null;
+    }
+
+    @Override
+    public void watchMessages(String queueId, EventCallback callback) {
+        // nothing to do, 'cause self messages have to be ignored.
+    }
+
+    @Override
+    public void deleteMessage(String queueId, String messageId) {
+    }
+
+    @Override
+    public void deleteExpiredMessages(String queueId, long retention) {
+    }
+
     @Override
     public List<String> getPeers() {
         return Collections.emptyList();
@@ -22,6 +22,7 @@ package org.carapaceproxy.cluster.impl;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.ByteArrayInputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -47,6 +48,7 @@ import org.apache.curator.framework.recipes.locks.InterProcessMutex;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.curator.utils.ZookeeperFactory;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
@@ -73,6 +75,8 @@ public class ZooKeeperGroupMembershipHandler implements GroupMembershipHandler,
 
     private static final Logger LOG = Logger.getLogger(ZooKeeperGroupMembershipHandler.class.getName());
     private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String QUEUES_PATH = "/proxy/queues/";
+    private static final String MESSAGE_PREFIX = "message-";
 
     private final CuratorFramework client;
     private final String peerId; // of the local one
@@ -258,6 +262,90 @@ public class ZooKeeperGroupMembershipHandler implements GroupMembershipHandler,
 
     }
 
+    @Override
+    public String publishMessage(String queueId, Map<String, Object> data) {
+        try {
+            final String path = QUEUES_PATH + queueId + "/" + MESSAGE_PREFIX;
+            Map<String, Object> info = new HashMap<>();
+            info.put("origin", peerId);
+            info.put("data", data);
+            byte[] content = MAPPER.writeValueAsBytes(info);
+            String created = client.create()
+                    .creatingParentsIfNeeded()
+                    .withMode(CreateMode.PERSISTENT_SEQUENTIAL)
+                    .forPath(path, content);
+            String messageId = created.substring(created.lastIndexOf('/') + 1);
+            LOG.log(Level.FINE, "Published message {0} on queue {1}", new Object[]{messageId, queueId});
+            return messageId;
+        } catch (Exception ex) {
+            throw new RuntimeException("Cannot publish message on queue " + queueId, ex);
+        }
+    }
+
+    @Override
+    public void watchMessages(String queueId, EventCallback callback) {
+        try {
+            final String path = QUEUES_PATH + queueId;
+            Stat exists = client.checkExists().creatingParentsIfNeeded()
+                    .forPath(path);
+            if (exists == null) {
+                client.create()
+                        .creatingParentsIfNeeded()
+                        .withMode(CreateMode.PERSISTENT)
+                        .forPath(path);
+            }
+
+            LOG.info("watching " + path);
+            MessagesWatcher watcher = new MessagesWatcher(queueId, path, callback, lastMessage(path));
+            PathChildrenCache cache = new PathChildrenCache(client, path, false);
+            // hold a strong reference to the PathChildrenCache
+            watchedEvents.add(cache);
+            cache.getListenable().addListener(watcher, callbacksExecutor);
+            cache.start(PathChildrenCache.StartMode.BUILD_INITIAL_CACHE);
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private String lastMessage(String path) throws Exception {
+        List<String> messages = client.getChildren().forPath(path);
+        return messages.isEmpty() ? null : Collections.max(messages);
+    }
+
+    @Override
+    public void deleteMessage(String queueId, String messageId) {
+        try {
+            client.delete().forPath(QUEUES_PATH + queueId + "/" + messageId);
+        } catch (KeeperException.NoNodeException alreadyDeleted) {
+            // expired and deleted by another peer
+        } catch (Exception ex) {
+            LOG.log(Level.SEVERE, "Cannot delete message " + messageId + " of queue " + queueId, ex);
+        }
+    }
+
+    @Override
+    public void deleteExpiredMessages(String queueId, long retention) {
+        final String path = QUEUES_PATH + queueId;
+        try {
+            long expiredTs = System.currentTimeMillis() - retention;
+            int deleted = 0;
+            for (String message : client.getChildren().forPath(path)) {
+                Stat stat = client.checkExists().forPath(path + "/" + message);
+                if (stat != null && stat.getCtime() < expiredTs) {
+                    deleteMessage(queueId, message);
+                    deleted++;
+                }
+            }
+            if (deleted > 0) {
+                LOG.log(Level.INFO, "Deleted {0} expired messages of queue {1}", new Object[]{deleted, queueId});
+            }
+        } catch (KeeperException.NoNodeException noQueue) {
+            // nothing published yet
+        } catch (Exception ex) {
+            LOG.log(Level.SEVERE, "Cannot delete expired messages of queue " + queueId, ex);
+        }
+    }
+
     @Override
     public List<String> getPeers() {
         try {
@@ -317,4 +405,68 @@ public class ZooKeeperGroupMembershipHandler implements GroupMembershipHandler,
         return peerId;
     }
 
+    /**
+     * Reads the messages of a queue in order of publication: sequential nodes are numbered by ZooKeeper, so the children
+     * are listed again on each change and the ones after the last read are delivered. Called by the callbacks executor
+     * only.
+     */
+    private final class MessagesWatcher implements PathChildrenCacheListener {
+
+        private final String queueId;
+        private final String path;
+        private final EventCallback callback;
+        private String lastMessage; // last one read, null for none
+        private boolean sessionLost;
+
+        private MessagesWatcher(String queueId, String path, EventCallback callback, String lastMessage) {
+            this.queueId = queueId;
+            this.path = path;
+            this.callback = callback;
+            this.lastMessage = lastMessage;
+        }
+
+        @Override
+        public void childEvent(CuratorFramework cf, PathChildrenCacheEvent pcce) throws Exception {
+            switch (pcce.getType()) {
+                case CHILD_ADDED:
+                    readMessages();
+                    break;
+                case CONNECTION_LOST:
+                    sessionLost = true;
+                    break;
+                case CONNECTION_RECONNECTED:
+                    if (sessionLost) {
+                        sessionLost = false;
+                        callback.reconnected();
+                    }
+                    // messages published while disconnected are still there
+                    readMessages();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void readMessages() throws Exception {
+            List<String> messages = new ArrayList<>(client.getChildren().forPath(path));
+            Collections.sort(messages);
+            for (String message : messages) {
+                if (lastMessage != null && message.compareTo(lastMessage) <= 0) {
+                    continue;
+                }
+                byte[] content;
+                try {
+                    content = client.getData().forPath(path + "/" + message);
+                } catch (KeeperException.NoNodeException expired) {
+                    lastMessage = message;
+                    continue;
+                }
+                lastMessage = message;
+                Map<String, Object> info = MAPPER.readValue(new ByteArrayInputStream(content), Map.class);
+                if (!peerId.equals(info.get("origin"))) {
+                    callback.eventFired(queueId, (Map<String, Object>) info.get("data"));
+                }
+            }
+        }
+    }
 }
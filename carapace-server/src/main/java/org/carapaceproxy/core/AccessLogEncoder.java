@@ -0,0 +1,400 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.carapaceproxy.core.RequestsLogger.Entry;
+
+/**
+ * Encodes the access log entries straight into the output buffer, according to accesslog.output. Encoders are used by
+ * the logger thread only and reuse their internal buffers.
+ */
+abstract class AccessLogEncoder {
+
+    private static final Logger LOG = Logger.getLogger(AccessLogEncoder.class.getName());
+
+    static final String OUTPUT_TEXT = "text";
+    static final String OUTPUT_JSON = "json";
+    static final String OUTPUT_BINARY = "binary";
+
+    /**
+     * Buffer the entries are encoded into.
+     */
+    interface Output {
+
+        ByteBuffer buffer();
+
+        /**
+         * Writes the buffer content out and clears it.
+         */
+        void drain() throws IOException;
+
+        /**
+         * @param bytes
+         * @return the buffer, with at least the given space (up to its capacity)
+         */
+        default ByteBuffer ensure(int bytes) throws IOException {
+            ByteBuffer buffer = buffer();
+            if (buffer.remaining() < bytes) {
+                drain();
+            }
+            return buffer;
+        }
+    }
+
+    /**
+     * @param output text, json or binary
+     * @return a new encoder
+     * @throws IllegalArgumentException whether the output is unknown
+     */
+    static AccessLogEncoder create(String output) {
+        switch (output.trim().toLowerCase(Locale.ROOT)) {
+            case OUTPUT_TEXT:
+                return new Text();
+            case OUTPUT_JSON:
+                return new Json();
+            case OUTPUT_BINARY:
+                return new Binary();
+            default:
+                throw new IllegalArgumentException("Unknown access log output " + output);
+        }
+    }
+
+    abstract void encode(Entry entry, Output out) throws IOException;
+
+    /**
+     * Rows rendered by the {@link AccessLogTemplate} of the entry, one per line.
+     */
+    static final class Text extends AccessLogEncoder {
+
+        private final StringBuilder row = new StringBuilder();
+        private CharBuffer chars = CharBuffer.allocate(1024);
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        @Override
+        void encode(Entry entry, Output out) throws IOException {
+            row.setLength(0);
+            entry.render(row);
+            row.append('\n');
+            int length = row.length();
+            if (chars.capacity() < length) {
+                chars = CharBuffer.allocate(Math.max(length, chars.capacity() * 2));
+            }
+            chars.clear();
+            row.getChars(0, length, chars.array(), 0);
+            chars.limit(length);
+            // rows larger than the buffer are written in more chunks
+            CoderResult result;
+            while ((result = encoder.encode(chars, out.buffer(), true)).isOverflow()) {
+                out.drain();
+            }
+            if (result.isError()) {
+                result.throwException();
+            }
+            encoder.reset();
+        }
+    }
+
+    /**
+     * Newline-delimited JSON objects, with the fields of the text format plus "status" and "bytes"; timestamp is in
+     * milliseconds since the epoch and missing values are null.
+     */
+    static class Json extends AccessLogEncoder {
+
+        private static final byte[] TIMESTAMP = fieldName("timestamp", true);
+        private static final byte[] CLIENT_IP = fieldName("client_ip", false);
+        private static final byte[] SERVER_IP = fieldName("server_ip", false);
+        private static final byte[] METHOD = fieldName("method", false);
+        private static final byte[] HOST = fieldName("host", false);
+        private static final byte[] URI = fieldName("uri", false);
+        private static final byte[] STATUS = fieldName("status", false);
+        private static final byte[] BYTES = fieldName("bytes", false);
+        private static final byte[] TOTAL_TIME = fieldName("total_time", false);
+        private static final byte[] BACKEND_TIME = fieldName("backend_time", false);
+        private static final byte[] ACTION_ID = fieldName("action_id", false);
+        private static final byte[] ROUTE_ID = fieldName("route_id", false);
+        private static final byte[] BACKEND_ID = fieldName("backend_id", false);
+        private static final byte[] USER_ID = fieldName("user_id", false);
+        private static final byte[] SESSION_ID = fieldName("session_id", false);
+        private static final byte[] TLS_PROTOCOL = fieldName("tls_protocol", false);
+        private static final byte[] TLS_CIPHER_SUITE = fieldName("tls_cipher_suite", false);
+        static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+        private final StringBuilder scratch = new StringBuilder();
+        private final byte[] digits = new byte[20];
+
+        static byte[] fieldName(String name, boolean first) {
+            return ((first ? "{\"" : ",\"") + name + "\":").getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        void encode(Entry entry, Output out) throws IOException {
+            out.ensure(TIMESTAMP.length).put(TIMESTAMP);
+            writeLong(out, entry.startTs);
+            writeString(out, CLIENT_IP, entry.clientIp != null ? entry.clientIp.getHostAddress() : null);
+            writeString(out, SERVER_IP, entry.serverIp);
+            writeString(out, METHOD, entry.method);
+            writeString(out, HOST, entry.host);
+            writeString(out, URI, entry.uri);
+            out.ensure(STATUS.length).put(STATUS);
+            writeLong(out, entry.status);
+            out.ensure(BYTES.length).put(BYTES);
+            writeLong(out, entry.bytes);
+            out.ensure(TOTAL_TIME.length).put(TOTAL_TIME);
+            writeLong(out, entry.getTotalTime());
+            out.ensure(BACKEND_TIME.length).put(BACKEND_TIME);
+            writeLong(out, entry.getBackendTime());
+            writeString(out, ACTION_ID, entry.action != null ? entry.action.name() : null);
+            writeString(out, ROUTE_ID, entry.routeId);
+            scratch.setLength(0);
+            entry.appendBackendId(scratch);
+            writeString(out, BACKEND_ID, scratch);
+            writeString(out, USER_ID, entry.userId);
+            writeString(out, SESSION_ID, entry.sessionId);
+            writeString(out, TLS_PROTOCOL, entry.tlsProtocol);
+            writeString(out, TLS_CIPHER_SUITE, entry.cipherSuite);
+            encodeExtraFields(entry, out);
+            out.ensure(2).put((byte) '}').put((byte) '\n');
+        }
+
+        /**
+         * Fields appended after the standard ones, none by default.
+         */
+        void encodeExtraFields(Entry entry, Output out) throws IOException {
+        }
+
+        final void writeLong(Output out, long value) throws IOException {
+            ByteBuffer buffer = out.ensure(digits.length);
+            if (value < 0) {
+                buffer.put((byte) '-');
+                value = -value;
+            }
+            int pos = digits.length;
+            do {
+                digits[--pos] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            buffer.put(digits, pos, digits.length - pos);
+        }
+
+        final void writeString(Output out, byte[] name, CharSequence value) throws IOException {
+            out.ensure(name.length).put(name);
+            if (value == null) {
+                out.ensure(NULL.length).put(NULL);
+                return;
+            }
+            out.ensure(1).put((byte) '"');
+            int length = value.length();
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                ByteBuffer buffer = out.ensure(6);
+                if (c == '"' || c == '\\') {
+                    buffer.put((byte) '\\').put((byte) c);
+                } else if (c < 0x20) {
+                    buffer.put((byte) '\\').put((byte) 'u').put((byte) '0').put((byte) '0')
+                            .put(HEX[c >> 4]).put(HEX[c & 0xF]);
+                } else {
+                    i += putUtf8(buffer, value, i, length) - 1;
+                }
+            }
+            out.ensure(1).put((byte) '"');
+        }
+    }
+
+    /**
+     * Records of the advanced access log: the JSON object of {@link Json} plus the captured request and response bodies,
+     * base64 encoded and truncated to accesslog.advanced.body.size, along with their whole sizes. Bodies are null whether
+     * they have not been captured.
+     */
+    static final class Advanced extends Json {
+
+        private static final byte[] REQUEST_BODY = fieldName("request_body", false);
+        private static final byte[] REQUEST_BODY_BYTES = fieldName("request_body_bytes", false);
+        private static final byte[] RESPONSE_BODY = fieldName("response_body", false);
+        private static final byte[] RESPONSE_BODY_BYTES = fieldName("response_body_bytes", false);
+        private static final byte[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+                .getBytes(StandardCharsets.US_ASCII);
+
+        @Override
+        void encodeExtraFields(Entry entry, Output out) throws IOException {
+            writeBody(out, REQUEST_BODY, REQUEST_BODY_BYTES, entry.requestBody);
+            writeBody(out, RESPONSE_BODY, RESPONSE_BODY_BYTES, entry.responseBody);
+        }
+
+        private void writeBody(Output out, byte[] name, byte[] sizeName, BodyCapture body) throws IOException {
+            out.ensure(name.length).put(name);
+            if (body == null) {
+                out.ensure(NULL.length).put(NULL);
+                out.ensure(sizeName.length).put(sizeName);
+                out.ensure(NULL.length).put(NULL);
+                return;
+            }
+            out.ensure(1).put((byte) '"');
+            byte[] data = body.getData();
+            int length = body.getLength();
+            for (int i = 0; i < length; i += 3) {
+                int b0 = data[i] & 0xFF;
+                int b1 = i + 1 < length ? data[i + 1] & 0xFF : 0;
+                int b2 = i + 2 < length ? data[i + 2] & 0xFF : 0;
+                out.ensure(4)
+                        .put(BASE64[b0 >> 2])
+                        .put(BASE64[((b0 & 0x3) << 4) | (b1 >> 4)])
+                        .put(i + 1 < length ? BASE64[((b1 & 0xF) << 2) | (b2 >> 6)] : (byte) '=')
+                        .put(i + 2 < length ? BASE64[b2 & 0x3F] : (byte) '=');
+            }
+            out.ensure(1).put((byte) '"');
+            out.ensure(sizeName.length).put(sizeName);
+            writeLong(out, body.getTotalBytes());
+        }
+    }
+
+    /**
+     * Length-prefixed records, big-endian: int32 length of the rest of the record, then
+     * <ul>
+     * <li>byte version (1)</li>
+     * <li>int64 timestamp (ms since the epoch), int32 status, int64 bytes, int64 total_time, int64 backend_time</li>
+     * <li>strings client_ip, server_ip, method, host, uri, action_id, route_id, backend_id, user_id, session_id,
+     * tls_protocol, tls_cipher_suite: int32 length in bytes (-1 for null) followed by the UTF-8 bytes</li>
+     * </ul>
+     */
+    static final class Binary extends AccessLogEncoder {
+
+        static final byte VERSION = 1;
+        private static final int FIXED_SIZE = 1 + 8 + 4 + 8 + 8 + 8;
+
+        private final CharSequence[] strings = new CharSequence[12];
+        private final StringBuilder backendId = new StringBuilder();
+
+        @Override
+        void encode(Entry entry, Output out) throws IOException {
+            strings[0] = entry.clientIp != null ? entry.clientIp.getHostAddress() : null;
+            strings[1] = entry.serverIp;
+            strings[2] = entry.method;
+            strings[3] = entry.host;
+            strings[4] = entry.uri;
+            strings[5] = entry.action != null ? entry.action.name() : null;
+            strings[6] = entry.routeId;
+            backendId.setLength(0);
+            entry.appendBackendId(backendId);
+            strings[7] = backendId;
+            strings[8] = entry.userId;
+            strings[9] = entry.sessionId;
+            strings[10] = entry.tlsProtocol;
+            strings[11] = entry.cipherSuite;
+
+            int size = FIXED_SIZE;
+            for (CharSequence string : strings) {
+                size += 4 + (string != null ? utf8Length(string) : 0);
+            }
+            ByteBuffer buffer = out.ensure(4 + size);
+            if (buffer.remaining() < 4 + size) {
+                LOG.log(Level.WARNING, "Request {0} not logged to access log because the record is too large ({1} bytes)",
+                        new Object[]{entry.uri, size});
+                return;
+            }
+            buffer.putInt(size)
+                    .put(VERSION)
+                    .putLong(entry.startTs)
+                    .putInt(entry.status)
+                    .putLong(entry.bytes)
+                    .putLong(entry.getTotalTime())
+                    .putLong(entry.getBackendTime());
+            for (int i = 0; i < strings.length; i++) {
+                CharSequence string = strings[i];
+                strings[i] = null;
+                if (string == null) {
+                    buffer.putInt(-1);
+                    continue;
+                }
+                int length = string.length();
+                buffer.putInt(utf8Length(string));
+                for (int c = 0; c < length;) {
+                    c += putUtf8(buffer, string, c, length);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the character at the given index, with the low surrogate following it if any; lone surrogates are
+     * replaced with '?'.
+     *
+     * @return number of characters consumed
+     */
+    static int putUtf8(ByteBuffer buffer, CharSequence value, int index, int length) {
+        char c = value.charAt(index);
+        if (c < 0x80) {
+            buffer.put((byte) c);
+        } else if (c < 0x800) {
+            buffer.put((byte) (0xC0 | (c >> 6)))
+                    .put((byte) (0x80 | (c & 0x3F)));
+        } else if (Character.isHighSurrogate(c) && index + 1 < length && Character.isLowSurrogate(value.charAt(index + 1))) {
+            int codePoint = Character.toCodePoint(c, value.charAt(index + 1));
+            buffer.put((byte) (0xF0 | (codePoint >> 18)))
+                    .put((byte) (0x80 | ((codePoint >> 12) & 0x3F)))
+                    .put((byte) (0x80 | ((codePoint >> 6) & 0x3F)))
+                    .put((byte) (0x80 | (codePoint & 0x3F)));
+            return 2;
+        } else if (Character.isSurrogate(c)) {
+            buffer.put((byte) '?');
+        } else {
+            buffer.put((byte) (0xE0 | (c >> 12)))
+                    .put((byte) (0x80 | ((c >> 6) & 0x3F)))
+                    .put((byte) (0x80 | (c & 0x3F)));
+        }
+        return 1;
+    }
+
+    /**
+     * @return number of bytes written by {@link #putUtf8} for the whole value
+     */
+    static int utf8Length(CharSequence value) {
+        int length = value.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.core;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.carapaceproxy.core.RequestsLogger.Entry;
+
+/**
+ * Access log row format (accesslog.format), compiled once into a list of literal and field segments.
+ * <p>
+ * Placeholders are in the form &lt;field&gt;, as in the former StringTemplate syntax: \&lt; and \&gt; stand for the
+ * characters themselves, unknown fields are rendered as empty strings.
+ */
+final class AccessLogTemplate {
+
+    private static final Logger LOG = Logger.getLogger(AccessLogTemplate.class.getName());
+
+    /**
+     * Fields of the access log, rendered from the values captured by the {@link Entry}.
+     */
+    enum Field {
+        CLIENT_IP("client_ip") {
+            @Override
+            void render(Entry entry, AccessLogTemplate template, StringBuilder out) {
+                out.append(entry.clientIp != null ? entry.clientIp.getHostAddress() : "");
+            }
+        },
+        SERVER_IP("server_ip") {
+            @Override
+            void render(Entry entry, AccessLogTemplate template, StringBuilder out) {
+                append(out, entry.serverIp);
+            }
+        },
+        METHOD("method") {
+            @Override
+            void render(Entry entry, AccessLogTemplate template, StringBuilder out) {
+                append(out, entry.method);
+            }
+        },
+        HOST("host") {
+            @Override
+            void render(Entry entry, AccessLogTemplate template, StringBuilder out) {
+                append(out, entry.host);
+            }
+        },
+        URI("uri") {
+            @Override
+            void render(Entry entry, AccessLogTemplate template, StringBuilder out) {
+                append(out, entry.uri);
+            }
+        },
+        STATUS("status") {
+            @Override
+            void render(Entry entry, AccessLogTemplate template, StringBuilder out) {
+                out.append(entry.status);
+            }
+        },
+        BYTES("bytes") {
+            @Override
+            void render(Entry entry, AccessLogTemplate template, StringBuilder out) {
+                out.append(entry.bytes);
+            }
+        },
+        TIMESTAMP("timestamp") {
+            @Override
+            void render(Entry entry, AccessLogTemplate template, StringBuilder out) {
+                template.timestampFormatter.formatTo(Instant.ofEpochMilli(entry.startTs), out);
+            }
+        },
+        TOTAL_TIME("total_time") {
+            @Override
+            void render(Entry entry, AccessLogTemplate template, StringBuilder out) {
+                out.append(entry.getTotalTime());
+            }
+        },
+        ACTION_ID("action_id") {
+            @Override
+            void render(Entry entry, AccessLogTemplate template, StringBuilder out) {
+                append(out, entry.action);
+            }
+        },
+        ROUTE_ID("route_id") {
+            @Override
+            void render(Entry entry, AccessLogTemplate template, StringBuilder out) {
+                append(out, entry.routeId);
+            }
+        },
+        USER_ID("user_id") {
+            @Override
+            void render(Entry entry, AccessLogTemplate template, StringBuilder out) {
+                append(out, entry.userId);
+            }
+        },
+        SESSION_ID("session_id") {
+            @Override
+            void render(Entry entry, AccessLogTemplate template, StringBuilder out) {
+                append(out, entry.sessionId);
+            }
+        },
+        BACKEND_ID("backend_id") {
+            @Override
+            void render(Entry entry, AccessLogTemplate template, StringBuilder out) {
+                entry.appendBackendId(out);
+            }
+        },
+        BACKEND_TIME("backend_time") {
+            @Override
+            void render(Entry entry, AccessLogTemplate template, StringBuilder out) {
+                out.append(entry.getBackendTime());
+            }
+        },
+        TLS_PROTOCOL("tls_protocol") {
+            @Override
+            void render(Entry entry, AccessLogTemplate template, StringBuilder out) {
+                out.append(entry.tlsProtocol != null ? entry.tlsProtocol : "n/a");
+            }
+        },
+        TLS_CIPHER_SUITE("tls_cipher_suite") {
+            @Override
+            void render(Entry entry, AccessLogTemplate template, StringBuilder out) {
+                out.append(entry.cipherSuite != null ? entry.cipherSuite : "n/a");
+            }
+        };
+
+        private static final Map<String, Field> BY_NAME = new HashMap<>();
+
+        static {
+            for (Field field : values()) {
+                BY_NAME.put(field.fieldName, field);
+            }
+        }
+
+        private final String fieldName;
+
+        Field(String fieldName) {
+            this.fieldName = fieldName;
+        }
+
+        abstract void render(Entry entry, AccessLogTemplate template, StringBuilder out);
+
+        private static void append(StringBuilder out, Object value) {
+            if (value != null) {
+                out.append(value);
+            }
+        }
+    }
+
+    private final String format;
+    private final String timestampFormat;
+    private final DateTimeFormatter timestampFormatter; // immutable and thread-safe
+    // literals (String) and fields (Field), in order
+    private final Object[] segments;
+
+    private AccessLogTemplate(String format, String timestampFormat, DateTimeFormatter timestampFormatter, Object[] segments) {
+        this.format = format;
+        this.timestampFormat = timestampFormat;
+        this.timestampFormatter = timestampFormatter;
+        this.segments = segments;
+    }
+
+    /**
+     * @param format row format
+     * @param timestampFormat pattern of the timestamp, see {@link DateTimeFormatter}
+     * @return the compiled template
+     * @throws IllegalArgumentException whether the timestamp pattern is not valid
+     */
+    static AccessLogTemplate compile(String format, String timestampFormat) {
+        DateTimeFormatter timestampFormatter = DateTimeFormatter.ofPattern(timestampFormat).withZone(ZoneId.systemDefault());
+        List<Object> segments = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int length = format.length();
+        for (int i = 0; i < length; i++) {
+            char c = format.charAt(i);
+            if (c == '\\' && i + 1 < length && (format.charAt(i + 1) == '<' || format.charAt(i + 1) == '>')) {
+                literal.append(format.charAt(++i));
+                continue;
+            }
+            int end = c == '<' ? format.indexOf('>', i + 1) : -1;
+            if (end < 0 || !isFieldName(format, i + 1, end)) {
+                literal.append(c);
+                continue;
+            }
+            if (literal.length() > 0) {
+                segments.add(literal.toString());
+                literal.setLength(0);
+            }
+            String name = format.substring(i + 1, end);
+            Field field = Field.BY_NAME.get(name);
+            if (field != null) {
+                segments.add(field);
+            } else {
+                LOG.log(Level.WARNING, "Unknown field <{0}> in access log format, it will be left empty", name);
+            }
+            i = end;
+        }
+        if (literal.length() > 0) {
+            segments.add(literal.toString());
+        }
+        return new AccessLogTemplate(format, timestampFormat, timestampFormatter, segments.toArray());
+    }
+
+    private static boolean isFieldName(String format, int start, int end) {
+        if (start == end) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = format.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean isCompiledFrom(String format, String timestampFormat) {
+        return this.format.equals(format) && this.timestampFormat.equals(timestampFormat);
+    }
+
+    void render(Entry entry, StringBuilder out) {
+        for (Object segment : segments) {
+            if (segment instanceof Field) {
+                ((Field) segment).render(entry, this, out);
+            } else {
+                out.append((String) segment);
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.core;
+
+import io.netty.buffer.ByteBuf;
+import java.util.Arrays;
+
+/**
+ * First bytes of a request or response body, for the advanced access log (accesslog.advanced.body.size).
+ * <p>
+ * Buffers are copied as they flow, without touching their indexes, until the maximum size is reached: the rest of the
+ * body is only counted. Data is captured on the event loop of the request and read by the logger thread once the
+ * request has been completed.
+ */
+public final class BodyCapture {
+
+    private final int maxSize;
+    private byte[] data; // grown on demand, up to maxSize
+    private int length;
+    private long totalBytes;
+
+    BodyCapture(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    void capture(ByteBuf buffer) {
+        int readable = buffer.readableBytes();
+        totalBytes += readable;
+        int count = Math.min(readable, maxSize - length);
+        if (count <= 0) {
+            return;
+        }
+        if (data == null) {
+            data = new byte[count];
+        } else if (data.length < length + count) {
+            data = Arrays.copyOf(data, Math.min(maxSize, Math.max(length + count, data.length * 2)));
+        }
+        buffer.getBytes(buffer.readerIndex(), data, length, count);
+        length += count;
+    }
+
+    /**
+     * @return captured bytes, valid up to {@link #getLength()}; null whether nothing has been captured
+     */
+    byte[] getData() {
+        return data;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * @return size of the whole body seen so far
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+}
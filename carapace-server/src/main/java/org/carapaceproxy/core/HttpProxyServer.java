@@ -33,6 +33,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -55,6 +56,7 @@ import org.carapaceproxy.configstore.ConfigurationStore;
 import org.carapaceproxy.configstore.HerdDBConfigurationStore;
 import org.carapaceproxy.configstore.PropertiesConfigurationStore;
 import org.carapaceproxy.server.backends.BackendHealthManager;
+import org.carapaceproxy.server.cache.CacheInvalidator;
 import org.carapaceproxy.server.cache.ContentsCache;
 import org.carapaceproxy.server.certificates.DynamicCertificatesManager;
 import org.carapaceproxy.server.config.ConfigurationChangeInProgressException;
@@ -112,11 +114,16 @@ public class HttpProxyServer implements AutoCloseable {
 
     private static final Logger LOG = Logger.getLogger(HttpProxyServer.class.getName());
 
+    // requests in progress on HTTP/2 connections to the backends, tagged as reactor-netty connection provider metrics
+    public static final String ACTIVE_STREAMS = ".active.streams";
+
     @Getter
     private final Listeners listeners;
 
     @Getter
     private final ContentsCache cache;
+    @Getter
+    private final CacheInvalidator cacheInvalidator;
     private final StatsLogger mainLogger;
 
     @Getter
@@ -135,6 +142,10 @@ public class HttpProxyServer implements AutoCloseable {
     @Getter
     private final RequestsLogger requestsLogger;
 
+    // null whether accesslog.advanced.enabled is false
+    @Getter
+    private volatile RequestsLogger advancedRequestsLogger;
+
     @Getter
     private final ProxyRequestsManager proxyRequestsManager;
 
@@ -221,7 +232,11 @@ public class HttpProxyServer implements AutoCloseable {
         this.backendHealthManager = new BackendHealthManager(currentConfiguration, mapper);
         this.listeners = new Listeners(this);
         this.cache = new ContentsCache(currentConfiguration);
+        this.cacheInvalidator = new CacheInvalidator(cache, currentConfiguration);
         this.requestsLogger = new RequestsLogger(currentConfiguration);
+        if (currentConfiguration.isAccessLogAdvancedEnabled()) {
+            this.advancedRequestsLogger = new RequestsLogger(currentConfiguration, true);
+        }
         this.dynamicCertificatesManager = new DynamicCertificatesManager(this);
         this.ocspStaplingManager = new OcspStaplingManager();
         this.proxyRequestsManager = new ProxyRequestsManager(this);
@@ -374,7 +389,12 @@ public class HttpProxyServer implements AutoCloseable {
             started = true;
             groupMembershipHandler.start();
             cache.start();
+            cacheInvalidator.start(groupMembershipHandler);
             requestsLogger.start();
+            RequestsLogger advancedLogger = advancedRequestsLogger;
+            if (advancedLogger != null) {
+                advancedLogger.start();
+            }
             listeners.start();
             backendHealthManager.start();
             dynamicCertificatesManager.attachGroupMembershipHandler(groupMembershipHandler);
@@ -421,6 +441,13 @@ public class HttpProxyServer implements AutoCloseable {
         if (requestsLogger != null) {
             requestsLogger.stop();
         }
+        RequestsLogger advancedLogger = advancedRequestsLogger;
+        if (advancedLogger != null) {
+            advancedLogger.stop();
+        }
+        if (cacheInvalidator != null) {
+            cacheInvalidator.stop();
+        }
         if (cache != null) {
             cache.close();
         }
@@ -647,6 +674,24 @@ public class HttpProxyServer implements AutoCloseable {
         groupMembershipHandler.fireEvent("configurationChange");
     }
 
+    private void reloadAdvancedRequestsLogger(RuntimeServerConfiguration newConfiguration) {
+        RequestsLogger advancedLogger = advancedRequestsLogger;
+        if (newConfiguration.isAccessLogAdvancedEnabled()) {
+            if (advancedLogger != null) {
+                advancedLogger.reloadConfiguration(newConfiguration);
+                return;
+            }
+            advancedLogger = new RequestsLogger(newConfiguration, true);
+            if (started) {
+                advancedLogger.start();
+            }
+            advancedRequestsLogger = advancedLogger;
+        } else if (advancedLogger != null) {
+            advancedRequestsLogger = null;
+            advancedLogger.stop(); // pending entries are written before closing
+        }
+    }
+
     private void applyDynamicConfiguration(ConfigurationStore newConfigurationStore, boolean atBoot) throws InterruptedException, ConfigurationChangeInProgressException {
         if (atBoot && newConfigurationStore != null) {
             throw new IllegalStateException();
@@ -672,15 +717,16 @@ public class HttpProxyServer implements AutoCloseable {
             this.ocspStaplingManager.reloadConfiguration(newConfiguration);
             this.listeners.reloadConfiguration(newConfiguration);
             this.cache.reloadConfiguration(newConfiguration);
+            this.cacheInvalidator.reloadConfiguration(newConfiguration);
             this.requestsLogger.reloadConfiguration(newConfiguration);
+            reloadAdvancedRequestsLogger(newConfiguration);
             this.realm = newRealm;
             Map<String, BackendConfiguration> currentBackends = mapper != null ? mapper.getBackends() : Collections.emptyMap();
             Map<String, BackendConfiguration> newBackends = newMapper.getBackends();
             this.mapper = newMapper;
 
             if (atBoot || !newBackends.equals(currentBackends) || isConnectionsConfigurationChanged(newConfiguration)) {
-                prometheusRegistry.clear();
-                Metrics.globalRegistry.clear();
+                // unchanged connection pools are kept, metrics of the disposed ones are dropped
                 proxyRequestsManager.reloadConfiguration(newConfiguration, newBackends.values());
             }
 
@@ -703,6 +749,10 @@ public class HttpProxyServer implements AutoCloseable {
                 || newConfiguration.getConnectTimeout() != currentConfiguration.getConnectTimeout()
                 || newConfiguration.getStuckRequestTimeout() != currentConfiguration.getStuckRequestTimeout()
                 || newConfiguration.getIdleTimeout() != currentConfiguration.getIdleTimeout()
+                || newConfiguration.getMinIdleConnections() != currentConfiguration.getMinIdleConnections()
+                || !newConfiguration.getBackendsHttpProtocol().equals(currentConfiguration.getBackendsHttpProtocol())
+                || newConfiguration.getMaxConcurrentStreams() != currentConfiguration.getMaxConcurrentStreams()
+                || newConfiguration.isRequestCompressionEnabled() != currentConfiguration.isRequestCompressionEnabled()
                 || !newConfiguration.getConnectionPools().equals(currentConfiguration.getConnectionPools());
     }
 
@@ -783,6 +833,7 @@ public class HttpProxyServer implements AutoCloseable {
         private int activeConnections; // The number of the connections that have been successfully acquired and are in active use
         private int idleConnections; // The number of the idle connections
         private int pendingConnections; // The number of requests that are waiting for a connection
+        private int activeStreams; // The number of requests in progress on HTTP/2 connections
 
     }
 
@@ -814,10 +865,35 @@ public class HttpProxyServer implements AutoCloseable {
                 case CONNECTION_PROVIDER_PREFIX + PENDING_CONNECTIONS:
                     stats.pendingConnections += (int) value;
                     break;
+                case CONNECTION_PROVIDER_PREFIX + ACTIVE_STREAMS:
+                    stats.activeStreams += (int) value;
+                    break;
             }
         });
 
         return res;
     }
 
+    /**
+     * @param poolNames
+     * @return connection pools metrics currently registered for the given pools.
+     */
+    List<Meter> getConnectionPoolsMeters(Set<String> poolNames) {
+        List<Meter> res = new ArrayList<>();
+        Metrics.globalRegistry.forEachMeter(meter -> {
+            Meter.Id metric = meter.getId();
+            if (metric.getName().startsWith(CONNECTION_PROVIDER_PREFIX) && poolNames.contains(metric.getTag(NAME))) {
+                res.add(meter);
+            }
+        });
+        return res;
+    }
+
+    void removeMeters(List<Meter> meters) {
+        meters.forEach(meter -> {
+            Metrics.globalRegistry.remove(meter.getId());
+            prometheusRegistry.remove(meter.getId());
+        });
+    }
+
 }
@@ -19,19 +19,26 @@
  */
 package org.carapaceproxy.core;
 
+import static org.carapaceproxy.server.config.NetworkListenerConfiguration.PROTOCOL_H2;
+import static org.carapaceproxy.server.config.NetworkListenerConfiguration.PROTOCOL_HTTP11;
 import static org.carapaceproxy.utils.CertificatesUtils.loadKeyStoreData;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
 import io.netty.handler.ssl.OpenSsl;
 import io.netty.handler.ssl.ReferenceCountedOpenSslEngine;
 import io.netty.handler.ssl.SniHandler;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
 import io.netty.handler.ssl.SslProvider;
 import io.netty.util.Attribute;
 import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.ImmediateEventExecutor;
 import io.netty.util.concurrent.Promise;
 import io.prometheus.client.Gauge;
 import java.io.File;
@@ -70,6 +77,7 @@ import lombok.Data;
 import org.carapaceproxy.utils.CarapaceLogger;
 import reactor.netty.DisposableServer;
 import reactor.netty.NettyPipeline;
+import reactor.netty.http.HttpProtocol;
 import reactor.netty.http.server.HttpServer;
 
 /**
@@ -211,14 +219,18 @@ public class Listeners {
         ListeningChannel listeningChannel = new ListeningChannel(hostPort, config);
         LOG.log(Level.INFO, "Starting listener at {0}:{1} ssl:{2}", new Object[]{hostPort.getHost(), hostPort.getPort() + "", config.isSsl()});
 
+        boolean h2 = config.isSsl() && config.isHttpProtocolEnabled(PROTOCOL_H2);
+
         // Listener setup
         HttpServer httpServer = HttpServer.create()
                 .host(hostPort.getHost())
                 .port(hostPort.getPort())
-                //.protocol(HttpProtocol.H2) // HTTP/2.0 setup
+                .protocol(Arrays.stream(config.getHttpProtocols()).map(HttpProtocol::valueOf).toArray(HttpProtocol[]::new))
                 .option(ChannelOption.SO_BACKLOG, 128)
                 .childOption(ChannelOption.SO_KEEPALIVE, true)
                 .doOnChannelInit((observer, channel, remoteAddress) -> {
+                    CURRENT_CONNECTED_CLIENTS_GAUGE.inc();
+                    channel.closeFuture().addListener(e -> CURRENT_CONNECTED_CLIENTS_GAUGE.dec());
                     channel.pipeline().addFirst("idleStateHandler", new IdleStateHandler(0, 0, currentConfiguration.getClientsIdleTimeoutSeconds()));
                     if (config.isSsl()) {
                         SniHandler sni = new SniHandler(listeningChannel) {
@@ -241,25 +253,32 @@ public class Listeners {
                                 return handler;
                             }
                         };
-                        channel.pipeline().addFirst(sni);
+                        if (channel.pipeline().get(NettyPipeline.SslHandler) != null) {
+                            // HTTP/2 requires reactor-netty to handle the ALPN negotiation, the SNI handler takes the place of its ssl handler
+                            channel.pipeline().replace(NettyPipeline.SslHandler, NettyPipeline.SslHandler, sni);
+                        } else {
+                            channel.pipeline().addFirst(sni);
+                        }
                     }
-                    channel.pipeline().addAfter(NettyPipeline.HttpCodec, "uriEncoder", new ChannelInboundHandlerAdapter() {
-                        @Override
-                        public void channelRead(ChannelHandlerContext ctx, Object msg) {
-                            if (msg instanceof HttpRequest) {
-                                HttpRequest request = (HttpRequest) msg;
-                                request.setUri(request.uri()
-                                        .replaceAll("\\[", "%5B")
-                                        .replaceAll("\\]", "%5D")
-                                );
+                    if (!addUriEncoder(channel.pipeline()) && channel.pipeline().get(NettyPipeline.H2OrHttp11Codec) != null) {
+                        // HTTP/1.1 codec is known only once the protocol has been negotiated
+                        channel.pipeline().addAfter(NettyPipeline.H2OrHttp11Codec, "uriEncoderInstaller", new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+                                if (evt instanceof SslHandshakeCompletionEvent) {
+                                    addUriEncoder(ctx.pipeline());
+                                    ctx.pipeline().remove(this);
+                                }
+                                ctx.fireUserEventTriggered(evt);
                             }
-                            ctx.fireChannelRead(msg);
-                        }
-                    });
+                        });
+                    }
                 })
                 .doOnConnection(conn -> {
-                    CURRENT_CONNECTED_CLIENTS_GAUGE.inc();
-                    conn.channel().closeFuture().addListener(e -> CURRENT_CONNECTED_CLIENTS_GAUGE.dec());
+                    if (conn.channel().parent() != null) {
+                        // HTTP/2 stream
+                        addUriEncoder(conn.channel().pipeline());
+                    }
                 })
                 .handle((request, response) -> { // Custom request-response handling
                     ListeningChannel channel = listeningChannels.get(hostPort);
@@ -270,6 +289,17 @@ public class Listeners {
                     return parent.getProxyRequestsManager().processRequest(proxyRequest);
                 });
 
+        if (h2) {
+            // reactor-netty accepts HTTP/2 over TLS only with a configured ssl context: the default one is replaced by the SNI handler
+            SslContext defaultSslContext = listeningChannel.map(null, ImmediateEventExecutor.INSTANCE.newPromise()).getNow();
+            if (defaultSslContext == null) {
+                LOG.log(Level.SEVERE, "Cannot boot default SSL context for listener {0}: HTTP/2 disabled", hostPort);
+                httpServer = httpServer.protocol(HttpProtocol.HTTP11);
+            } else {
+                httpServer = httpServer.secure(spec -> spec.sslContext(defaultSslContext));
+            }
+        }
+
         // response compression
         if (currentConfiguration.getResponseCompressionThreshold() >= 0) {
             CarapaceLogger.debug("Response compression enabled with min size = {0} bytes for listener {1}",
@@ -290,6 +320,34 @@ public class Listeners {
         LOG.log(Level.INFO, "started listener at {0}: {1}", new Object[]{hostPort, channel});
     }
 
+    private static boolean addUriEncoder(ChannelPipeline pipeline) {
+        if (pipeline.get("uriEncoder") != null) {
+            return true;
+        }
+        String codec;
+        if (pipeline.get(NettyPipeline.HttpCodec) != null) {
+            codec = NettyPipeline.HttpCodec;
+        } else if (pipeline.get(NettyPipeline.H2ToHttp11Codec) != null) {
+            codec = NettyPipeline.H2ToHttp11Codec;
+        } else {
+            return false;
+        }
+        pipeline.addAfter(codec, "uriEncoder", new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                if (msg instanceof HttpRequest) {
+                    HttpRequest request = (HttpRequest) msg;
+                    request.setUri(request.uri()
+                            .replaceAll("\\[", "%5B")
+                            .replaceAll("\\]", "%5D")
+                    );
+                }
+                ctx.fireChannelRead(msg);
+            }
+        });
+        return true;
+    }
+
     @Data
     public final class ListeningChannel implements io.netty.util.AsyncMapping<String, SslContext> {
 
@@ -394,13 +452,27 @@ public class Listeners {
                     LOG.log(Level.FINE, "required sslCiphers {0}", sslCiphers);
                     ciphers = Arrays.asList(sslCiphers.split(","));
                 }
-                SslContext sslContext = SslContextBuilder
+                SslContextBuilder sslContextBuilder = SslContextBuilder
                         .forServer(keyFactory)
                         .enableOcsp(listener.isOcsp() && OpenSsl.isOcspSupported())
                         .trustManager(trustManagerFactory)
                         .sslProvider(SslProvider.OPENSSL)
                         .protocols(listener.getSslProtocols())
-                        .ciphers(ciphers).build();
+                        .ciphers(ciphers);
+                if (listener.isHttpProtocolEnabled(PROTOCOL_H2)) {
+                    List<String> alpnProtocols = new ArrayList<>();
+                    alpnProtocols.add(ApplicationProtocolNames.HTTP_2);
+                    if (listener.isHttpProtocolEnabled(PROTOCOL_HTTP11)) {
+                        alpnProtocols.add(ApplicationProtocolNames.HTTP_1_1);
+                    }
+                    sslContextBuilder.applicationProtocolConfig(new ApplicationProtocolConfig(
+                            ApplicationProtocolConfig.Protocol.ALPN,
+                            ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                            ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                            alpnProtocols
+                    ));
+                }
+                SslContext sslContext = sslContextBuilder.build();
 
                 Certificate[] chain = readChainFromKeystore(keystore);
                 if (listener.isOcsp() && OpenSsl.isOcspSupported() && chain != null && chain.length > 0) {
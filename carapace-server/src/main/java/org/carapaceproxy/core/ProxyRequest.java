@@ -28,17 +28,24 @@ import io.netty.handler.codec.http.HttpScheme;
 import io.netty.handler.codec.http.cookie.Cookie;
 import io.netty.handler.ssl.SslHandler;
 import java.net.InetSocketAddress;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.Setter;
+import lombok.ToString;
 import org.carapaceproxy.server.config.NetworkListenerConfiguration.HostPort;
 import org.carapaceproxy.server.filters.UrlEncodedQueryString;
 import org.carapaceproxy.server.mapper.MapResult;
 import org.carapaceproxy.server.mapper.requestmatcher.MatchingContext;
+import org.carapaceproxy.server.mapper.requestmatcher.MatchingProperty;
 import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 import reactor.netty.ByteBufFlux;
 import reactor.netty.http.server.HttpServerRequest;
 import reactor.netty.http.server.HttpServerResponse;
@@ -59,7 +66,6 @@ public class ProxyRequest implements MatchingContext {
     public static final String PROPERTY_LISTENER_HOST_PORT = "listener.hostport";
     public static final String PROPERTY_LISTENER_IPADDRESS = "listener.ipaddress";
 
-    private static final int HEADERS_SUBSTRING_INDEX = PROPERTY_HEADERS.length();
     private static final AtomicLong REQUESTS_ID_GENERATOR = new AtomicLong();
 
     private final long id = REQUESTS_ID_GENERATOR.incrementAndGet();
@@ -79,6 +85,20 @@ public class ProxyRequest implements MatchingContext {
     @Getter
     @Setter
     private boolean servedFromCache;
+    // response body bytes sent to the client
+    @Setter(AccessLevel.NONE)
+    private long sentBytes;
+    // first bytes of the bodies for the advanced access log, null whether they are not captured
+    @Setter(AccessLevel.NONE)
+    private BodyCapture requestBodyCapture;
+    @Setter(AccessLevel.NONE)
+    private BodyCapture responseBodyCapture;
+    // lazily resolved matching properties, indexed by MatchingProperty id
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private String[] properties;
 
     public ProxyRequest(HttpServerRequest request, HttpServerResponse response, HostPort listener) {
         this.request = request;
@@ -86,6 +106,10 @@ public class ProxyRequest implements MatchingContext {
         this.listener = listener;
         request.withConnection(conn -> {
             SslHandler handler = conn.channel().pipeline().get(SslHandler.class);
+            if (handler == null && conn.channel().parent() != null) {
+                // HTTP/2 stream: TLS is handled by the parent connection
+                handler = conn.channel().parent().pipeline().get(SslHandler.class);
+            }
             if (handler != null) {
                 sslProtocol = handler.engine().getSession().getProtocol();
                 cipherSuite = handler.engine().getSession().getCipherSuite();
@@ -95,25 +119,51 @@ public class ProxyRequest implements MatchingContext {
 
     @Override
     public String getProperty(String name) {
-        if (name.startsWith(PROPERTY_HEADERS)) {
-            // In case of multiple headers with same name, the first one is returned.
-            return request.requestHeaders().get(name.substring(HEADERS_SUBSTRING_INDEX, name.length()), "");
-        } else {
-            switch (name) {
-                case PROPERTY_URI:
-                    return request.uri();
-                case PROPERTY_METHOD:
-                    return request.method().name();
-                case PROPERTY_CONTENT_TYPE:
-                    return request.requestHeaders().get(HttpHeaderNames.CONTENT_TYPE, "");
-                case PROPERTY_LISTENER_IPADDRESS:
-                    return getLocalAddress().getAddress().getHostAddress();
-                case PROPERTY_LISTENER_HOST_PORT: {
-                    return listener.getHost() + ":" + listener.getPort();
-                }
-                default: {
-                    throw new IllegalArgumentException("Property name " + name + " does not exists.");
-                }
+        return getProperty(MatchingProperty.of(name));
+    }
+
+    /**
+     * Resolves the property once per request: subsequent lookups of the same property are served from a local cache.
+     * The cache has to be invalidated by {@link #invalidateProperties()} whenever request headers are modified.
+     */
+    @Override
+    public String getProperty(MatchingProperty property) {
+        int index = property.getId();
+        if (properties == null) {
+            properties = new String[Math.max(MatchingProperty.count(), index + 1)];
+        } else if (index >= properties.length) {
+            properties = Arrays.copyOf(properties, Math.max(MatchingProperty.count(), index + 1));
+        }
+        String value = properties[index];
+        if (value == null) {
+            value = resolveProperty(property);
+            properties[index] = value;
+        }
+        return value;
+    }
+
+    public void invalidateProperties() {
+        properties = null;
+    }
+
+    private String resolveProperty(MatchingProperty property) {
+        switch (property.getType()) {
+            case HEADER:
+                // In case of multiple headers with same name, the first one is returned.
+                return request.requestHeaders().get(property.getHeaderName(), "");
+            case URI:
+                return request.uri();
+            case METHOD:
+                return request.method().name();
+            case CONTENT_TYPE:
+                return request.requestHeaders().get(HttpHeaderNames.CONTENT_TYPE, "");
+            case LISTENER_IPADDRESS:
+                return getLocalAddress().getAddress().getHostAddress();
+            case LISTENER_HOST_PORT: {
+                return listener.getHost() + ":" + listener.getPort();
+            }
+            default: {
+                throw new IllegalArgumentException("Property name " + property.getName() + " does not exists.");
             }
         }
     }
@@ -199,15 +249,47 @@ public class ProxyRequest implements MatchingContext {
     }
 
     public ByteBufFlux getRequestData() {
-        return request.receive().retain();
+        ByteBufFlux data = request.receive().retain();
+        BodyCapture capture = requestBodyCapture;
+        return capture != null ? ByteBufFlux.fromInbound(data.doOnNext(capture::capture)) : data;
+    }
+
+    /**
+     * Captures up to maxSize bytes of both the request and the response bodies, to be called before sending any data.
+     *
+     * @param maxSize
+     */
+    public void captureBodies(int maxSize) {
+        requestBodyCapture = new BodyCapture(maxSize);
+        responseBodyCapture = new BodyCapture(maxSize);
+    }
+
+    public boolean isCapturingBodies() {
+        return requestBodyCapture != null;
     }
 
     public Publisher<Void> send() {
         return response.send();
     }
 
+    @SuppressWarnings("unchecked")
     public Publisher<Void> sendResponseData(Publisher<? extends ByteBuf> data) {
-        return response.send(data);
+        if (data instanceof Mono) {
+            // single buffers are sent as full responses
+            return response.send(((Mono<? extends ByteBuf>) data).doOnNext(this::onResponseData));
+        }
+        return response.send(Flux.from(data).doOnNext(this::onResponseData));
+    }
+
+    private void onResponseData(ByteBuf buffer) {
+        sentBytes += buffer.readableBytes();
+        if (responseBodyCapture != null) {
+            responseBodyCapture.capture(buffer);
+        }
+    }
+
+    public int getResponseStatus() {
+        return response.status().code();
     }
 
     public void setResponseStatus(HttpResponseStatus status) {
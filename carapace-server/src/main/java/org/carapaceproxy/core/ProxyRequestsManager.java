@@ -19,29 +19,61 @@
  */
 package org.carapaceproxy.core;
 
+import static org.carapaceproxy.core.HttpProxyServer.ACTIVE_STREAMS;
 import static org.carapaceproxy.server.mapper.MapResult.REDIRECT_PROTO_HTTP;
 import static org.carapaceproxy.server.mapper.MapResult.REDIRECT_PROTO_HTTPS;
+import static reactor.netty.Metrics.CONNECTION_PROVIDER_PREFIX;
+import static reactor.netty.Metrics.NAME;
+import static reactor.netty.Metrics.REMOTE_ADDRESS;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.common.annotations.VisibleForTesting;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.cookie.ClientCookieDecoder;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2SettingsFrame;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Metrics;
 import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -58,9 +90,12 @@ import org.carapaceproxy.server.mapper.CustomHeader;
 import org.carapaceproxy.utils.CarapaceLogger;
 import org.carapaceproxy.utils.HttpUtils;
 import org.carapaceproxy.utils.PrometheusUtils;
+import org.glassfish.jersey.internal.guava.ThreadFactoryBuilder;
 import org.reactivestreams.Publisher;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.netty.NettyPipeline;
+import reactor.netty.http.HttpProtocol;
 import reactor.netty.http.client.HttpClient;
 import reactor.netty.http.client.HttpClientResponse;
 import reactor.netty.resources.ConnectionProvider;
@@ -88,7 +123,15 @@ public class ProxyRequestsManager {
             "backends", "stuck_requests_total", "stuck requests, this requests will be killed"
     ).register();
 
+    private static final Counter RANGE_REQUESTS_COUNTER = PrometheusUtils.createCounter(
+            "cache", "range_requests_total", "range requests for cacheable contents", "result"
+    ).register();
+    private static final Counter.Child RANGE_PARTIAL_COUNTER = RANGE_REQUESTS_COUNTER.labels("partial");
+    private static final Counter.Child RANGE_NOT_SATISFIABLE_COUNTER = RANGE_REQUESTS_COUNTER.labels("not_satisfiable");
+    private static final Counter.Child RANGE_MISS_COUNTER = RANGE_REQUESTS_COUNTER.labels("miss");
+
     private static final Logger LOGGER = Logger.getLogger(ProxyRequestsManager.class.getName());
+    private static final String WARM_UP_THREAD_NAME = "connection-pool-warmup";
 
     private final HttpProxyServer parent;
     private final ConnectionsManager connectionsManager = new ConnectionsManager();
@@ -123,50 +166,171 @@ public class ProxyRequestsManager {
         }
         request.setAction(action);
 
+        RuntimeServerConfiguration configuration = parent.getCurrentConfiguration();
+        if (configuration.isAccessLogAdvancedEnabled() && configuration.getAccessLogAdvancedMatcher().matches(request)) {
+            request.captureBodies(configuration.getAccessLogAdvancedBodySize());
+        }
+
         if (LOGGER.isLoggable(Level.FINER)) {
             LOGGER.log(Level.FINER, "{0} Mapped {1} to {2}, userid {3}", new Object[]{this, request.getUri(), action, request.getUserId()});
         }
 
+        Publisher<Void> response;
         try {
-            switch (action.action) {
-                case NOTFOUND:
-                    return serveNotFoundMessage(request);
+            response = executeAction(request, action);
+        } catch (RuntimeException err) {
+            logRequest(request);
+            throw err;
+        }
+        // logged once the exchange is over, with the actual timings, status and size of the response
+        return Flux.from(response).doFinally(signal -> logRequest(request));
+    }
 
-                case INTERNAL_ERROR:
-                    return serveInternalErrorMessage(request);
+    private void logRequest(ProxyRequest request) {
+        parent.getRequestsLogger().logRequest(request);
+        RequestsLogger advancedLogger = parent.getAdvancedRequestsLogger();
+        if (request.isCapturingBodies() && advancedLogger != null) {
+            advancedLogger.logRequest(request);
+        }
+    }
 
-                case STATIC:
-                case ACME_CHALLENGE:
-                    return serveStaticMessage(request);
+    private Publisher<Void> executeAction(ProxyRequest request, MapResult action) {
+        switch (action.action) {
+            case NOTFOUND:
+                return serveNotFoundMessage(request);
 
-                case REDIRECT:
-                    return serveRedirect(request);
+            case INTERNAL_ERROR:
+                return serveInternalErrorMessage(request);
 
-                case PROXY: {
-                    RequestForwarder forwarder = new RequestForwarder(request, null);
-                    return forwarder.forward();
-                }
+            case STATIC:
+            case ACME_CHALLENGE:
+                return serveStaticMessage(request);
+
+            case REDIRECT:
+                return serveRedirect(request);
 
-                case CACHE: {
-                    ContentsCache.ContentSender cacheSender = parent.getCache().getCacheSender(request);
-                    if (cacheSender != null) {
+            case PROXY: {
+                RequestForwarder forwarder = new RequestForwarder(request, null, null);
+                return forwarder.forward();
+            }
+
+            case CACHE: {
+                ContentsCache.ContentSender cacheSender = parent.getCache().getCacheSender(request);
+                if (cacheSender != null && (!cacheSender.isStale() || cacheSender.isStaleWhileRevalidate())) {
+                    if (cacheSender.isStale()) {
+                        ContentsCache.ContentReceiver refreshReceiver = parent.getCache().startRevalidation(request, cacheSender);
+                        if (refreshReceiver != null) {
+                            refreshInBackground(request, cacheSender, refreshReceiver);
+                        }
+                    }
+                    request.setServedFromCache(true);
+                    return serveFromCache(request, cacheSender); // cached content
+                }
+                // expired content to be served only whether the backend fails (stale-if-error)
+                ContentsCache.ContentSender staleSender = cacheSender;
+                if (staleSender != null && !parent.getBackendHealthManager().isAvailable(action.host + ":" + action.port)) {
+                    ContentsCache.ContentSender fallback = parent.getCache().useStaleOnError(staleSender);
+                    if (fallback != null) {
                         request.setServedFromCache(true);
-                        return serveFromCache(request, cacheSender); // cached content
+                        return serveFromCache(request, fallback);
                     }
-                    ContentsCache.ContentReceiver cacheReceiver = parent.getCache().createCacheReceiver(request);
-                    if (cacheReceiver != null) { // cacheable
-                        // https://tools.ietf.org/html/rfc7234#section-4.3.4
-                        cleanRequestFromCacheValidators(request);
+                    staleSender = null;
+                }
+                if (request.getRequestHeaders().contains(HttpHeaderNames.RANGE)) {
+                    // partial contents are not cached: range misses are forwarded as they are
+                    RANGE_MISS_COUNTER.inc();
+                    ContentsCache.ContentReceiver fillReceiver = parent.getCache().startBackgroundFill(request);
+                    if (fillReceiver != null) {
+                        refreshInBackground(request, null, fillReceiver);
                     }
-                    RequestForwarder forwarder = new RequestForwarder(request, cacheReceiver);
+                    RequestForwarder forwarder = new RequestForwarder(request, null, staleSender);
                     return forwarder.forward();
                 }
+                ContentsCache.ContentReceiver cacheReceiver = parent.getCache().createCacheReceiver(request);
+                Mono<Boolean> inFlightRequest = cacheReceiver != null ? parent.getCache().joinInFlightRequest(cacheReceiver) : null;
+                if (inFlightRequest != null) {
+                    // collapsed forwarding: the content is being fetched by another request
+                    final ContentsCache.ContentSender inFlightStaleSender = staleSender;
+                    return inFlightRequest.flatMap(cached -> {
+                        ContentsCache.ContentSender inFlightSender = cached ? parent.getCache().getCacheSender(request) : null;
+                        if (inFlightSender != null && !inFlightSender.isStale()) {
+                            if (inFlightStaleSender != null) {
+                                inFlightStaleSender.release();
+                            }
+                            request.setServedFromCache(true);
+                            return Mono.from(serveFromCache(request, inFlightSender));
+                        }
+                        if (inFlightSender != null) {
+                            inFlightSender.release();
+                        }
+                        return Mono.from(forwardCacheableRequest(request, cacheReceiver, inFlightStaleSender)); // fallback
+                    });
+                }
+                return forwardCacheableRequest(request, cacheReceiver, staleSender);
+            }
+
+            default:
+                throw new IllegalStateException("Action " + action.action + " not supported");
+        }
+    }
 
-                default:
-                    throw new IllegalStateException("Action " + action.action + " not supported");
+    private Publisher<Void> forwardCacheableRequest(ProxyRequest request, ContentsCache.ContentReceiver cacheReceiver,
+                                                    ContentsCache.ContentSender staleSender) {
+        try {
+            if (cacheReceiver != null) { // cacheable
+                // https://tools.ietf.org/html/rfc7234#section-4.3.4
+                cleanRequestFromCacheValidators(request);
+            }
+            RequestForwarder forwarder = new RequestForwarder(request, cacheReceiver, staleSender);
+            return forwarder.forward();
+        } catch (RuntimeException err) {
+            if (cacheReceiver != null) {
+                cacheReceiver.abort(); // requests waiting for this content have to be forwarded
             }
-        } finally {
-            parent.getRequestsLogger().logRequest(request);
+            throw err;
+        }
+    }
+
+    /**
+     * Fetches a whole content without any client waiting for it: a content served stale (stale-while-revalidate) or
+     * one missed by a range request.
+     *
+     * @param request
+     * @param staleSender the content served stale, if any
+     * @param cacheReceiver
+     */
+    private void refreshInBackground(ProxyRequest request, ContentsCache.ContentSender staleSender, ContentsCache.ContentReceiver cacheReceiver) {
+        HttpHeaders headers = request.getRequestHeaders().copy();
+        cleanCacheValidators(headers);
+        headers.remove(HttpHeaderNames.RANGE);
+        boolean conditional = staleSender != null && staleSender.isRevalidable();
+        if (conditional) {
+            staleSender.addConditionalHeaders(headers);
+        }
+        try {
+            connectionsManager.getHttpClient(connectionsManager.apply(request), request.getAction().host, request.getAction().port)
+                    .headers(h -> h.add(headers))
+                    .request(request.getMethod())
+                    .uri(request.getUri())
+                    .response((resp, flux) -> {
+                        if (conditional && parent.getCache().revalidated(staleSender, cacheReceiver, resp)) {
+                            return flux.then(); // 304 Not Modified
+                        }
+                        if (!cacheReceiver.receivedFromRemote(resp)) { // e.g. backend failure, stale content kept
+                            return flux.then();
+                        }
+                        return flux.doOnNext(data -> cacheReceiver.receivedFromRemote(data))
+                                .doOnComplete(() -> parent.getCache().cacheContent(cacheReceiver))
+                                .then();
+                    })
+                    .doOnCancel(cacheReceiver::abort)
+                    .subscribe(null, err -> {
+                        LOGGER.log(Level.FINE, "Error refreshing stale content {0}: {1}", new Object[]{request.getUri(), err});
+                        cacheReceiver.abort();
+                    });
+        } catch (RuntimeException err) {
+            cacheReceiver.abort();
+            throw err;
         }
     }
 
@@ -302,13 +466,19 @@ public class ProxyRequestsManager {
 
         private final ProxyRequest request;
         private ContentsCache.ContentReceiver cacheReceiver;
+        // expired content to serve whether the backend fails
+        private ContentsCache.ContentSender staleSender;
+        // whether the request is a conditional request to the backend for the expired content
+        private final boolean conditional;
         private final EndpointStats endpointStats;
         private HttpClient client;
         private volatile boolean requestRunning;
 
-        private RequestForwarder(ProxyRequest request, ContentsCache.ContentReceiver cacheReceiver) {
+        private RequestForwarder(ProxyRequest request, ContentsCache.ContentReceiver cacheReceiver, ContentsCache.ContentSender staleSender) {
             this.request = request;
             this.cacheReceiver = cacheReceiver;
+            this.staleSender = staleSender;
+            this.conditional = cacheReceiver != null && staleSender != null && staleSender.isRevalidable();
             final String endpointHost = request.getAction().host;
             final int endpointPort = request.getAction().port;
             endpointStats = endpointsStats.computeIfAbsent(EndpointKey.make(endpointHost, endpointPort), EndpointStats::new);
@@ -330,15 +500,14 @@ public class ProxyRequestsManager {
                 CarapaceLogger.debug("Max connections for {0}: {1}", connectionConfig.getId(), connectionProvider.maxConnectionsPerHost());
             }
 
-            client = HttpClient.create(connectionProvider)
-                    .host(endpointHost)
-                    .port(endpointPort)
-                    .followRedirect(false) // clients has to request the redirect, not the proxy
-                    .compress(parent.getCurrentConfiguration().isRequestCompressionEnabled())
-                    .responseTimeout(Duration.ofMillis(connectionConfig.getStuckRequestTimeout()))
-                    .option(ChannelOption.SO_KEEPALIVE, true) // Enables TCP keepalive: TCP starts sending keepalive probes when a connection is idle for some time.
-                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectionConfig.getConnectTimeout())
-                    .headers(h -> h.add(request.getRequestHeaders().copy()))
+            // per-request settings only: the rest of the configuration is shared by all the requests to the same backend
+            client = connectionsManager.getHttpClient(connectionToEndpoint, endpointHost, endpointPort)
+                    .headers(h -> {
+                        h.add(request.getRequestHeaders().copy());
+                        if (conditional) {
+                            staleSender.addConditionalHeaders(h);
+                        }
+                    })
                     .doOnRequest((req, conn) -> {
                         PENDING_REQUESTS_GAUGE.inc();
                         requestRunning = true;
@@ -363,11 +532,33 @@ public class ProxyRequestsManager {
                     .uri(request.getUri())
                     .send(request.getRequestData()) // client request body
                     .response((resp, flux) -> { // endpoint response
+                        if (conditional && staleSender != null && parent.getCache().revalidated(staleSender, cacheReceiver, resp)) {
+                            // 304 Not Modified: the expired content has been refreshed in place
+                            ContentsCache.ContentSender revalidated = staleSender;
+                            staleSender = null;
+                            cacheReceiver = null;
+                            request.setServedFromCache(true);
+                            return flux.then().then(Mono.from(serveFromCache(request, revalidated)));
+                        }
+                        if (resp.status().code() >= 500) {
+                            ContentsCache.ContentSender fallback = useStaleOnError();
+                            if (fallback != null) {
+                                if (cacheReceiver != null) {
+                                    cacheReceiver.abort();
+                                    cacheReceiver = null;
+                                }
+                                request.setServedFromCache(true);
+                                return flux.then().then(Mono.from(serveFromCache(request, fallback)));
+                            }
+                        } else {
+                            releaseStaleContent();
+                        }
                         request.setResponseStatus(resp.status());
                         request.setResponseHeaders(resp.responseHeaders().copy()); // headers from endpoint to client
                         if (cacheReceiver != null && parent.getCache().isCacheable(resp) && cacheReceiver.receivedFromRemote(resp)) {
                             addCachedResponseHeaders(request);
-                        } else {
+                        } else if (cacheReceiver != null) {
+                            cacheReceiver.abort(); // requests waiting for this content have to be forwarded
                             cacheReceiver = null;
                         }
                         addCustomResponseHeaders(request, request.getAction().customHeaders);
@@ -381,12 +572,17 @@ public class ProxyRequestsManager {
                             if (cacheReceiver != null) {
                                 cacheReceiver.receivedFromRemote(data);
                             }
-                        }).doOnComplete(() -> parent.getCache().cacheContent(cacheReceiver)));
+                        }).doOnComplete(() -> {
+                            parent.getCache().cacheContent(cacheReceiver);
+                            cacheReceiver = null;
+                        }).doOnCancel(this::abortCacheReceiver)); // client gone
                     }).onErrorResume(err -> { // custom endpoint request/response error handling
+                abortCacheReceiver();
                 if (requestRunning) {
                     requestRunning = false;
                     PENDING_REQUESTS_GAUGE.dec();
                 }
+                ContentsCache.ContentSender fallback = useStaleOnError();
 
                 String endpoint = request.getAction().host + ":" + request.getAction().port;
                 if (err instanceof io.netty.handler.timeout.ReadTimeoutException) {
@@ -397,7 +593,7 @@ public class ProxyRequestsManager {
                                 endpoint, System.currentTimeMillis(), "Error: " + err
                         );
                     }
-                    return serveInternalErrorMessage(request);
+                    return fallback != null ? serveStaleContent(fallback) : serveInternalErrorMessage(request);
                 }
 
                 LOGGER.log(Level.SEVERE, "Error proxying request for endpoint {0}; request: {1};\nError: {2}", new Object[]{endpoint, request, err});
@@ -406,9 +602,42 @@ public class ProxyRequestsManager {
                             endpoint, System.currentTimeMillis(), "Error: " + err
                     );
                 }
-                return serveServiceNotAvailable(request);
+                return fallback != null ? serveStaleContent(fallback) : serveServiceNotAvailable(request);
+            }).doFinally(signal -> { // e.g. client gone, even before the backend responded
+                abortCacheReceiver();
+                releaseStaleContent();
             });
         }
+
+        /**
+         * Gives up caching the content, unless it has already been cached: requests waiting for it are forwarded.
+         */
+        private void abortCacheReceiver() {
+            ContentsCache.ContentReceiver receiver = cacheReceiver;
+            cacheReceiver = null;
+            if (receiver != null) {
+                receiver.abort();
+            }
+        }
+
+        private ContentsCache.ContentSender useStaleOnError() {
+            ContentsCache.ContentSender sender = staleSender;
+            staleSender = null;
+            return parent.getCache().useStaleOnError(sender);
+        }
+
+        private void releaseStaleContent() {
+            ContentsCache.ContentSender sender = staleSender;
+            staleSender = null;
+            if (sender != null) {
+                sender.release();
+            }
+        }
+
+        private Publisher<Void> serveStaleContent(ContentsCache.ContentSender sender) {
+            request.setServedFromCache(true);
+            return serveFromCache(request, sender);
+        }
     }
 
     private Publisher<Void> serveServiceNotAvailable(ProxyRequest request) {
@@ -417,7 +646,11 @@ public class ProxyRequestsManager {
     }
 
     private static void cleanRequestFromCacheValidators(ProxyRequest request) {
-        HttpHeaders headers = request.getRequestHeaders();
+        cleanCacheValidators(request.getRequestHeaders());
+        request.invalidateProperties();
+    }
+
+    private static void cleanCacheValidators(HttpHeaders headers) {
         headers.remove(HttpHeaderNames.IF_MATCH);
         headers.remove(HttpHeaderNames.IF_MODIFIED_SINCE);
         headers.remove(HttpHeaderNames.IF_NONE_MATCH);
@@ -436,7 +669,6 @@ public class ProxyRequestsManager {
 
     private Publisher<Void> serveFromCache(ProxyRequest request, ContentsCache.ContentSender cacheSender) {
         ContentsCache.CachedContent content = cacheSender.getCached();
-        HttpClientResponse response = content.getResponse();
 
         // content not modified
         long ifModifiedSince = request.getRequestHeaders().getTimeMillis(HttpHeaderNames.IF_MODIFIED_SINCE, -1);
@@ -447,36 +679,150 @@ public class ProxyRequestsManager {
             headers.set(HttpHeaderNames.EXPIRES, HttpUtils.formatDateHeader(new java.util.Date(content.getExpiresTs())));
             headers.add("X-Cached", "yes; ts=" + content.getCreationTs());
             request.setResponseHeaders(headers);
+            cacheSender.release(); // no body
             return request.send();
         } else { // content modified
-            request.setResponseStatus(response.status());
-            HttpHeaders headers = response.responseHeaders().copy();
+            ByteBuf body = cacheSender.getContent();
+            boolean whole = content.getStatus().code() == HttpResponseStatus.OK.code();
+            List<long[]> ranges = whole ? getByteRanges(request, content, body.readableBytes()) : null;
+            HttpHeaders headers = content.getHeaders().copy();
             headers.remove(HttpHeaderNames.EXPIRES);
-            headers.remove(HttpHeaderNames.ACCEPT_RANGES);
             headers.remove(HttpHeaderNames.ETAG);
+            if (whole) {
+                headers.set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+            } else {
+                headers.remove(HttpHeaderNames.ACCEPT_RANGES);
+            }
             headers.add("X-Cached", "yes; ts=" + content.getCreationTs());
+            if (cacheSender.isStale()) {
+                // https://tools.ietf.org/html/rfc7234#section-5.5.1
+                headers.add(HttpHeaderNames.WARNING, "110 - \"Response is Stale\"");
+            }
             headers.add(HttpHeaderNames.EXPIRES, HttpUtils.formatDateHeader(new java.util.Date(content.getExpiresTs())));
+            if (ranges == null) {
+                request.setResponseStatus(content.getStatus());
+            } else if (ranges.isEmpty()) {
+                RANGE_NOT_SATISFIABLE_COUNTER.inc();
+                request.setResponseStatus(HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+                headers.set(HttpHeaderNames.CONTENT_RANGE, "bytes */" + body.readableBytes());
+                headers.set(HttpHeaderNames.CONTENT_LENGTH, 0);
+                body.release();
+                body = Unpooled.EMPTY_BUFFER;
+            } else {
+                RANGE_PARTIAL_COUNTER.inc();
+                request.setResponseStatus(HttpResponseStatus.PARTIAL_CONTENT);
+                body = sliceByteRanges(body, ranges, headers);
+            }
             request.setResponseHeaders(headers);
             addCustomResponseHeaders(request, request.getAction().customHeaders);
             // cookies
-            request.setResponseCookies(response.cookies().values().stream() // cached cookies from endpoint to client
-                    .flatMap(Collection::stream)
+            request.setResponseCookies(content.getHeaders().getAll(HttpHeaderNames.SET_COOKIE).stream() // cached cookies from endpoint to client
+                    .map(ClientCookieDecoder.STRICT::decode)
+                    .filter(Objects::nonNull)
                     .collect(Collectors.toList())
             );
             // body
-            return request.sendResponseData(Flux.fromIterable(content.getChunks()).doOnNext(data -> { // response data
+            return request.sendResponseData(Mono.just(body).doOnNext(data -> { // response data
                 request.setLastActivity(System.currentTimeMillis());
-            }));
+            }).doOnDiscard(ByteBuf.class, ByteBuf::release)); // content not sent (e.g. client gone)
+        }
+    }
+
+    /**
+     * @param request
+     * @param content
+     * @param length
+     * @return the ranges requested, null whether the whole content has to be served
+     */
+    private static List<long[]> getByteRanges(ProxyRequest request, ContentsCache.CachedContent content, long length) {
+        if (!HttpMethod.GET.equals(request.getMethod())) {
+            return null;
+        }
+        HttpHeaders headers = request.getRequestHeaders();
+        String range = headers.get(HttpHeaderNames.RANGE);
+        if (range == null) {
+            return null;
         }
+        // https://tools.ietf.org/html/rfc7233#section-3.2
+        String ifRange = headers.get(HttpHeaderNames.IF_RANGE);
+        if (ifRange != null) {
+            if (ifRange.startsWith("\"")) { // strong entity-tag only
+                if (!ifRange.equals(content.getHeaders().get(HttpHeaderNames.ETAG))) {
+                    return null;
+                }
+            } else if (content.getLastModified() <= 0
+                    || headers.getTimeMillis(HttpHeaderNames.IF_RANGE, -1) != content.getLastModified()) {
+                return null;
+            }
+        }
+        return HttpUtils.parseByteRanges(range, length);
+    }
+
+    /**
+     * Slices the ranges of a content, with no copy.
+     *
+     * @param content the whole content, released
+     * @param ranges
+     * @param headers response headers, updated for the ranges
+     * @return the body of the 206 Partial Content response
+     */
+    private static ByteBuf sliceByteRanges(ByteBuf content, List<long[]> ranges, HttpHeaders headers) {
+        int length = content.readableBytes();
+        if (ranges.size() == 1) {
+            long[] range = ranges.get(0);
+            int size = (int) (range[1] - range[0] + 1);
+            headers.set(HttpHeaderNames.CONTENT_RANGE, "bytes " + range[0] + "-" + range[1] + "/" + length);
+            headers.set(HttpHeaderNames.CONTENT_LENGTH, size);
+            return content.slice(content.readerIndex() + (int) range[0], size); // the slice owns the reference
+        }
+        // https://tools.ietf.org/html/rfc7233#appendix-A
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        String contentType = headers.get(HttpHeaderNames.CONTENT_TYPE);
+        CompositeByteBuf body = Unpooled.compositeBuffer(ranges.size() * 2 + 1);
+        for (long[] range : ranges) {
+            StringBuilder part = new StringBuilder("\r\n--").append(boundary).append("\r\n");
+            if (contentType != null) {
+                part.append(HttpHeaderNames.CONTENT_TYPE).append(": ").append(contentType).append("\r\n");
+            }
+            part.append(HttpHeaderNames.CONTENT_RANGE).append(": bytes ")
+                    .append(range[0]).append('-').append(range[1]).append('/').append(length).append("\r\n\r\n");
+            body.addComponent(true, Unpooled.copiedBuffer(part, StandardCharsets.US_ASCII));
+            body.addComponent(true, content.retainedSlice(content.readerIndex() + (int) range[0], (int) (range[1] - range[0] + 1)));
+        }
+        body.addComponent(true, Unpooled.copiedBuffer("\r\n--" + boundary + "--\r\n", StandardCharsets.US_ASCII));
+        content.release(); // each slice has a reference of its own
+        headers.set(HttpHeaderNames.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+        headers.set(HttpHeaderNames.CONTENT_LENGTH, body.readableBytes());
+        return body;
     }
 
     public class ConnectionsManager implements AutoCloseable, Function<ProxyRequest, Map.Entry<ConnectionPoolConfiguration, ConnectionProvider>> {
 
         private final Map<ConnectionPoolConfiguration, ConnectionProvider> connectionPools = new ConcurrentHashMap<>();
         private volatile Map.Entry<ConnectionPoolConfiguration, ConnectionProvider> defaultConnectionPool;
-
+        private volatile DomainPoolSelector domainPoolSelector;
+        // prebuilt clients per connection provider and backend
+        private final Map<ConnectionProvider, Map<EndpointKey, HttpClient>> httpClients = new ConcurrentHashMap<>();
+        private volatile boolean requestCompressionEnabled;
+        // connections warm-up for pools with minIdleConnections
+        private ScheduledExecutorService warmUpTimer;
+        private final Map<ConnectionProvider, ScheduledFuture<?>> warmUpTasks = new ConcurrentHashMap<>();
+        // HTTP/2 connections per connection provider and backend, to limit and to count the streams
+        private final Map<ConnectionProvider, Map<EndpointKey, Http2Connections>> http2Connections = new ConcurrentHashMap<>();
+
+        /**
+         * Applies the new connection pools configuration: providers whose configuration did not change are kept
+         * together with their open connections, the other ones are disposed and rebuilt.
+         *
+         * @param newConfiguration
+         * @param newEndpoints
+         */
         public void reloadConfiguration(RuntimeServerConfiguration newConfiguration, Collection<BackendConfiguration> newEndpoints) {
-            close();
+            boolean compressionChanged = requestCompressionEnabled != newConfiguration.isRequestCompressionEnabled();
+            requestCompressionEnabled = newConfiguration.isRequestCompressionEnabled();
+            Set<EndpointKey> endpoints = newEndpoints.stream()
+                    .map(be -> EndpointKey.make(be.getHost(), be.getPort()))
+                    .collect(Collectors.toCollection(LinkedHashSet::new));
 
             // custom pools
             ArrayList<ConnectionPoolConfiguration> _connectionPools = new ArrayList<>(newConfiguration.getConnectionPools());
@@ -484,56 +830,247 @@ public class ProxyRequestsManager {
             // default pool
             _connectionPools.add(newConfiguration.getDefaultConnectionPool());
 
-            _connectionPools.forEach(connectionPool -> {
+            Map<ConnectionPoolConfiguration, ConnectionProvider> currentPools = new HashMap<>(connectionPools);
+            if (defaultConnectionPool != null) {
+                currentPools.put(defaultConnectionPool.getKey(), defaultConnectionPool.getValue());
+            }
+            // pools no more in use or changed: disposed before building the replacements, which register meters with the
+            // same ids
+            Map<ConnectionPoolConfiguration, ConnectionProvider> obsoletePools = new HashMap<>(currentPools);
+            obsoletePools.keySet().removeAll(_connectionPools.stream()
+                    .filter(ConnectionPoolConfiguration::isEnabled)
+                    .collect(Collectors.toSet())
+            );
+            currentPools.keySet().removeAll(obsoletePools.keySet());
+            disposeConnectionPools(obsoletePools);
+
+            Map<ConnectionPoolConfiguration, ConnectionProvider> newPools = new HashMap<>();
+            Map.Entry<ConnectionPoolConfiguration, ConnectionProvider> newDefaultPool = null;
+            for (ConnectionPoolConfiguration connectionPool : _connectionPools) {
                 if (!connectionPool.isEnabled()) {
-                    return;
+                    continue;
+                }
+                ConnectionProvider connectionProvider = currentPools.remove(connectionPool);
+                if (connectionProvider == null) {
+                    connectionProvider = newPools.get(connectionPool);
+                }
+                if (connectionProvider == null) {
+                    connectionProvider = createConnectionProvider(connectionPool, newEndpoints);
+                    LOGGER.log(Level.INFO, "Created connection provider for connectionpool {0}", connectionPool.getId());
                 }
 
-                ConnectionProvider.Builder builder = ConnectionProvider.builder(connectionPool.getId())
-                        .disposeTimeout(Duration.ofMillis(connectionPool.getDisposeTimeout()));
-
-                // max connections per endpoint limit setup
-                newEndpoints.forEach(be -> {
-                    CarapaceLogger.debug("Setup max connections per endpoint {0}:{1} = {2} for connectionpool {3}",
-                            be.getHost(), be.getPort() + "", connectionPool.getMaxConnectionsPerEndpoint(), connectionPool.getId()
-                    );
-                    builder.forRemoteHost(InetSocketAddress.createUnresolved(be.getHost(), be.getPort()), spec -> {
-                        spec.maxConnections(connectionPool.getMaxConnectionsPerEndpoint());
-                        spec.pendingAcquireTimeout(Duration.ofMillis(connectionPool.getBorrowTimeout()));
-                        spec.maxIdleTime(Duration.ofMillis(connectionPool.getIdleTimeout()));
-                        spec.evictInBackground(Duration.ofMillis(connectionPool.getIdleTimeout() * 2));
-                        spec.lifo();
-                        spec.metrics(true);
+                // keep templates of the backends still configured
+                Map<EndpointKey, HttpClient> clients = httpClients.computeIfAbsent(connectionProvider, k -> new ConcurrentHashMap<>());
+                if (compressionChanged) {
+                    clients.clear();
+                } else {
+                    clients.keySet().retainAll(endpoints);
+                }
+                if (connectionPool.isHttp2()) {
+                    Map<EndpointKey, Http2Connections> connections = http2Connections.computeIfAbsent(connectionProvider, k -> new ConcurrentHashMap<>());
+                    connections.entrySet().removeIf(entry -> {
+                        if (endpoints.contains(entry.getKey())) {
+                            return false;
+                        }
+                        entry.getValue().unregister();
+                        return true;
                     });
-                });
+                }
+                for (EndpointKey endpoint : endpoints) {
+                    ConnectionProvider provider = connectionProvider;
+                    clients.computeIfAbsent(endpoint, k -> createHttpClient(connectionPool, provider, k.getHost(), k.getPort()));
+                }
 
                 if (connectionPool.getId().equals("*")) {
-                    defaultConnectionPool = Map.entry(connectionPool, builder.build());
+                    newDefaultPool = Map.entry(connectionPool, connectionProvider);
                 } else {
-                    connectionPools.put(connectionPool, builder.build());
+                    newPools.put(connectionPool, connectionProvider);
+                }
+            }
+
+            // custom pools are matched in configuration order, the default one is the fallback
+            List<Map.Entry<Pattern, Map.Entry<ConnectionPoolConfiguration, ConnectionProvider>>> domainPools = new ArrayList<>();
+            newConfiguration.getConnectionPools().forEach(connectionPool -> {
+                ConnectionProvider connectionProvider = newPools.get(connectionPool);
+                if (connectionProvider != null) {
+                    domainPools.add(Map.entry(Pattern.compile(connectionPool.getDomain()), Map.entry(connectionPool, connectionProvider)));
                 }
             });
+            connectionPools.keySet().retainAll(newPools.keySet());
+            connectionPools.putAll(newPools);
+            defaultConnectionPool = newDefaultPool;
+            domainPoolSelector = new DomainPoolSelector(domainPools, newDefaultPool);
+
+            // (re)start warm-up, as backends may have changed
+            newPools.forEach((connectionPool, connectionProvider) -> scheduleWarmUp(connectionPool, connectionProvider, newEndpoints));
+            if (newDefaultPool != null) {
+                scheduleWarmUp(newDefaultPool.getKey(), newDefaultPool.getValue(), newEndpoints);
+            }
+        }
+
+        private void disposeConnectionPools(Map<ConnectionPoolConfiguration, ConnectionProvider> pools) {
+            if (pools.isEmpty()) {
+                return;
+            }
+            List<Meter> meters = parent.getConnectionPoolsMeters(pools.keySet().stream()
+                    .map(ConnectionPoolConfiguration::getId)
+                    .collect(Collectors.toSet())
+            );
+            parent.removeMeters(meters);
+            pools.forEach((connectionPool, connectionProvider) -> {
+                LOGGER.log(Level.INFO, "Disposing connection provider for connectionpool {0}", connectionPool.getId());
+                httpClients.remove(connectionProvider);
+                http2Connections.remove(connectionProvider); // metrics dropped together with the pool ones
+                cancelWarmUp(connectionProvider);
+                connectionProvider.dispose(); // graceful shutdown according to disposeTimeout
+            });
+        }
+
+        private synchronized void scheduleWarmUp(ConnectionPoolConfiguration connectionPool, ConnectionProvider connectionProvider,
+                                                 Collection<BackendConfiguration> endpoints) {
+            cancelWarmUp(connectionProvider);
+            if (connectionPool.getMinIdleConnections() <= 0 || endpoints.isEmpty()) {
+                return;
+            }
+            if (warmUpTimer == null) {
+                warmUpTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat(WARM_UP_THREAD_NAME).setDaemon(true).build());
+            }
+            // idle connections are evicted after idleTimeout: top them up before
+            long period = Math.max(connectionPool.getIdleTimeout() / 2, 1_000);
+            List<BackendConfiguration> backends = new ArrayList<>(endpoints);
+            warmUpTasks.put(connectionProvider, warmUpTimer.scheduleWithFixedDelay(
+                    () -> warmUp(connectionPool, connectionProvider, backends), 0, period, TimeUnit.MILLISECONDS
+            ));
+            LOGGER.log(Level.INFO, "Scheduled warm-up of {0} idle connections per endpoint for connectionpool {1}, every {2} ms",
+                    new Object[]{connectionPool.getMinIdleConnections(), connectionPool.getId(), period}
+            );
+        }
+
+        private void cancelWarmUp(ConnectionProvider connectionProvider) {
+            ScheduledFuture<?> task = warmUpTasks.remove(connectionProvider);
+            if (task != null) {
+                task.cancel(false);
+            }
+        }
+
+        private void warmUp(ConnectionPoolConfiguration connectionPool, ConnectionProvider connectionProvider, List<BackendConfiguration> backends) {
+            int minIdleConnections = connectionPool.getMinIdleConnections();
+            Map<EndpointKey, Map<String, HttpProxyServer.ConnectionPoolStats>> stats = parent.getConnectionPoolsStats();
+            for (BackendConfiguration backend : backends) {
+                EndpointKey key = EndpointKey.make(backend.getHost(), backend.getPort());
+                HttpProxyServer.ConnectionPoolStats endpointStats = stats.getOrDefault(key, Collections.emptyMap()).get(connectionPool.getId());
+                int idleConnections = endpointStats != null ? endpointStats.getIdleConnections() : 0;
+                if (idleConnections >= minIdleConnections) {
+                    continue;
+                }
+                // concurrent requests: idle connections are reused and the missing ones are opened
+                HttpClient client = getHttpClient(Map.entry(connectionPool, connectionProvider), backend.getHost(), backend.getPort());
+                String uri = backend.getProbePath().isEmpty() ? "/" : backend.getProbePath();
+                Flux.range(0, minIdleConnections)
+                        .flatMap(i -> client.request(HttpMethod.HEAD).uri(uri).response(), minIdleConnections)
+                        .subscribe(
+                                resp -> {},
+                                err -> LOGGER.log(Level.FINE, "Warm-up of connectionpool {0} to {1} failed: {2}", new Object[]{connectionPool.getId(), key, err})
+                        );
+            }
+        }
+
+        private ConnectionProvider createConnectionProvider(ConnectionPoolConfiguration connectionPool, Collection<BackendConfiguration> endpoints) {
+            ConnectionProvider.Builder builder = ConnectionProvider.builder(connectionPool.getId())
+                    .disposeTimeout(Duration.ofMillis(connectionPool.getDisposeTimeout()));
+
+            // limits for backends added after the creation of the provider
+            builder.maxConnections(connectionPool.getMaxConnectionsPerEndpoint())
+                    .pendingAcquireTimeout(Duration.ofMillis(connectionPool.getBorrowTimeout()))
+                    .maxIdleTime(Duration.ofMillis(connectionPool.getIdleTimeout()))
+                    .evictInBackground(Duration.ofMillis(connectionPool.getIdleTimeout() * 2))
+                    .lifo()
+                    .metrics(true);
+
+            // max connections per endpoint limit setup
+            endpoints.forEach(be -> {
+                CarapaceLogger.debug("Setup max connections per endpoint {0}:{1} = {2} for connectionpool {3}",
+                        be.getHost(), be.getPort() + "", connectionPool.getMaxConnectionsPerEndpoint(), connectionPool.getId()
+                );
+                builder.forRemoteHost(InetSocketAddress.createUnresolved(be.getHost(), be.getPort()), spec -> {
+                    spec.maxConnections(connectionPool.getMaxConnectionsPerEndpoint());
+                    spec.pendingAcquireTimeout(Duration.ofMillis(connectionPool.getBorrowTimeout()));
+                    spec.maxIdleTime(Duration.ofMillis(connectionPool.getIdleTimeout()));
+                    spec.evictInBackground(Duration.ofMillis(connectionPool.getIdleTimeout() * 2));
+                    spec.lifo();
+                    spec.metrics(true);
+                });
+            });
+
+            return builder.build();
+        }
+
+        /**
+         * Client template for the given pool and backend, to be completed with per-request settings (headers, cookies,
+         * callbacks and uri).
+         *
+         * @param connectionPool as returned by {@link #apply(org.carapaceproxy.core.ProxyRequest)}
+         * @param host
+         * @param port
+         * @return the client
+         */
+        public HttpClient getHttpClient(Map.Entry<ConnectionPoolConfiguration, ConnectionProvider> connectionPool, String host, int port) {
+            Map<EndpointKey, HttpClient> clients = httpClients.get(connectionPool.getValue());
+            HttpClient client = clients != null
+                    ? clients.computeIfAbsent(EndpointKey.make(host, port), key -> createHttpClient(connectionPool.getKey(), connectionPool.getValue(), host, port))
+                    : createHttpClient(connectionPool.getKey(), connectionPool.getValue(), host, port); // pool disposed by a configuration reload in the meantime
+            boolean compress = parent.getCurrentConfiguration().isRequestCompressionEnabled();
+            return compress == requestCompressionEnabled ? client : client.compress(compress);
+        }
+
+        private HttpClient createHttpClient(ConnectionPoolConfiguration connectionConfig, ConnectionProvider connectionProvider, String host, int port) {
+            HttpClient client = HttpClient.create(connectionProvider)
+                    .host(host)
+                    .port(port)
+                    .followRedirect(false) // clients has to request the redirect, not the proxy
+                    .compress(requestCompressionEnabled)
+                    .responseTimeout(Duration.ofMillis(connectionConfig.getStuckRequestTimeout()))
+                    .option(ChannelOption.SO_KEEPALIVE, true) // Enables TCP keepalive: TCP starts sending keepalive probes when a connection is idle for some time.
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectionConfig.getConnectTimeout());
+            if (connectionConfig.isHttp2()) {
+                // requests multiplexed over up to maxConnectionsPerEndpoint connections
+                Map<EndpointKey, Http2Connections> endpoints = http2Connections.get(connectionProvider);
+                Http2Connections connections = endpoints != null
+                        ? endpoints.computeIfAbsent(EndpointKey.make(host, port), key -> new Http2Connections(connectionConfig, key))
+                        : new Http2Connections(connectionConfig, null); // pool disposed by a configuration reload in the meantime
+                client = client.protocol(HttpProtocol.H2C)
+                        .http2Settings(settings -> settings.maxConcurrentStreams(connectionConfig.getMaxConcurrentStreams()))
+                        .doOnChannelInit((observer, channel, remoteAddress) -> connections.add(channel));
+            }
+            return client;
         }
 
         @Override
         public void close() {
+            warmUpTasks.keySet().forEach(this::cancelWarmUp);
+            synchronized (this) {
+                if (warmUpTimer != null) {
+                    warmUpTimer.shutdownNow();
+                    warmUpTimer = null;
+                }
+            }
             connectionPools.values().forEach(connectionProvider -> {
                 connectionProvider.dispose(); // graceful shutdown according to disposeTimeout
             });
             connectionPools.clear();
+            httpClients.clear();
+            http2Connections.clear();
 
             if (defaultConnectionPool != null) {
                 defaultConnectionPool.getValue().dispose(); // graceful shutdown according to disposeTimeout
+                defaultConnectionPool = null;
             }
         }
 
         @Override
         public Map.Entry<ConnectionPoolConfiguration, ConnectionProvider> apply(ProxyRequest request) {
             String hostName = request.getRequestHostname();
-            Map.Entry<ConnectionPoolConfiguration, ConnectionProvider> selectedPool = connectionPools.entrySet().stream()
-                    .filter(e -> Pattern.matches(e.getKey().getDomain(), hostName))
-                    .findFirst()
-                    .orElse(defaultConnectionPool);
+            Map.Entry<ConnectionPoolConfiguration, ConnectionProvider> selectedPool = domainPoolSelector.select(hostName != null ? hostName : "");
 
             CarapaceLogger.debug("Using connection {0} for domain {1}", selectedPool.getKey().getId(), hostName);
 
@@ -541,6 +1078,108 @@ public class ProxyRequestsManager {
         }
     }
 
+    /**
+     * HTTP/2 connections to a backend: the streams opened on each connection are limited to the configured
+     * maxConcurrentStreams (or to the lower limit advertised by the backend) and the active ones are exposed as a
+     * connection provider metric.
+     */
+    private static final class Http2Connections {
+
+        private final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+        private final int maxConcurrentStreams;
+        private final io.micrometer.core.instrument.Gauge activeStreams;
+
+        Http2Connections(ConnectionPoolConfiguration connectionPool, EndpointKey endpoint) {
+            this.maxConcurrentStreams = connectionPool.getMaxConcurrentStreams();
+            this.activeStreams = endpoint == null ? null : io.micrometer.core.instrument.Gauge
+                    .builder(CONNECTION_PROVIDER_PREFIX + ACTIVE_STREAMS, this, Http2Connections::getActiveStreams)
+                    .tags(NAME, connectionPool.getId(), REMOTE_ADDRESS, endpoint.getHost() + ":" + endpoint.getPort())
+                    .register(Metrics.globalRegistry);
+        }
+
+        void add(Channel channel) {
+            if (channel.pipeline().get(Http2FrameCodec.class) == null) {
+                return;
+            }
+            channels.add(channel); // closed channels are removed by the group
+            channel.pipeline().addAfter(NettyPipeline.HttpCodec, "h2StreamsLimiter", new ChannelInboundHandlerAdapter() {
+                @Override
+                public void handlerAdded(ChannelHandlerContext ctx) {
+                    limitStreams(ctx);
+                }
+
+                @Override
+                public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                    if (msg instanceof Http2SettingsFrame) {
+                        // the limit advertised by the backend has just been applied
+                        limitStreams(ctx);
+                    }
+                    ctx.fireChannelRead(msg);
+                }
+            });
+        }
+
+        private void limitStreams(ChannelHandlerContext ctx) {
+            Http2FrameCodec codec = ctx.pipeline().get(Http2FrameCodec.class);
+            if (codec != null) {
+                Http2Connection.Endpoint<?> local = codec.connection().local();
+                local.maxActiveStreams(Math.min(local.maxActiveStreams(), maxConcurrentStreams));
+            }
+        }
+
+        int getActiveStreams() {
+            int res = 0;
+            for (Channel channel : channels) {
+                Http2FrameCodec codec = channel.pipeline().get(Http2FrameCodec.class);
+                if (codec != null) {
+                    res += codec.connection().numActiveStreams();
+                }
+            }
+            return res;
+        }
+
+        void unregister() {
+            if (activeStreams != null) {
+                Metrics.globalRegistry.remove(activeStreams);
+            }
+        }
+    }
+
+    /**
+     * Resolution of the connection pool to use for a request hostname: domain patterns are evaluated in priority order
+     * and the outcome is memoized for the most recent hostnames.
+     */
+    private static final class DomainPoolSelector {
+
+        private static final int MAX_CACHED_HOSTNAMES = 10_000;
+
+        private final List<Map.Entry<Pattern, Map.Entry<ConnectionPoolConfiguration, ConnectionProvider>>> domainPools;
+        private final Map.Entry<ConnectionPoolConfiguration, ConnectionProvider> defaultPool;
+        private final Cache<String, Map.Entry<ConnectionPoolConfiguration, ConnectionProvider>> cache = Caffeine.newBuilder()
+                .maximumSize(MAX_CACHED_HOSTNAMES)
+                .build();
+
+        private DomainPoolSelector(
+                List<Map.Entry<Pattern, Map.Entry<ConnectionPoolConfiguration, ConnectionProvider>>> domainPools,
+                Map.Entry<ConnectionPoolConfiguration, ConnectionProvider> defaultPool) {
+            this.domainPools = domainPools;
+            this.defaultPool = defaultPool;
+        }
+
+        private Map.Entry<ConnectionPoolConfiguration, ConnectionProvider> select(String hostName) {
+            return cache.get(hostName, this::match);
+        }
+
+        private Map.Entry<ConnectionPoolConfiguration, ConnectionProvider> match(String hostName) {
+            for (Map.Entry<Pattern, Map.Entry<ConnectionPoolConfiguration, ConnectionProvider>> domainPool : domainPools) {
+                if (domainPool.getKey().matcher(hostName).matches()) {
+                    return domainPool.getValue();
+                }
+            }
+            return defaultPool;
+        }
+    }
+
     @VisibleForTesting
     public ConnectionsManager getConnectionsManager() {
         return connectionsManager;
@@ -21,35 +21,40 @@ package org.carapaceproxy.core;
 
 import com.google.common.annotations.VisibleForTesting;
 import io.netty.handler.codec.http.HttpHeaderNames;
-import java.io.BufferedWriter;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.sql.Timestamp;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Locale;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.GZIPOutputStream;
 import org.carapaceproxy.server.cache.ContentsCache;
-import org.stringtemplate.v4.NoIndentWriter;
-import org.stringtemplate.v4.ST;
-import org.stringtemplate.v4.STWriter;
+import org.carapaceproxy.server.mapper.MapResult;
+import org.carapaceproxy.server.mapper.requestmatcher.MatchingProperty;
+import org.carapaceproxy.utils.PrometheusUtils;
+import org.carapaceproxy.utils.RingBuffer;
 
 /**
  *
@@ -59,9 +64,52 @@ public class RequestsLogger implements Runnable, Closeable {
 
     private static final Logger LOG = Logger.getLogger(ContentsCache.class.getName());
 
-    private final BlockingQueue<Entry> queue;
+    private static final Counter DROPPED_ENTRIES_COUNTER = PrometheusUtils.createCounter(
+            "accesslog", "dropped_entries_total", "requests not logged to access log", "logger", "reason"
+    ).register();
+    private static final Gauge QUEUE_SIZE_GAUGE = PrometheusUtils.createGauge(
+            "accesslog", "queue_size", "entries waiting to be written to access log", "logger"
+    ).register();
+
+    // max entries written at each cycle, before checking flush and rotation
+    private static final int MAX_BATCH_SIZE = 4096;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int COMPRESSION_BUFFER_SIZE = 256 * 1024;
+    private static final String COMPRESSED_FILE_SUFFIX = ".gzip";
+    private static final DateTimeFormatter ROTATED_FILE_DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss")
+            .withZone(ZoneId.systemDefault());
+
+    /**
+     * What to do with the requests to log when the queue is full (accesslog.backpressure.policy).
+     */
+    public enum BackpressurePolicy {
+        /**
+         * Entries are discarded.
+         */
+        DROP,
+        /**
+         * Once the queue is half full, only one entry out of accesslog.backpressure.samplerate is retained.
+         */
+        SAMPLE,
+        /**
+         * The caller waits up to accesslog.backpressure.blocktimeout for a free slot: it stalls the event loop.
+         */
+        BLOCK;
+
+        public static BackpressurePolicy parse(String policy) {
+            return valueOf(policy.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private final RingBuffer<Entry> queue;
+    // advanced access log: requests with captured bodies only, on their own file
+    private final boolean advanced;
+    private final Gauge.Child queueSizeGauge;
+    private final String loggerLabel;
 
     private volatile RuntimeServerConfiguration currentConfiguration;
+    private volatile AccessLogTemplate template;
+    private volatile BackpressurePolicy backpressurePolicy;
     private volatile RuntimeServerConfiguration newConfiguration = null;
     private volatile boolean closeRequested = false;
     private volatile boolean closed = false;
@@ -69,10 +117,32 @@ public class RequestsLogger implements Runnable, Closeable {
     private boolean started = false;
     private final Thread thread;
 
-    private OutputStream os = null;
-    private OutputStreamWriter osw = null;
-    private BufferedWriter bw = null;
-    private STWriter stw = null;
+    private FileChannel channel = null;
+    // used by the logger thread only: entries are encoded into the buffer, which is written to the file when full or
+    // at flush
+    private AccessLogEncoder encoder;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final AccessLogEncoder.Output output = new AccessLogEncoder.Output() {
+        @Override
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        @Override
+        public void drain() throws IOException {
+            writeBuffer();
+        }
+    };
+    private long writtenBytes; // size of the current file
+    private long nextRotationTs; // 0 for no time based rotation
+
+    // rotated files are compressed in background
+    private final ExecutorService compressionExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "accesslog-compression");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
 
     public long lastFlush = 0;
 
@@ -80,23 +150,54 @@ public class RequestsLogger implements Runnable, Closeable {
     private boolean breakRunForTests = false;
 
     public RequestsLogger(RuntimeServerConfiguration currentConfiguration) {
+        this(currentConfiguration, false);
+    }
+
+    /**
+     * @param currentConfiguration
+     * @param advanced whether to write the advanced access log (accesslog.advanced.path), with the captured bodies
+     */
+    public RequestsLogger(RuntimeServerConfiguration currentConfiguration, boolean advanced) {
+        this.advanced = advanced;
+        this.loggerLabel = advanced ? "advanced" : "main";
+        this.queueSizeGauge = QUEUE_SIZE_GAUGE.labels(loggerLabel);
         this.currentConfiguration = currentConfiguration;
-        this.queue = new ArrayBlockingQueue<>(this.currentConfiguration.getAccessLogMaxQueueCapacity());
+        this.template = AccessLogTemplate.compile(currentConfiguration.getAccessLogFormat(), currentConfiguration.getAccessLogTimestampFormat());
+        this.backpressurePolicy = BackpressurePolicy.parse(currentConfiguration.getAccessLogBackpressurePolicy());
+        this.encoder = advanced ? new AccessLogEncoder.Advanced() : AccessLogEncoder.create(currentConfiguration.getAccessLogOutput());
+        this.queue = new RingBuffer<>(this.currentConfiguration.getAccessLogMaxQueueCapacity());
         this.thread = new Thread(this);
     }
 
+    private String getAccessLogPath(RuntimeServerConfiguration configuration) {
+        return advanced ? configuration.getAccessLogAdvancedPath() : configuration.getAccessLogPath();
+    }
+
     private void ensureAccessLogFileOpened() throws IOException {
-        if (os != null) {
+        if (channel != null) {
             return;
         }
 
         if (verbose) {
-            LOG.log(Level.INFO, "Opening file: {0}", currentConfiguration.getAccessLogPath());
+            LOG.log(Level.INFO, "Opening file: {0}", getAccessLogPath(currentConfiguration));
+        }
+        Path path = Paths.get(getAccessLogPath(currentConfiguration));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        // from now on the size is tracked in memory
+        writtenBytes = channel.size();
+        // a file left by a previous run could be already due for rotation
+        nextRotationTs = computeNextRotationTs(writtenBytes > 0 ? Files.getLastModifiedTime(path).toMillis() : System.currentTimeMillis());
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                writtenBytes += channel.write(buffer);
+            }
+        } finally {
+            buffer.clear();
         }
-        os = new FileOutputStream(currentConfiguration.getAccessLogPath(), true);
-        osw = new OutputStreamWriter(os, StandardCharsets.UTF_8);
-        bw = new BufferedWriter(osw);
-        stw = new NoIndentWriter(bw);
     }
 
     @VisibleForTesting
@@ -104,14 +205,8 @@ public class RequestsLogger implements Runnable, Closeable {
         if (verbose) {
             LOG.log(Level.INFO, "Flushed");
         }
-        if (bw != null) {
-            bw.flush();
-        }
-        if (osw != null) {
-            osw.flush();
-        }
-        if (os != null) {
-            os.flush();
+        if (channel != null && buffer.position() > 0) {
+            writeBuffer();
         }
         lastFlush = System.currentTimeMillis();
     }
@@ -120,58 +215,88 @@ public class RequestsLogger implements Runnable, Closeable {
         if (verbose) {
             LOG.log(Level.INFO, "Closing file");
         }
-        if (stw != null) {
-            stw = null;
-        }
-        if (bw != null) {
-            bw.close();
-            bw = null;
-        }
-        if (osw != null) {
-            osw.close();
-            osw = null;
+        if (channel == null) {
+            return;
         }
-        if (os != null) {
-            os.close();
-            os = null;
+        try {
+            if (buffer.position() > 0) {
+                writeBuffer();
+            }
+        } finally {
+            channel.close();
+            channel = null;
         }
     }
 
     @VisibleForTesting
     void rotateAccessLogFile() throws IOException {
-        String accesslogPath = this.currentConfiguration.getAccessLogPath();
+        if (channel == null) {
+            return;
+        }
         long maxSize = this.currentConfiguration.getAccessLogMaxSize();
-        DateFormat date = new SimpleDateFormat("yyyy-MM-dd-ss");
-        String newAccessLogName = accesslogPath + "-" + date.format(new Date());
+        long now = System.currentTimeMillis();
+        boolean maxSizeReached = maxSize > 0 && writtenBytes >= maxSize;
+        boolean intervalElapsed = nextRotationTs > 0 && now >= nextRotationTs;
+        if (!maxSizeReached && !intervalElapsed) {
+            return;
+        }
+        if (writtenBytes == 0) {
+            // nothing to rotate
+            nextRotationTs = computeNextRotationTs(now);
+            return;
+        }
 
+        String accesslogPath = getAccessLogPath(this.currentConfiguration);
         Path currentAccessLogPath = Paths.get(accesslogPath);
-        Path newAccessLogPath = Paths.get(newAccessLogName);
-        FileChannel logFileChannel = FileChannel.open(currentAccessLogPath);
-
+        Path newAccessLogPath = Paths.get(accesslogPath + "-" + ROTATED_FILE_DATE_FORMATTER.format(Instant.ofEpochMilli(now)));
+        for (int i = 1; Files.exists(newAccessLogPath) || Files.exists(Paths.get(newAccessLogPath + COMPRESSED_FILE_SUFFIX)); i++) {
+            newAccessLogPath = Paths.get(accesslogPath + "-" + ROTATED_FILE_DATE_FORMATTER.format(Instant.ofEpochMilli(now)) + "." + i);
+        }
+        if (maxSizeReached) {
+            LOG.log(Level.INFO, "Maximum access log size reached. file: {0} , Size: {1} , maxSize: {2}", new Object[]{accesslogPath, writtenBytes, maxSize});
+        } else {
+            LOG.log(Level.INFO, "Access log rotation interval elapsed. file: {0} , Size: {1}", new Object[]{accesslogPath, writtenBytes});
+        }
+        // pending rows go to the rotated file
+        closeAccessLogFile();
+        // File opening will be retried at next cycle start
         try {
-            long currentSize = logFileChannel.size();
-            if (currentSize >= maxSize && maxSize > 0) {
-                LOG.log(Level.INFO, "Maximum access log size reached. file: {0} , Size: {1} , maxSize: {2}", new Object[]{accesslogPath, currentSize, maxSize});
-                Files.move(currentAccessLogPath, newAccessLogPath, StandardCopyOption.ATOMIC_MOVE);
-                closeAccessLogFile();
-                // File opening will be retried at next cycle start
-
-                //Zip old file
-                gzipFile(newAccessLogName, newAccessLogName + ".gzip", true);
-            }
+            Files.move(currentAccessLogPath, newAccessLogPath, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e) {
-            LOG.log(Level.SEVERE, "Error: Unable to rename file {0} in {1}: " + e, new Object[]{accesslogPath, newAccessLogName});
+            LOG.log(Level.SEVERE, "Error: Unable to rename file {0} in {1}: " + e, new Object[]{accesslogPath, newAccessLogPath});
+            return;
         }
+
+        // Zip old file and apply retention, without stalling the writes
+        String rotated = newAccessLogPath.toString();
+        compressionExecutor.execute(() -> {
+            gzipFile(rotated, rotated + COMPRESSED_FILE_SUFFIX, true);
+            applyRetention(currentAccessLogPath);
+        });
+    }
+
+    /**
+     * Start of the next rotation period, aligned to the local time (e.g. at midnight for daily rotations).
+     *
+     * @return 0 whether time based rotation is disabled
+     */
+    private long computeNextRotationTs(long ts) {
+        long interval = currentConfiguration.getAccessLogRotationInterval();
+        if (interval <= 0) {
+            return 0;
+        }
+        long offset = TimeZone.getDefault().getOffset(ts);
+        return Math.floorDiv(ts + offset, interval) * interval + interval - offset;
     }
 
     private void gzipFile(String source_filepath, String destination_zip_filepath, boolean deleteSource) {
-        byte[] buffer = new byte[1024];
+        byte[] buffer = new byte[COMPRESSION_BUFFER_SIZE];
         File source = new File(source_filepath);
         File dest = new File(destination_zip_filepath);
 
         try {
             FileOutputStream fileOutputStream = new FileOutputStream(dest);
-            try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(fileOutputStream)) {
+            try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(fileOutputStream, COMPRESSION_BUFFER_SIZE)) {
                 try (FileInputStream fileInput = new FileInputStream(source)) {
                     int bytes_read;
 
@@ -195,6 +320,37 @@ public class RequestsLogger implements Runnable, Closeable {
         }
     }
 
+    /**
+     * Deletes the oldest rotated files, beyond accesslog.retention.maxfiles or older than accesslog.retention.maxage.
+     */
+    private void applyRetention(Path accessLogPath) {
+        RuntimeServerConfiguration configuration = currentConfiguration;
+        int maxFiles = configuration.getAccessLogRetentionMaxFiles();
+        long maxAge = configuration.getAccessLogRetentionMaxAge();
+        if (maxFiles <= 0 && maxAge <= 0) {
+            return;
+        }
+        Path dir = accessLogPath.toAbsolutePath().getParent();
+        String prefix = accessLogPath.getFileName() + "-";
+        File[] rotated = dir.toFile().listFiles((d, name) -> name.startsWith(prefix) && name.endsWith(COMPRESSED_FILE_SUFFIX));
+        if (rotated == null) {
+            return;
+        }
+        // newest first
+        Arrays.sort(rotated, Comparator.comparingLong(File::lastModified).reversed());
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < rotated.length; i++) {
+            File file = rotated[i];
+            if ((maxFiles > 0 && i >= maxFiles) || (maxAge > 0 && now - file.lastModified() > maxAge)) {
+                if (file.delete()) {
+                    LOG.log(Level.INFO, "Deleted rotated access log {0}", file);
+                } else {
+                    LOG.log(Level.SEVERE, "Cannot delete rotated access log {0}", file);
+                }
+            }
+        }
+    }
+
     public void reloadConfiguration(RuntimeServerConfiguration newConfiguration) {
         this.newConfiguration = newConfiguration;
     }
@@ -207,12 +363,23 @@ public class RequestsLogger implements Runnable, Closeable {
         if (verbose) {
             LOG.log(Level.INFO, "Reloading conf");
         }
-        String oldAccessLogPath = this.currentConfiguration.getAccessLogPath();
+        String oldAccessLogPath = getAccessLogPath(this.currentConfiguration);
         if (newConfiguration.getAccessLogMaxQueueCapacity() != currentConfiguration.getAccessLogMaxQueueCapacity()) {
             LOG.log(Level.SEVERE, "accesslog.queue.maxcapacity hot reload is not currently supported");
         }
+        if (!template.isCompiledFrom(newConfiguration.getAccessLogFormat(), newConfiguration.getAccessLogTimestampFormat())) {
+            this.template = AccessLogTemplate.compile(newConfiguration.getAccessLogFormat(), newConfiguration.getAccessLogTimestampFormat());
+        }
+        this.backpressurePolicy = BackpressurePolicy.parse(newConfiguration.getAccessLogBackpressurePolicy());
+        if (!advanced && !newConfiguration.getAccessLogOutput().equals(currentConfiguration.getAccessLogOutput())) {
+            this.encoder = AccessLogEncoder.create(newConfiguration.getAccessLogOutput());
+        }
+        boolean rotationIntervalChanged = newConfiguration.getAccessLogRotationInterval() != currentConfiguration.getAccessLogRotationInterval();
         this.currentConfiguration = newConfiguration;
-        if (!oldAccessLogPath.equals(newConfiguration.getAccessLogPath())) {
+        if (rotationIntervalChanged) {
+            nextRotationTs = computeNextRotationTs(System.currentTimeMillis());
+        }
+        if (!oldAccessLogPath.equals(getAccessLogPath(newConfiguration))) {
             closeAccessLogFile();
             // File opening will be retried at next cycle start
         }
@@ -220,17 +387,36 @@ public class RequestsLogger implements Runnable, Closeable {
     }
 
     public void logRequest(ProxyRequest request) {
-        Entry entry = new Entry(request, currentConfiguration.getAccessLogFormat(), currentConfiguration.getAccessLogTimestampFormat());
+        Entry entry = new Entry(request, template);
 
         if (closeRequested) {
+            DROPPED_ENTRIES_COUNTER.labels(loggerLabel, "closed").inc();
             LOG.log(Level.SEVERE, "Request {0} not logged to access log because RequestsLogger is closed", entry.render());
             return;
         }
 
         // If configuration reloads already created entries will keep a possibile old format, but it doesn't really matter
-        boolean ret = queue.offer(entry);
+        RuntimeServerConfiguration configuration = currentConfiguration;
+        boolean ret;
+        switch (backpressurePolicy) {
+            case SAMPLE:
+                if (queue.size() >= queue.capacity() / 2
+                        && ThreadLocalRandom.current().nextInt(configuration.getAccessLogBackpressureSampleRate()) != 0) {
+                    DROPPED_ENTRIES_COUNTER.labels(loggerLabel, "sampled").inc();
+                    return;
+                }
+                ret = queue.offer(entry);
+                break;
+            case BLOCK:
+                ret = queue.offer(entry, configuration.getAccessLogBackpressureBlockTimeout(), TimeUnit.MILLISECONDS);
+                break;
+            default:
+                ret = queue.offer(entry);
+                break;
+        }
 
         if (!ret) {
+            DROPPED_ENTRIES_COUNTER.labels(loggerLabel, "full").inc();
             LOG.log(Level.SEVERE, "Request {0} not logged to access log because queue is full", entry.render());
         }
     }
@@ -262,6 +448,8 @@ public class RequestsLogger implements Runnable, Closeable {
         close();
         try {
             thread.join(60_000);
+            compressionExecutor.shutdown();
+            compressionExecutor.awaitTermination(60, TimeUnit.SECONDS);
         } catch (InterruptedException ex) {
             LOG.log(Level.SEVERE, "Interrupted while stopping");
         }
@@ -273,7 +461,6 @@ public class RequestsLogger implements Runnable, Closeable {
             lastFlush = System.currentTimeMillis();
         }
 
-        Entry currentEntry = null;
         while (!closed) {
             try {
                 _reloadConfiguration();
@@ -296,21 +483,23 @@ public class RequestsLogger implements Runnable, Closeable {
                         : 0L;
                 waitTime = Math.max(waitTime, 0L);
 
-                if (currentEntry == null) {
-                    currentEntry = queue.poll(waitTime, TimeUnit.MILLISECONDS);
-                }
-
-                if (currentEntry != null) {
+                int written = 0;
+                Entry entry = queue.poll(waitTime, TimeUnit.MILLISECONDS);
+                while (entry != null) {
                     if (verbose) {
-                        LOG.log(Level.INFO, "writing entry: {0}", currentEntry.render());
+                        LOG.log(Level.INFO, "writing entry: {0}", entry.render());
                     }
-                    currentEntry.write(stw, bw);
-                    currentEntry = null;
-                } else {
-                    if (closeRequested) {
-                        closeAccessLogFile();
-                        closed = true;
+                    encoder.encode(entry, output);
+                    if (++written >= MAX_BATCH_SIZE) {
+                        break;
                     }
+                    entry = queue.poll();
+                }
+                queueSizeGauge.set(queue.size());
+
+                if (written == 0 && closeRequested) {
+                    closeAccessLogFile();
+                    closed = true;
                 }
 
                 if (System.currentTimeMillis() - lastFlush >= currentConfiguration.getAccessLogFlushInterval()) {
@@ -357,58 +546,94 @@ public class RequestsLogger implements Runnable, Closeable {
      * ----------------------------------------------------------------------------------------------------
      */
 
- /*
-     * Entry handled fields: <client_ip>: client ip address <server_ip>: local httpproxy listener <method>: http method <host>: host header of the http request <uri>: uri requested in the http request
-     * <timestamp>: when httpproxy started to serving the request <backend_time>: milliseconds from request start to the first byte received from the backend <total_time>: milliseconds from request
-     * start to the last byte sended to client (tcp delays are not counted) <action_id>: action id (PROXY, CACHE, ...) <route_id>: id of the route used for selecting action and backend <backend_id>:
-     * id (host+port) of the backend to which the request was forwarded <user_id>: user id inferred by filters <session_id>: session id inferred by filters <tls_protocol>: tls protocol used
-     * <tls_cipher_suite>: cipher suite used
+    /**
+     * Values of a request to be logged: they are captured on the event loop, the row is rendered by the logger thread.
+     *
+     * @see AccessLogTemplate.Field
      */
     static final class Entry {
 
-        private final ST format;
-
-        public Entry(ProxyRequest request, String format, String timestampFormat) {
-            SimpleDateFormat tsFormatter = new SimpleDateFormat(timestampFormat);
-
-            this.format = new ST(format);
-
-            this.format.add("client_ip", request.getRemoteAddress().getAddress().getHostAddress());
-            this.format.add("server_ip", request.getLocalAddress().getAddress().getHostAddress());
-            this.format.add("method", request.getRequest().method().name());
-            this.format.add("host", request.getRequest().requestHeaders().getAsString(HttpHeaderNames.HOST));
-            this.format.add("uri", request.getUri());
-            this.format.add("timestamp", tsFormatter.format(new Timestamp(request.getStartTs())));
-            this.format.add("total_time", request.getLastActivity() - request.getStartTs());
-            this.format.add("action_id", request.getAction().action);
-            this.format.add("route_id", request.getAction().routeId);
-            this.format.add("user_id", request.getUserId());
-            this.format.add("session_id", request.getSessionId());
-            if (request.isServedFromCache()) {
-                this.format.add("backend_id", "CACHED");
-                this.format.add("backend_time", "0");
-            } else {
-                this.format.add("backend_id", String.format("%s:%s", request.getAction().host, request.getAction().port));
-                this.format.add("backend_time", request.getBackendStartTs() - request.getStartTs());
-            }
-            formatSSLProperties(request);
-        }
-
-        private void formatSSLProperties(ProxyRequest request) {
-            String sslProtocol = request.getSslProtocol();
-            String cipherSuite = request.getCipherSuite();
-            this.format.add("tls_protocol", sslProtocol != null ? sslProtocol : "n/a");
-            this.format.add("tls_cipher_suite", cipherSuite != null ? cipherSuite : "n/a");
+        private static final MatchingProperty SERVER_IP = MatchingProperty.of(ProxyRequest.PROPERTY_LISTENER_IPADDRESS);
+        private static final MatchingProperty METHOD = MatchingProperty.of(ProxyRequest.PROPERTY_METHOD);
+        private static final MatchingProperty HOST = MatchingProperty.of(ProxyRequest.PROPERTY_HEADERS + HttpHeaderNames.HOST);
+
+        // the format when the request has been logged
+        private final AccessLogTemplate template;
+
+        final InetAddress clientIp;
+        final String serverIp;
+        final String method;
+        final String host;
+        final String uri;
+        final int status;
+        final long bytes;
+        final long startTs;
+        final long backendStartTs;
+        final long lastActivity;
+        final MapResult.Action action;
+        final String routeId;
+        final String userId;
+        final String sessionId;
+        final boolean servedFromCache;
+        final String backendHost;
+        final int backendPort;
+        final String tlsProtocol;
+        final String cipherSuite;
+        final BodyCapture requestBody;
+        final BodyCapture responseBody;
+
+        Entry(ProxyRequest request, AccessLogTemplate template) {
+            this.template = template;
+            this.clientIp = request.getRemoteAddress().getAddress();
+            // shared with matchers and filters: resolved at most once per request
+            this.serverIp = request.getProperty(SERVER_IP);
+            this.method = request.getProperty(METHOD);
+            this.host = request.getProperty(HOST);
+            this.uri = request.getUri();
+            this.status = request.getResponseStatus();
+            this.bytes = request.getSentBytes();
+            this.startTs = request.getStartTs();
+            this.backendStartTs = request.getBackendStartTs();
+            this.lastActivity = request.getLastActivity();
+            MapResult mapResult = request.getAction();
+            this.action = mapResult.action;
+            this.routeId = mapResult.routeId;
+            this.backendHost = mapResult.host;
+            this.backendPort = mapResult.port;
+            this.userId = request.getUserId();
+            this.sessionId = request.getSessionId();
+            this.servedFromCache = request.isServedFromCache();
+            this.tlsProtocol = request.getSslProtocol();
+            this.cipherSuite = request.getCipherSuite();
+            this.requestBody = request.getRequestBodyCapture();
+            this.responseBody = request.getResponseBodyCapture();
         }
 
         @VisibleForTesting
         String render() {
-            return this.format.render(Locale.ITALY);
+            StringBuilder out = new StringBuilder();
+            template.render(this, out);
+            return out.toString();
+        }
+
+        void render(StringBuilder out) {
+            template.render(this, out);
+        }
+
+        long getTotalTime() {
+            return lastActivity - startTs;
+        }
+
+        long getBackendTime() {
+            return servedFromCache ? 0 : backendStartTs - startTs;
         }
 
-        public void write(STWriter stw, BufferedWriter bw) throws IOException {
-            this.format.write(stw, Locale.ITALY);
-            bw.write("\n");
+        void appendBackendId(StringBuilder out) {
+            if (servedFromCache) {
+                out.append("CACHED");
+            } else {
+                out.append(backendHost).append(':').append(backendPort);
+            }
         }
     }
 }
@@ -19,14 +19,16 @@
  */
 package org.carapaceproxy.core;
 
-import java.sql.Timestamp;
-import java.text.SimpleDateFormat;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import org.carapaceproxy.configstore.ConfigurationStore;
 import static org.carapaceproxy.server.certificates.DynamicCertificatesManager.DEFAULT_KEYPAIRS_SIZE;
 import org.carapaceproxy.server.config.ConfigurationNotValidException;
@@ -39,8 +41,18 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import javax.net.ssl.SSLContext;
 import org.carapaceproxy.server.mapper.StandardEndpointMapper;
+import org.carapaceproxy.server.mapper.requestmatcher.MatchAllRequestMatcher;
+import org.carapaceproxy.server.mapper.requestmatcher.RequestMatcher;
+import org.carapaceproxy.server.mapper.requestmatcher.RequestMatcherCompiler;
+import org.carapaceproxy.server.mapper.requestmatcher.parser.ParseException;
+import org.carapaceproxy.server.mapper.requestmatcher.parser.RequestMatchParser;
 import static org.carapaceproxy.server.certificates.DynamicCertificatesManager.DEFAULT_DAYS_BEFORE_RENEWAL;
+import static org.carapaceproxy.server.config.ConnectionPoolConfiguration.DEFAULT_MAX_CONCURRENT_STREAMS;
+import static org.carapaceproxy.server.config.NetworkListenerConfiguration.DEFAULT_HTTP_PROTOCOLS;
 import static org.carapaceproxy.server.config.NetworkListenerConfiguration.DEFAULT_SSL_PROTOCOLS;
+import static org.carapaceproxy.server.config.NetworkListenerConfiguration.PROTOCOL_H2;
+import static org.carapaceproxy.server.config.NetworkListenerConfiguration.PROTOCOL_H2C;
+import static org.carapaceproxy.server.config.NetworkListenerConfiguration.PROTOCOL_HTTP11;
 import java.util.Set;
 import lombok.Data;
 import org.carapaceproxy.server.config.ConnectionPoolConfiguration;
@@ -69,22 +81,47 @@ public class RuntimeServerConfiguration {
     private int connectTimeout = 10_000;
     private int borrowTimeout = 60_000;
     private int disposeTimeout = 300_000; // 5 min;
+    private int minIdleConnections = 0;
+    private String backendsHttpProtocol = PROTOCOL_HTTP11;
+    private int maxConcurrentStreams = DEFAULT_MAX_CONCURRENT_STREAMS;
     private long cacheMaxSize = 0;
     private long cacheMaxFileSize = 0;
     private boolean cacheDisabledForSecureRequestsWithoutPublic = false;
+    private long cacheCollapsedForwardingTimeout = 10_000; // ms; 0 to disable collapsed forwarding
+    private long cacheStaleWhileRevalidate = 0; // ms; default when not set by the backend
+    private long cacheStaleIfError = 0; // ms; default when not set by the backend
+    private long cacheRevalidationWindow = 60 * 60 * 1000; // ms; 0 to disable conditional revalidation
+    private int cacheMaxVariants = 8; // per URI; 0 to not cache contents with a Vary
+    private boolean cacheRangeBackgroundFill = false;
+    private long cacheInvalidationBatchDelay = 50; // ms
+    private long cacheInvalidationAckTimeout = 5_000; // ms
+    private long cacheDiskMaxSize = 0; // bytes; 0 to disable the disk tier
+    private String cacheDiskPath = "cache";
+    private int cacheDiskPromotionHits = 2;
+    private boolean cacheDiskWarmRestart = true;
     private String mapperClassname;
     private String accessLogPath = "access.log";
     private String accessLogTimestampFormat = "yyyy-MM-dd HH:mm:ss.SSS";
+    private String accessLogOutput = "text";
     private String accessLogFormat =
             "[<timestamp>] [<method> <host> <uri>] [uid:<user_id>, sid:<session_id>, ip:<client_ip>] "
             + "server=<server_ip>, act=<action_id>, route=<route_id>, backend=<backend_id>. "
             + "time t=<total_time>ms b=<backend_time>ms";
     private int accessLogMaxQueueCapacity = 2000;
+    private String accessLogBackpressurePolicy = "drop";
+    private int accessLogBackpressureSampleRate = 10;
+    private long accessLogBackpressureBlockTimeout = 100; // ms
     private int accessLogFlushInterval = 5000;
     private int accessLogWaitBetweenFailures = 10000;
     private long accessLogMaxSize = 524288000;
+    private long accessLogRotationInterval = 0; // ms; 0 to rotate by size only
+    private int accessLogRetentionMaxFiles = 0; // 0 for unlimited
+    private long accessLogRetentionMaxAge = 0; // ms; 0 for unlimited
     private boolean accessLogAdvancedEnabled = false;
     private int accessLogAdvancedBodySize = 1_000; // bytes
+    private String accessLogAdvancedPath = "access.advanced.log";
+    private String accessLogAdvancedMatch = "all";
+    private RequestMatcher accessLogAdvancedMatcher = new MatchAllRequestMatcher();
     private String userRealmClassname;
     private int healthProbePeriod = 0;
     private int dynamicCertificatesManagerPeriod = 0;
@@ -105,7 +142,10 @@ public class RuntimeServerConfiguration {
                 stuckRequestTimeout,
                 idleTimeout,
                 disposeTimeout,
-                true
+                true,
+                minIdleConnections,
+                backendsHttpProtocol,
+                maxConcurrentStreams
         );
     }
 
@@ -121,6 +161,15 @@ public class RuntimeServerConfiguration {
         this.connectTimeout = properties.getInt("connectionsmanager.connecttimeout", connectTimeout);
         this.borrowTimeout = properties.getInt("connectionsmanager.borrowtimeout", borrowTimeout);
         this.disposeTimeout = properties.getInt("connectionsmanager.disposetimeout", disposeTimeout);
+        this.minIdleConnections = properties.getInt("connectionsmanager.minidleconnections", minIdleConnections);
+        if (this.minIdleConnections < 0 || this.minIdleConnections > this.maxConnectionsPerEndpoint) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.minIdleConnections + "' for connectionsmanager.minidleconnections");
+        }
+        this.backendsHttpProtocol = parseBackendsHttpProtocol(properties.getString("connectionsmanager.httpprotocol", backendsHttpProtocol), "connectionsmanager.httpprotocol");
+        this.maxConcurrentStreams = properties.getInt("connectionsmanager.maxconcurrentstreams", maxConcurrentStreams);
+        if (this.maxConcurrentStreams <= 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.maxConcurrentStreams + "' for connectionsmanager.maxconcurrentstreams");
+        }
         LOG.log(Level.INFO, "connectionsmanager.maxconnectionsperendpoint={0}", maxConnectionsPerEndpoint);
         LOG.log(Level.INFO, "connectionsmanager.idletimeout={0}", idleTimeout);
         LOG.log(Level.INFO, "connectionsmanager.stuckrequesttimeout={0}", stuckRequestTimeout);
@@ -128,6 +177,9 @@ public class RuntimeServerConfiguration {
         LOG.log(Level.INFO, "connectionsmanager.connecttimeout={0}", connectTimeout);
         LOG.log(Level.INFO, "connectionsmanager.borrowtimeout={0}", borrowTimeout);
         LOG.log(Level.INFO, "connectionsmanager.disposetimeout={0}", disposeTimeout);
+        LOG.log(Level.INFO, "connectionsmanager.minidleconnections={0}", minIdleConnections);
+        LOG.log(Level.INFO, "connectionsmanager.httpprotocol={0}", backendsHttpProtocol);
+        LOG.log(Level.INFO, "connectionsmanager.maxconcurrentstreams={0}", maxConcurrentStreams);
 
         this.mapperClassname = properties.getClassname("mapper.class", StandardEndpointMapper.class.getName());
         LOG.log(Level.INFO, "mapper.class={0}", this.mapperClassname);
@@ -135,36 +187,141 @@ public class RuntimeServerConfiguration {
         this.cacheMaxSize = properties.getLong("cache.maxsize", cacheMaxSize);
         this.cacheMaxFileSize = properties.getLong("cache.maxfilesize", cacheMaxFileSize);
         this.cacheDisabledForSecureRequestsWithoutPublic = properties.getBoolean("cache.requests.secure.disablewithoutpublic", cacheDisabledForSecureRequestsWithoutPublic);
+        this.cacheCollapsedForwardingTimeout = properties.getLong("cache.collapsedforwarding.timeout", cacheCollapsedForwardingTimeout);
+        if (this.cacheCollapsedForwardingTimeout < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.cacheCollapsedForwardingTimeout + "' for cache.collapsedforwarding.timeout");
+        }
         LOG.log(Level.INFO, "cache.maxsize={0}", cacheMaxSize);
         LOG.log(Level.INFO, "cache.maxfilesize={0}", cacheMaxFileSize);
         LOG.log(Level.INFO, "cache.requests.secure.disablewithoutpublic={0}", cacheDisabledForSecureRequestsWithoutPublic);
+        LOG.log(Level.INFO, "cache.collapsedforwarding.timeout={0}", cacheCollapsedForwardingTimeout);
+        this.cacheStaleWhileRevalidate = properties.getLong("cache.stalewhilerevalidate", cacheStaleWhileRevalidate);
+        if (this.cacheStaleWhileRevalidate < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.cacheStaleWhileRevalidate + "' for cache.stalewhilerevalidate");
+        }
+        this.cacheStaleIfError = properties.getLong("cache.staleiferror", cacheStaleIfError);
+        if (this.cacheStaleIfError < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.cacheStaleIfError + "' for cache.staleiferror");
+        }
+        LOG.log(Level.INFO, "cache.stalewhilerevalidate={0}", cacheStaleWhileRevalidate);
+        LOG.log(Level.INFO, "cache.staleiferror={0}", cacheStaleIfError);
+        this.cacheRevalidationWindow = properties.getLong("cache.revalidationwindow", cacheRevalidationWindow);
+        if (this.cacheRevalidationWindow < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.cacheRevalidationWindow + "' for cache.revalidationwindow");
+        }
+        LOG.log(Level.INFO, "cache.revalidationwindow={0}", cacheRevalidationWindow);
+        this.cacheMaxVariants = properties.getInt("cache.maxvariants", cacheMaxVariants);
+        if (this.cacheMaxVariants < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.cacheMaxVariants + "' for cache.maxvariants");
+        }
+        LOG.log(Level.INFO, "cache.maxvariants={0}", cacheMaxVariants);
+        this.cacheRangeBackgroundFill = properties.getBoolean("cache.range.backgroundfill", cacheRangeBackgroundFill);
+        LOG.log(Level.INFO, "cache.range.backgroundfill={0}", cacheRangeBackgroundFill);
+        this.cacheInvalidationBatchDelay = properties.getLong("cache.invalidation.batchdelay", cacheInvalidationBatchDelay);
+        if (this.cacheInvalidationBatchDelay < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.cacheInvalidationBatchDelay + "' for cache.invalidation.batchdelay");
+        }
+        this.cacheInvalidationAckTimeout = properties.getLong("cache.invalidation.acktimeout", cacheInvalidationAckTimeout);
+        if (this.cacheInvalidationAckTimeout < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.cacheInvalidationAckTimeout + "' for cache.invalidation.acktimeout");
+        }
+        LOG.log(Level.INFO, "cache.invalidation.batchdelay={0}", cacheInvalidationBatchDelay);
+        LOG.log(Level.INFO, "cache.invalidation.acktimeout={0}", cacheInvalidationAckTimeout);
+        this.cacheDiskMaxSize = properties.getLong("cache.disk.maxsize", cacheDiskMaxSize);
+        this.cacheDiskPath = properties.getString("cache.disk.path", cacheDiskPath);
+        this.cacheDiskPromotionHits = properties.getInt("cache.disk.promotionhits", cacheDiskPromotionHits);
+        this.cacheDiskWarmRestart = properties.getBoolean("cache.disk.warmrestart", cacheDiskWarmRestart);
+        if (this.cacheDiskMaxSize < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.cacheDiskMaxSize + "' for cache.disk.maxsize");
+        }
+        if (this.cacheDiskPromotionHits < 1) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.cacheDiskPromotionHits + "' for cache.disk.promotionhits");
+        }
+        LOG.log(Level.INFO, "cache.disk.maxsize={0}", cacheDiskMaxSize);
+        LOG.log(Level.INFO, "cache.disk.path={0}", cacheDiskPath);
+        LOG.log(Level.INFO, "cache.disk.promotionhits={0}", cacheDiskPromotionHits);
+        LOG.log(Level.INFO, "cache.disk.warmrestart={0}", cacheDiskWarmRestart);
 
         this.accessLogPath = properties.getString("accesslog.path", accessLogPath);
         this.accessLogTimestampFormat = properties.getString("accesslog.format.timestamp", accessLogTimestampFormat);
         this.accessLogFormat = properties.getString("accesslog.format", accessLogFormat);
+        this.accessLogOutput = properties.getString("accesslog.output", accessLogOutput);
         this.accessLogMaxQueueCapacity = properties.getInt("accesslog.queue.maxcapacity", accessLogMaxQueueCapacity);
         this.accessLogFlushInterval = properties.getInt("accesslog.flush.interval", accessLogFlushInterval);
         this.accessLogWaitBetweenFailures = properties.getInt("accesslog.failure.wait", accessLogWaitBetweenFailures);
         this.accessLogMaxSize = properties.getLong("accesslog.maxsize", accessLogMaxSize);
+        this.accessLogBackpressurePolicy = properties.getString("accesslog.backpressure.policy", accessLogBackpressurePolicy);
+        this.accessLogBackpressureSampleRate = properties.getInt("accesslog.backpressure.samplerate", accessLogBackpressureSampleRate);
+        this.accessLogBackpressureBlockTimeout = properties.getLong("accesslog.backpressure.blocktimeout", accessLogBackpressureBlockTimeout);
+        this.accessLogRotationInterval = properties.getLong("accesslog.rotation.interval", accessLogRotationInterval);
+        this.accessLogRetentionMaxFiles = properties.getInt("accesslog.retention.maxfiles", accessLogRetentionMaxFiles);
+        this.accessLogRetentionMaxAge = properties.getLong("accesslog.retention.maxage", accessLogRetentionMaxAge);
+        if (this.accessLogRotationInterval < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.accessLogRotationInterval + "' for accesslog.rotation.interval");
+        }
+        if (this.accessLogRetentionMaxFiles < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.accessLogRetentionMaxFiles + "' for accesslog.retention.maxfiles");
+        }
+        if (this.accessLogRetentionMaxAge < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.accessLogRetentionMaxAge + "' for accesslog.retention.maxage");
+        }
+        try {
+            AccessLogEncoder.create(this.accessLogOutput);
+        } catch (IllegalArgumentException err) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.accessLogOutput + "' for accesslog.output");
+        }
+        if (this.accessLogMaxQueueCapacity < 2) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.accessLogMaxQueueCapacity + "' for accesslog.queue.maxcapacity");
+        }
+        try {
+            RequestsLogger.BackpressurePolicy.parse(this.accessLogBackpressurePolicy);
+        } catch (IllegalArgumentException err) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.accessLogBackpressurePolicy + "' for accesslog.backpressure.policy");
+        }
+        if (this.accessLogBackpressureSampleRate < 1) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.accessLogBackpressureSampleRate + "' for accesslog.backpressure.samplerate");
+        }
+        if (this.accessLogBackpressureBlockTimeout < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.accessLogBackpressureBlockTimeout + "' for accesslog.backpressure.blocktimeout");
+        }
         String tsFormatExample;
         try {
-            SimpleDateFormat formatter = new SimpleDateFormat(this.accessLogTimestampFormat);
-            tsFormatExample = formatter.format(new Timestamp(System.currentTimeMillis()));
+            AccessLogTemplate.compile(this.accessLogFormat, this.accessLogTimestampFormat);
+            tsFormatExample = DateTimeFormatter.ofPattern(this.accessLogTimestampFormat).format(LocalDateTime.now());
         } catch (Exception err) {
             throw new ConfigurationNotValidException("Invalid accesslog.format.timestamp='" + accessLogTimestampFormat + ": " + err);
         }
         LOG.log(Level.INFO, "accesslog.path={0}", accessLogPath);
         LOG.log(Level.INFO, "accesslog.format.timestamp={0} (example: {1})", new Object[]{accessLogTimestampFormat, tsFormatExample});
         LOG.log(Level.INFO, "accesslog.format={0}", accessLogFormat);
+        LOG.log(Level.INFO, "accesslog.output={0}", accessLogOutput);
         LOG.log(Level.INFO, "accesslog.queue.maxcapacity={0}", accessLogMaxQueueCapacity);
+        LOG.log(Level.INFO, "accesslog.backpressure.policy={0}", accessLogBackpressurePolicy);
+        LOG.log(Level.INFO, "accesslog.backpressure.samplerate={0}", accessLogBackpressureSampleRate);
+        LOG.log(Level.INFO, "accesslog.backpressure.blocktimeout={0}", accessLogBackpressureBlockTimeout);
         LOG.log(Level.INFO, "accesslog.flush.interval={0}", accessLogFlushInterval);
         LOG.log(Level.INFO, "accesslog.failure.wait={0}", accessLogWaitBetweenFailures);
         LOG.log(Level.INFO, "accesslog.maxsize={0}", accessLogMaxSize);
+        LOG.log(Level.INFO, "accesslog.rotation.interval={0}", accessLogRotationInterval);
+        LOG.log(Level.INFO, "accesslog.retention.maxfiles={0}", accessLogRetentionMaxFiles);
+        LOG.log(Level.INFO, "accesslog.retention.maxage={0}", accessLogRetentionMaxAge);
 
         accessLogAdvancedEnabled = properties.getBoolean("accesslog.advanced.enabled", accessLogAdvancedEnabled);
         accessLogAdvancedBodySize = properties.getInt("accesslog.advanced.body.size", accessLogAdvancedBodySize);
+        accessLogAdvancedPath = properties.getString("accesslog.advanced.path", accessLogAdvancedPath);
+        accessLogAdvancedMatch = properties.getString("accesslog.advanced.match", accessLogAdvancedMatch);
+        if (accessLogAdvancedBodySize < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + accessLogAdvancedBodySize + "' for accesslog.advanced.body.size");
+        }
+        try {
+            accessLogAdvancedMatcher = RequestMatcherCompiler.compile(new RequestMatchParser(accessLogAdvancedMatch.trim()).parse());
+        } catch (ParseException err) {
+            throw new ConfigurationNotValidException("Invalid value '" + accessLogAdvancedMatch + "' for accesslog.advanced.match: " + err);
+        }
         LOG.log(Level.INFO, "accesslog.advanced.enabled={0}", accessLogAdvancedEnabled);
         LOG.log(Level.INFO, "accesslog.advanced.body.size={0}", accessLogAdvancedBodySize);
+        LOG.log(Level.INFO, "accesslog.advanced.path={0}", accessLogAdvancedPath);
+        LOG.log(Level.INFO, "accesslog.advanced.match={0}", accessLogAdvancedMatch);
 
         configureCertificates(properties);
         configureListeners(properties);
@@ -250,6 +407,8 @@ public class RuntimeServerConfiguration {
                 if (ssl) {
                     config.setSslProtocols(properties.getArray(prefix + "sslprotocols", DEFAULT_SSL_PROTOCOLS.toArray(new String[0])));
                 }
+                String[] protocols = properties.getArray(prefix + "protocols", DEFAULT_HTTP_PROTOCOLS.toArray(new String[0]));
+                config.setHttpProtocols(Arrays.stream(protocols).map(p -> p.toUpperCase()).toArray(String[]::new));
                 this.addListener(config);
             }
         }
@@ -289,6 +448,13 @@ public class RuntimeServerConfiguration {
                         "Invalid connection pool configuration: domain cannot be empty"
                 );
             }
+            try {
+                Pattern.compile(domain);
+            } catch (PatternSyntaxException err) {
+                throw new ConfigurationNotValidException(
+                        "Invalid connection pool configuration: domain " + domain + " is not a valid regular expression: " + err.getMessage()
+                );
+            }
             int maxconnectionsperendpoint = properties.getInt(prefix + "maxconnectionsperendpoint", maxConnectionsPerEndpoint);
             int borrowtimeout = properties.getInt(prefix + "borrowtimeout", borrowTimeout);
             int connecttimeout = properties.getInt(prefix + "connecttimeout", connectTimeout);
@@ -296,6 +462,19 @@ public class RuntimeServerConfiguration {
             int idletimeout = properties.getInt(prefix + "idletimeout", idleTimeout);
             int disposetimeout = properties.getInt(prefix + "disposetimeout", disposeTimeout);
             boolean enabled = properties.getBoolean(prefix + "enabled", false);
+            int minidleconnections = properties.getInt(prefix + "minidleconnections", minIdleConnections);
+            if (minidleconnections < 0 || minidleconnections > maxconnectionsperendpoint) {
+                throw new ConfigurationNotValidException(
+                        "Invalid connection pool configuration: minidleconnections has to be between 0 and maxconnectionsperendpoint"
+                );
+            }
+            String httpprotocol = parseBackendsHttpProtocol(properties.getString(prefix + "httpprotocol", backendsHttpProtocol), prefix + "httpprotocol");
+            int maxconcurrentstreams = properties.getInt(prefix + "maxconcurrentstreams", maxConcurrentStreams);
+            if (maxconcurrentstreams <= 0) {
+                throw new ConfigurationNotValidException(
+                        "Invalid connection pool configuration: maxconcurrentstreams has to be greater than 0"
+                );
+            }
 
             ConnectionPoolConfiguration connectionPool = new ConnectionPoolConfiguration(
                     id, domain,
@@ -305,7 +484,10 @@ public class RuntimeServerConfiguration {
                     stuckrequesttimeout,
                     idletimeout,
                     disposetimeout,
-                    enabled
+                    enabled,
+                    minidleconnections,
+                    httpprotocol,
+                    maxconcurrentstreams
             );
             connectionPools.add(connectionPool);
             LOG.log(Level.INFO, "Configured connectionpool." + i + ": {0}", connectionPool);
@@ -320,11 +502,28 @@ public class RuntimeServerConfiguration {
                 getStuckRequestTimeout(),
                 getIdleTimeout(),
                 getDisposeTimeout(),
-                true
+                true,
+                getMinIdleConnections(),
+                getBackendsHttpProtocol(),
+                getMaxConcurrentStreams()
         );
         LOG.log(Level.INFO, "Configured default connectionpool: {0}", defaultConnectionPool);
     }
 
+    private static String parseBackendsHttpProtocol(String value, String property) throws ConfigurationNotValidException {
+        String protocol = value.trim().toUpperCase();
+        switch (protocol) {
+            case PROTOCOL_HTTP11:
+            case PROTOCOL_H2C:
+                return protocol;
+            default:
+                // backends are reached in cleartext, so HTTP/2 is available with prior knowledge only
+                throw new ConfigurationNotValidException(
+                        "Invalid value '" + value + "' for " + property + ", supported values: " + PROTOCOL_HTTP11 + ", " + PROTOCOL_H2C
+                );
+        }
+    }
+
     public void addListener(NetworkListenerConfiguration listener) throws ConfigurationNotValidException {
         if (listener.isSsl() && !certificates.containsKey(listener.getDefaultCertificate())) {
             throw new ConfigurationNotValidException(
@@ -348,6 +547,34 @@ public class RuntimeServerConfiguration {
                 throw new ConfigurationNotValidException(ex);
             }
         }
+        String[] httpProtocols = listener.getHttpProtocols();
+        if (httpProtocols == null || httpProtocols.length == 0) {
+            throw new ConfigurationNotValidException(
+                    "No HTTP protocols for listener " + listener.getHost() + ":" + listener.getPort()
+            );
+        }
+        for (String protocol : httpProtocols) {
+            boolean valid;
+            switch (protocol) {
+                case PROTOCOL_HTTP11:
+                    valid = true;
+                    break;
+                case PROTOCOL_H2:
+                    valid = listener.isSsl();
+                    break;
+                case PROTOCOL_H2C:
+                    valid = !listener.isSsl();
+                    break;
+                default:
+                    valid = false;
+            }
+            if (!valid) {
+                throw new ConfigurationNotValidException(
+                        "Unsupported HTTP protocol " + protocol + " for listener " + listener.getHost() + ":" + listener.getPort()
+                        + ", ssl=" + listener.isSsl() + " (supported: " + PROTOCOL_HTTP11 + ", " + PROTOCOL_H2 + " with ssl, " + PROTOCOL_H2C + " without ssl)"
+                );
+            }
+        }
         listeners.add(listener);
     }
 
@@ -60,6 +60,22 @@ interface CacheImpl {
      */
     public CachedContent get(ContentKey key);
 
+    /**
+     * Checks whether an element is in cache, without updating the stats
+     * @param key
+     * @return
+     */
+    public boolean containsKey(ContentKey key);
+
+    /**
+     * Replaces an element with an updated copy of it, e.g. on revalidation, recomputing its expiration
+     * @param key
+     * @param current the element to replace, nothing is done whether another element is in cache for the same key
+     * @param payload the copy, owned by the cache whether replaced
+     * @return whether the element has been replaced
+     */
+    public boolean replace(ContentKey key, CachedContent current, CachedContent payload);
+
     /**
      * Removes an element from cache, frees its resources and updates the stats
      *
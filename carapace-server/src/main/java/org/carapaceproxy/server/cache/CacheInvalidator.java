@@ -0,0 +1,435 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import io.prometheus.client.Counter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.carapaceproxy.cluster.GroupMembershipHandler;
+import org.carapaceproxy.core.RuntimeServerConfiguration;
+import org.carapaceproxy.utils.PrometheusUtils;
+import org.glassfish.jersey.internal.guava.ThreadFactoryBuilder;
+
+/**
+ * Propagates the invalidations of the cache (flush and purges) to the other peers of the cluster.
+ * <p>
+ * Invalidations are applied locally at once and sent to the peers in batches, as messages of the
+ * {@link #QUEUE_CACHE_INVALIDATION} queue: each peer applies them in order and acknowledges the last batch applied in
+ * its peer info. The origin deletes its batches once acknowledged by all the peers, and batches not read in time are
+ * deleted by any peer: a peer missing a batch of an origin (a gap in its sequence) flushes its whole cache.
+ */
+public class CacheInvalidator {
+
+    private static final Logger LOG = Logger.getLogger(CacheInvalidator.class.getName());
+
+    public static final String QUEUE_CACHE_INVALIDATION = "cacheInvalidation";
+    // peer info holding the last batch applied of an origin peer, as epoch:sequence
+    static final String PEER_INFO_ACK_PREFIX = "cache_invalidation_ack_";
+    public static final String ACK_OK = "ok";
+    public static final String ACK_TIMEOUT = "timeout";
+
+    private static final String THREAD_NAME = "cache-invalidator";
+    // ZooKeeper data is limited to 1MB
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final long ACK_POLL_INTERVAL = 50;
+    private static final long GC_INTERVAL = 10_000;
+    // peers not reading a batch within this time are considered to have missed it
+    private static final long MESSAGE_RETENTION = 60_000;
+
+    private static final Counter SENT_BATCHES_COUNTER = PrometheusUtils.createCounter(
+            "cache", "invalidation_batches_sent_total", "batches of invalidations sent to the peers"
+    ).register();
+    private static final Counter RECEIVED_BATCHES_COUNTER = PrometheusUtils.createCounter(
+            "cache", "invalidation_batches_received_total", "batches of invalidations received from the peers"
+    ).register();
+    static final Counter GAPS_COUNTER = PrometheusUtils.createCounter(
+            "cache", "invalidation_gaps_total", "batches of invalidations missed, the whole cache has been flushed"
+    ).register();
+
+    public enum Type {
+        FLUSH, HOST, PREFIX, TAG
+    }
+
+    private final ContentsCache cache;
+    private final long epoch = System.currentTimeMillis(); // tells apart the sequences of different runs
+    private final AtomicLong sequence = new AtomicLong();
+    private final ScheduledExecutorService executor;
+    private volatile GroupMembershipHandler groupMembershipHandler;
+    private volatile long batchDelay;
+    private volatile long ackTimeout;
+
+    private Batch pending; // guarded by this
+    // last batch applied for each origin, accessed by the executor only
+    private final Map<String, long[]> lastApplied = new HashMap<>();
+    // batches sent and not deleted yet, accessed by the executor only
+    private final Deque<SentBatch> sentBatches = new ArrayDeque<>();
+
+    public CacheInvalidator(ContentsCache cache, RuntimeServerConfiguration configuration) {
+        this.cache = cache;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat(THREAD_NAME).setDaemon(true).build());
+        reloadConfiguration(configuration);
+    }
+
+    public void start(GroupMembershipHandler groupMembershipHandler) {
+        this.groupMembershipHandler = groupMembershipHandler;
+        groupMembershipHandler.watchMessages(QUEUE_CACHE_INVALIDATION, new OnCacheInvalidation());
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                collectGarbage();
+            } catch (RuntimeException err) {
+                LOG.log(Level.SEVERE, "Cannot delete cache invalidation batches", err);
+            }
+        }, GC_INTERVAL, GC_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException exit) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void reloadConfiguration(RuntimeServerConfiguration configuration) {
+        this.batchDelay = configuration.getCacheInvalidationBatchDelay();
+        this.ackTimeout = configuration.getCacheInvalidationAckTimeout();
+    }
+
+    /**
+     * Applies an invalidation to the local cache and propagates it to the other peers, waiting for their
+     * acknowledgement.
+     *
+     * @param invalidation
+     * @return number of contents removed from the local cache ("purged") and acknowledgement by peer ("peers")
+     */
+    public Map<String, Object> invalidate(Invalidation invalidation) {
+        Map<String, Object> res = new HashMap<>();
+        res.put("purged", apply(invalidation));
+        Map<String, String> acks = new LinkedHashMap<>();
+        res.put("peers", acks);
+
+        GroupMembershipHandler membership = groupMembershipHandler;
+        if (membership == null) {
+            return res;
+        }
+        List<String> peers = new ArrayList<>(membership.getPeers());
+        peers.remove(membership.getLocalPeer());
+        if (peers.isEmpty()) {
+            return res;
+        }
+        long deadline = System.currentTimeMillis() + ackTimeout;
+        long batch;
+        try {
+            batch = enqueue(invalidation).get(ackTimeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException err) {
+            LOG.log(Level.SEVERE, "Cannot send cache invalidation " + invalidation, err);
+            peers.forEach(peer -> acks.put(peer, ACK_TIMEOUT));
+            return res;
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            peers.forEach(peer -> acks.put(peer, ACK_TIMEOUT));
+            return res;
+        }
+        String localPeer = membership.getLocalPeer();
+        List<String> waiting = new ArrayList<>(peers);
+        while (!waiting.isEmpty()) {
+            waiting.removeIf(peer -> {
+                Map<String, String> info = membership.loadInfoForPeer(peer);
+                long[] ack = info != null ? parseAck(info.get(PEER_INFO_ACK_PREFIX + localPeer)) : null;
+                if (ack != null && ack[0] == epoch && ack[1] >= batch) {
+                    acks.put(peer, ACK_OK);
+                    return true;
+                }
+                return false;
+            });
+            if (waiting.isEmpty() || System.currentTimeMillis() >= deadline) {
+                break;
+            }
+            try {
+                Thread.sleep(ACK_POLL_INTERVAL);
+            } catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        waiting.forEach(peer -> acks.put(peer, ACK_TIMEOUT));
+        return res;
+    }
+
+    private int apply(Invalidation invalidation) {
+        switch (invalidation.type) {
+            case FLUSH:
+                return cache.clear();
+            case HOST:
+                return cache.purgeHost(invalidation.host);
+            case PREFIX:
+                return cache.purgePrefix(invalidation.host, invalidation.value);
+            case TAG:
+                return cache.purgeTag(invalidation.value);
+            default:
+                throw new IllegalArgumentException("Unknown invalidation " + invalidation.type);
+        }
+    }
+
+    /**
+     * Adds an invalidation to the next batch: invalidations within the batch delay are sent together.
+     *
+     * @return the sequence number of the batch, once sent
+     */
+    private synchronized CompletableFuture<Long> enqueue(Invalidation invalidation) {
+        Batch batch = pending;
+        if (batch == null) {
+            batch = pending = new Batch();
+            executor.schedule(this::send, batchDelay, TimeUnit.MILLISECONDS);
+        }
+        batch.invalidations.add(invalidation);
+        if (batch.invalidations.size() >= MAX_BATCH_SIZE) {
+            pending = null;
+            Batch full = batch;
+            executor.execute(() -> send(full));
+        }
+        return batch.sent;
+    }
+
+    private void send() {
+        Batch batch;
+        synchronized (this) {
+            batch = pending;
+            pending = null;
+        }
+        if (batch != null) {
+            send(batch);
+        }
+    }
+
+    private void send(Batch batch) {
+        try {
+            long seq = sequence.incrementAndGet();
+            List<Map<String, Object>> invalidations = new ArrayList<>(batch.invalidations.size());
+            batch.invalidations.forEach(invalidation -> invalidations.add(invalidation.toMap()));
+            Map<String, Object> data = new HashMap<>();
+            data.put("origin", groupMembershipHandler.getLocalPeer());
+            data.put("epoch", epoch);
+            data.put("sequence", seq);
+            data.put("invalidations", invalidations);
+            String messageId = groupMembershipHandler.publishMessage(QUEUE_CACHE_INVALIDATION, data);
+            sentBatches.add(new SentBatch(seq, messageId));
+            SENT_BATCHES_COUNTER.inc();
+            batch.sent.complete(seq);
+        } catch (RuntimeException err) {
+            batch.sent.completeExceptionally(err);
+        }
+    }
+
+    /**
+     * Deletes the batches sent and acknowledged by all the current peers, and the batches of any origin not read in
+     * time.
+     */
+    private void collectGarbage() {
+        GroupMembershipHandler membership = groupMembershipHandler;
+        long retention = Math.max(MESSAGE_RETENTION, ackTimeout);
+        if (!sentBatches.isEmpty()) {
+            String localPeer = membership.getLocalPeer();
+            long acknowledged = Long.MAX_VALUE;
+            for (String peer : membership.getPeers()) {
+                if (peer.equals(localPeer)) {
+                    continue;
+                }
+                Map<String, String> info = membership.loadInfoForPeer(peer);
+                long[] ack = info != null ? parseAck(info.get(PEER_INFO_ACK_PREFIX + localPeer)) : null;
+                acknowledged = Math.min(acknowledged, ack != null && ack[0] == epoch ? ack[1] : 0);
+            }
+            long expiredTs = System.currentTimeMillis() - retention;
+            while (!sentBatches.isEmpty()) {
+                SentBatch batch = sentBatches.peek();
+                if (batch.sequence > acknowledged && batch.sentTs >= expiredTs) {
+                    break;
+                }
+                membership.deleteMessage(QUEUE_CACHE_INVALIDATION, batch.messageId);
+                sentBatches.poll();
+            }
+        }
+        // e.g. batches of peers stopped before their batches have been acknowledged
+        membership.deleteExpiredMessages(QUEUE_CACHE_INVALIDATION, retention);
+    }
+
+    private void received(String origin, Map<String, Object> data) {
+        long originEpoch = ((Number) data.get("epoch")).longValue();
+        long seq = ((Number) data.get("sequence")).longValue();
+        long[] last = lastApplied.get(origin);
+        if (last != null && last[0] == originEpoch && seq <= last[1]) {
+            return; // already applied
+        }
+        RECEIVED_BATCHES_COUNTER.inc();
+        boolean gap = last != null && (last[0] == originEpoch ? seq != last[1] + 1 : seq != 1);
+        if (gap) {
+            GAPS_COUNTER.inc();
+            LOG.log(Level.WARNING, "Missed cache invalidations from peer {0}, flushing the whole cache", origin);
+            cache.clear();
+        } else {
+            @SuppressWarnings("unchecked")
+            List<Map<String, Object>> invalidations = (List<Map<String, Object>>) data.get("invalidations");
+            for (Map<String, Object> invalidation : invalidations) {
+                try {
+                    apply(Invalidation.fromMap(invalidation));
+                } catch (RuntimeException err) {
+                    LOG.log(Level.SEVERE, "Cannot apply cache invalidation " + invalidation + " from peer " + origin, err);
+                }
+            }
+        }
+        lastApplied.put(origin, new long[]{originEpoch, seq});
+        acknowledge(origin, originEpoch, seq);
+    }
+
+    private void acknowledge(String origin, long originEpoch, long seq) {
+        GroupMembershipHandler membership = groupMembershipHandler;
+        String localPeer = membership.getLocalPeer();
+        Map<String, String> current = membership.loadInfoForPeer(localPeer);
+        Map<String, String> info = current != null ? new HashMap<>(current) : new HashMap<>();
+        info.put(PEER_INFO_ACK_PREFIX + origin, originEpoch + ":" + seq);
+        membership.storeLocalPeerInfo(info);
+    }
+
+    private static long[] parseAck(String ack) {
+        if (ack == null) {
+            return null;
+        }
+        int colon = ack.indexOf(':');
+        try {
+            return new long[]{Long.parseLong(ack.substring(0, colon)), Long.parseLong(ack.substring(colon + 1))};
+        } catch (IndexOutOfBoundsException | NumberFormatException err) {
+            return null;
+        }
+    }
+
+    private static final class SentBatch {
+
+        private final long sequence;
+        private final String messageId;
+        private final long sentTs = System.currentTimeMillis();
+
+        private SentBatch(long sequence, String messageId) {
+            this.sequence = sequence;
+            this.messageId = messageId;
+        }
+    }
+
+    private static final class Batch {
+
+        private final List<Invalidation> invalidations = new ArrayList<>();
+        private final CompletableFuture<Long> sent = new CompletableFuture<>();
+    }
+
+    /**
+     * A flush of the cache or a purge of some contents.
+     */
+    public static final class Invalidation {
+
+        private final Type type;
+        private final String host;
+        private final String value; // prefix or tag
+
+        private Invalidation(Type type, String host, String value) {
+            this.type = Objects.requireNonNull(type);
+            this.host = host;
+            this.value = value;
+        }
+
+        public static Invalidation flush() {
+            return new Invalidation(Type.FLUSH, null, null);
+        }
+
+        public static Invalidation host(String host) {
+            return new Invalidation(Type.HOST, host, null);
+        }
+
+        public static Invalidation prefix(String host, String prefix) {
+            return new Invalidation(Type.PREFIX, host, prefix);
+        }
+
+        public static Invalidation tag(String tag) {
+            return new Invalidation(Type.TAG, null, tag);
+        }
+
+        private Map<String, Object> toMap() {
+            Map<String, Object> res = new HashMap<>();
+            res.put("type", type.name());
+            res.put("host", host);
+            res.put("value", value);
+            return res;
+        }
+
+        private static Invalidation fromMap(Map<String, Object> map) {
+            return new Invalidation(Type.valueOf((String) map.get("type")), (String) map.get("host"), (String) map.get("value"));
+        }
+
+        @Override
+        public String toString() {
+            return "Invalidation{" + "type=" + type + ", host=" + host + ", value=" + value + '}';
+        }
+    }
+
+    private class OnCacheInvalidation implements GroupMembershipHandler.EventCallback {
+
+        @Override
+        public void eventFired(String queueId) {
+            // invalidations always come with data
+        }
+
+        @Override
+        public void eventFired(String queueId, Map<String, Object> data) {
+            if (data == null) {
+                return;
+            }
+            // no calls to the GroupMembershipHandler within the callback
+            String origin = (String) data.get("origin");
+            executor.execute(() -> {
+                try {
+                    received(origin, data);
+                } catch (RuntimeException err) {
+                    LOG.log(Level.SEVERE, "Cannot handle cache invalidations from peer " + origin, err);
+                }
+            });
+        }
+
+        @Override
+        public void reconnected() {
+            // batches published while the session was lost could have been deleted before being read
+            LOG.log(Level.INFO, "Cache invalidations listener - flushing the cache after ZK session loss");
+            executor.execute(cache::clear);
+        }
+    }
+}
@@ -19,6 +19,8 @@
  */
 package org.carapaceproxy.server.cache;
 
+import java.util.Objects;
+
 /**
  * Configuration for the ContentsCache
  *
@@ -29,11 +31,25 @@ public class CacheRuntimeConfiguration {
     private final long cacheMaxSize;
     private final long cacheMaxFileSize;
     private final boolean cacheDisabledForSecureRequestsWithoutPublic;
+    // disk tier, disabled with a max size of 0
+    private final long diskMaxSize;
+    private final String diskPath;
+    private final int diskPromotionHits;
+    private final boolean diskWarmRestart;
 
     public CacheRuntimeConfiguration(long cacheMaxSize, long cacheMaxFileSize, boolean cacheDisabledForSecureRequestsWithoutPublic) {
+        this(cacheMaxSize, cacheMaxFileSize, cacheDisabledForSecureRequestsWithoutPublic, 0, null, 0, false);
+    }
+
+    public CacheRuntimeConfiguration(long cacheMaxSize, long cacheMaxFileSize, boolean cacheDisabledForSecureRequestsWithoutPublic,
+                                     long diskMaxSize, String diskPath, int diskPromotionHits, boolean diskWarmRestart) {
         this.cacheMaxSize = cacheMaxSize;
         this.cacheMaxFileSize = cacheMaxFileSize;
         this.cacheDisabledForSecureRequestsWithoutPublic = cacheDisabledForSecureRequestsWithoutPublic;
+        this.diskMaxSize = diskMaxSize;
+        this.diskPath = diskPath;
+        this.diskPromotionHits = diskPromotionHits;
+        this.diskWarmRestart = diskWarmRestart;
     }
 
     @Override
@@ -42,6 +58,10 @@ public class CacheRuntimeConfiguration {
         hash = 83 * hash + (int) (this.cacheMaxSize ^ (this.cacheMaxSize >>> 32));
         hash = 83 * hash + (int) (this.cacheMaxFileSize ^ (this.cacheMaxFileSize >>> 32));
         hash = 83 * hash + (this.cacheDisabledForSecureRequestsWithoutPublic ? 1 : 0);
+        hash = 83 * hash + (int) (this.diskMaxSize ^ (this.diskMaxSize >>> 32));
+        hash = 83 * hash + Objects.hashCode(this.diskPath);
+        hash = 83 * hash + this.diskPromotionHits;
+        hash = 83 * hash + (this.diskWarmRestart ? 1 : 0);
         return hash;
     }
 
@@ -66,6 +86,18 @@ public class CacheRuntimeConfiguration {
         if (this.cacheDisabledForSecureRequestsWithoutPublic != other.cacheDisabledForSecureRequestsWithoutPublic) {
             return false;
         }
+        if (this.diskMaxSize != other.diskMaxSize) {
+            return false;
+        }
+        if (!Objects.equals(this.diskPath, other.diskPath)) {
+            return false;
+        }
+        if (this.diskPromotionHits != other.diskPromotionHits) {
+            return false;
+        }
+        if (this.diskWarmRestart != other.diskWarmRestart) {
+            return false;
+        }
         return true;
     }
 
@@ -81,4 +113,20 @@ public class CacheRuntimeConfiguration {
         return cacheDisabledForSecureRequestsWithoutPublic;
     }
 
+    public long getDiskMaxSize() {
+        return diskMaxSize;
+    }
+
+    public String getDiskPath() {
+        return diskPath;
+    }
+
+    public int getDiskPromotionHits() {
+        return diskPromotionHits;
+    }
+
+    public boolean isDiskWarmRestart() {
+        return diskWarmRestart;
+    }
+
 }
@@ -65,11 +65,12 @@ class CaffeineCacheImpl implements CacheImpl {
                 public long expireAfterCreate(ContentKey key, CachedContent payload, long currentTime) {
                     // WARNING: provided current time is completely misleading, as stated in the doc. 
                     // System.currentTimeMillis() should be used instead.
-                    return (payload.expiresTs - System.currentTimeMillis()) * 1_000_000; // In nanos
+                    return (payload.getStaleUntilTs() - System.currentTimeMillis()) * 1_000_000; // In nanos
                 }
                 @Override
                 public long expireAfterUpdate(ContentKey key, CachedContent payload, long currentTime, long currentDuration) {
-                    return currentDuration;
+                    // a refreshed content replaces the stale one still in cache: the new content brings its own expiration
+                    return (payload.getStaleUntilTs() - System.currentTimeMillis()) * 1_000_000; // In nanos
                 }
                 @Override
                 public long expireAfterRead(ContentKey key, CachedContent payload, long currentTime, long currentDuration) {
@@ -77,7 +78,8 @@ class CaffeineCacheImpl implements CacheImpl {
                 }
             })
             .weigher((ContentKey key, CachedContent payload) -> {
-                    return (int) (key.getMemUsage() + payload.getMemUsage());
+                    // body bytes actually held plus heap overhead
+                    return (int) Math.min(Integer.MAX_VALUE, key.getMemUsage() + payload.getMemUsage());
                 }
             )
             .removalListener((ContentKey key, CachedContent payload, RemovalCause cause) -> {
@@ -146,7 +148,7 @@ class CaffeineCacheImpl implements CacheImpl {
     @Override
     public CachedContent get(ContentKey key) {
         CachedContent cached = cache.getIfPresent(key);
-        if (cached != null && cached.expiresTs < System.currentTimeMillis()) {
+        if (cached != null && cached.getStaleUntilTs() < System.currentTimeMillis()) { // not even servable stale
             logger.log(Level.FINE, "expiring content {0}, expired at {1}", new Object[]{key.uri, new java.util.Date(cached.expiresTs)});
             cache.invalidate(key);
             cached = null;
@@ -158,6 +160,24 @@ class CaffeineCacheImpl implements CacheImpl {
         return cached;
     }
 
+    @Override
+    public boolean containsKey(ContentKey key) {
+        return cache.asMap().containsKey(key);
+    }
+
+    @Override
+    public boolean replace(ContentKey key, CachedContent current, CachedContent payload) {
+        if (!cache.asMap().replace(key, current, payload)) {
+            return false;
+        }
+        // the current element is released by the removal listener
+        stats.cached(payload.heapSize, payload.directSize, key.getMemUsage() + payload.getMemUsage());
+        entries.addAndGet(1);
+        memSize.addAndGet(key.getMemUsage() + payload.getMemUsage());
+        logger.log(Level.FINE, "replacing content {0}", key.uri);
+        return true;
+    }
+
     private void release(ContentKey key, CachedContent payload) {
         stats.released(payload.heapSize, payload.directSize, key.getMemUsage() + payload.getMemUsage());
         entries.addAndGet(-1);
@@ -21,27 +21,53 @@ package org.carapaceproxy.server.cache;
 
 import com.google.common.annotations.VisibleForTesting;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import static io.netty.handler.codec.http.HttpStatusClass.REDIRECTION;
+import com.github.benmanes.caffeine.cache.RemovalCause;
 import io.prometheus.client.Counter;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import org.carapaceproxy.core.ProxyRequest;
 import org.carapaceproxy.core.RuntimeServerConfiguration;
+import org.carapaceproxy.utils.HttpUtils;
 import org.carapaceproxy.utils.PrometheusUtils;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 import reactor.netty.http.client.HttpClientResponse;
 
 /**
@@ -52,6 +78,48 @@ public class ContentsCache {
     private static final Logger LOG = Logger.getLogger(ContentsCache.class.getName());
 
     private static final Counter NO_CACHE_REQUESTS_COUNTER = PrometheusUtils.createCounter("cache", "non_cacheable_requests_total", "not cacheable requests").register();
+    private static final Counter COALESCED_REQUESTS_COUNTER = PrometheusUtils.createCounter(
+            "cache", "coalesced_requests_total", "cache misses waiting for the in-flight request of the same content"
+    ).register();
+    private static final Counter COALESCED_FALLBACKS_COUNTER = PrometheusUtils.createCounter(
+            "cache", "coalesced_fallbacks_total", "coalesced cache misses forwarded to the backend after a timeout or a failure of the in-flight request"
+    ).register();
+
+    private static final Counter STALE_HITS_COUNTER = PrometheusUtils.createCounter(
+            "cache", "stale_hits_total", "expired contents served", "reason"
+    ).register();
+    private static final Counter.Child STALE_WHILE_REVALIDATE_HITS_COUNTER = STALE_HITS_COUNTER.labels("revalidate");
+    private static final Counter.Child STALE_IF_ERROR_HITS_COUNTER = STALE_HITS_COUNTER.labels("error");
+    private static final Counter BACKGROUND_REFRESHES_COUNTER = PrometheusUtils.createCounter(
+            "cache", "background_refreshes_total", "requests to the backend to refresh expired contents served stale"
+    ).register();
+
+    private static final Counter REVALIDATIONS_COUNTER = PrometheusUtils.createCounter(
+            "cache", "revalidations_total", "conditional requests to the backend for expired contents", "result"
+    ).register();
+    private static final Counter.Child REVALIDATIONS_NOT_MODIFIED_COUNTER = REVALIDATIONS_COUNTER.labels("not_modified");
+    private static final Counter.Child REVALIDATIONS_MODIFIED_COUNTER = REVALIDATIONS_COUNTER.labels("modified");
+    private static final Counter.Child REVALIDATIONS_ERROR_COUNTER = REVALIDATIONS_COUNTER.labels("error");
+
+    private static final Counter BACKGROUND_FILLS_COUNTER = PrometheusUtils.createCounter(
+            "cache", "background_fills_total", "requests to the backend to fetch the whole content on range misses"
+    ).register();
+
+    private static final Counter VARIANT_EVICTIONS_COUNTER = PrometheusUtils.createCounter(
+            "cache", "variant_evictions_total", "variants evicted to keep the maximum number of variants per URI"
+    ).register();
+
+    private static final Counter PURGED_COUNTER = PrometheusUtils.createCounter(
+            "cache", "purged_total", "contents removed by purges", "type"
+    ).register();
+
+    static final String VARY_ANY = "*";
+    // tags set by the backends, to purge together the contents with the same tag
+    static final String SURROGATE_KEY = "Surrogate-Key"; // space separated
+    static final String CACHE_TAG = "Cache-Tag"; // comma separated
+
+    static final String CACHE_CONTROL_STALE_WHILE_REVALIDATE = "stale-while-revalidate";
+    static final String CACHE_CONTROL_STALE_IF_ERROR = "stale-if-error";
 
     public static final List<String> CACHE_CONTROL_CACHE_DISABLED_VALUES = Arrays.asList(
             HttpHeaderValues.PRIVATE + "",
@@ -61,27 +129,91 @@ public class ContentsCache {
     );
 
     private CacheImpl cache;
+    // second tier, null whether disabled
+    private volatile DiskCacheImpl diskCache;
 
     private final CacheStats stats;
     private final ScheduledExecutorService threadPool;
     private CacheRuntimeConfiguration currentConfiguration;
+    private volatile boolean started;
+    // collapsed forwarding: in-flight backend requests for contents not in cache
+    private final Map<ContentKey, Sinks.One<Boolean>> inFlightRequests = new ConcurrentHashMap<>();
+    private volatile long collapsedForwardingTimeout;
+    // defaults for contents without stale-while-revalidate/stale-if-error directives
+    private volatile long staleWhileRevalidate;
+    private volatile long staleIfError;
+    private volatile long revalidationWindow;
+    // contents with a Vary, by primary key
+    private final Map<ContentKey, Variants> variants = new ConcurrentHashMap<>();
+    private volatile int maxVariants;
+    // secondary indexes for the purges: by host (empty for none) and URI, by tag
+    private final Map<String, ConcurrentNavigableMap<String, Set<ContentKey>>> hostIndex = new ConcurrentHashMap<>();
+    private final Map<String, Set<ContentKey>> tagIndex = new ConcurrentHashMap<>();
+    private volatile boolean rangeBackgroundFill;
 
     static final long DEFAULT_TTL = 1000 * 60 * 60;
+    // upper bound to the buffer allocated upfront for a content of declared length
+    private static final int MAX_INITIAL_CONTENT_CAPACITY = 16 * 1024 * 1024;
 
     public ContentsCache(RuntimeServerConfiguration currentConfiguration) {
         this.stats = new CacheStats();
         this.threadPool = Executors.newSingleThreadScheduledExecutor();
 
-        this.currentConfiguration = new CacheRuntimeConfiguration(
-                currentConfiguration.getCacheMaxSize(),
-                currentConfiguration.getCacheMaxFileSize(),
-                currentConfiguration.isCacheDisabledForSecureRequestsWithoutPublic()
+        this.currentConfiguration = buildCacheConfiguration(currentConfiguration);
+        this.cache = createMemoryCache(this.currentConfiguration);
+        this.diskCache = createDiskCache(this.currentConfiguration);
+        this.collapsedForwardingTimeout = currentConfiguration.getCacheCollapsedForwardingTimeout();
+        this.staleWhileRevalidate = currentConfiguration.getCacheStaleWhileRevalidate();
+        this.staleIfError = currentConfiguration.getCacheStaleIfError();
+        this.revalidationWindow = currentConfiguration.getCacheRevalidationWindow();
+        this.maxVariants = currentConfiguration.getCacheMaxVariants();
+        this.rangeBackgroundFill = currentConfiguration.isCacheRangeBackgroundFill();
+    }
+
+    private static CacheRuntimeConfiguration buildCacheConfiguration(RuntimeServerConfiguration configuration) {
+        return new CacheRuntimeConfiguration(
+                configuration.getCacheMaxSize(),
+                configuration.getCacheMaxFileSize(),
+                configuration.isCacheDisabledForSecureRequestsWithoutPublic(),
+                configuration.getCacheDiskMaxSize(),
+                configuration.getCacheDiskPath(),
+                configuration.getCacheDiskPromotionHits(),
+                configuration.isCacheDiskWarmRestart()
         );
-        this.cache = new CaffeineCacheImpl(stats, currentConfiguration.getCacheMaxSize(), LOG);
+    }
+
+    private CacheImpl createMemoryCache(CacheRuntimeConfiguration configuration) {
+        CaffeineCacheImpl memoryCache = new CaffeineCacheImpl(stats, configuration.getCacheMaxSize(), LOG);
+        memoryCache.setRemovalListener((key, payload, cause) -> {
+            DiskCacheImpl disk = diskCache;
+            if (cause == RemovalCause.SIZE && disk != null) {
+                disk.demote((ContentKey) key, (CachedContent) payload);
+            }
+        });
+        return memoryCache;
+    }
+
+    private static DiskCacheImpl createDiskCache(CacheRuntimeConfiguration configuration) {
+        if (configuration.getDiskMaxSize() <= 0) {
+            return null;
+        }
+        Path directory = Paths.get(configuration.getDiskPath()).toAbsolutePath();
+        try {
+            LOG.log(Level.INFO, "Disk cache at {0}, max size {1} bytes", new Object[]{directory, configuration.getDiskMaxSize()});
+            return new DiskCacheImpl(directory, configuration.getDiskMaxSize(), configuration.getDiskPromotionHits(), LOG);
+        } catch (IOException err) {
+            LOG.log(Level.SEVERE, "Cannot use " + directory + " for the disk cache, disk cache disabled", err);
+            return null;
+        }
     }
 
     public void start() {
         this.threadPool.scheduleWithFixedDelay(new Evictor(), 1, 1, TimeUnit.MINUTES);
+        started = true;
+        DiskCacheImpl disk = this.diskCache;
+        if (disk != null) {
+            disk.start(currentConfiguration.isDiskWarmRestart(), this::restore);
+        }
     }
 
     public void close() {
@@ -91,7 +223,16 @@ public class ContentsCache {
         } catch (InterruptedException exit) {
             Thread.currentThread().interrupt();
         }
+        DiskCacheImpl disk = this.diskCache;
+        if (disk != null && currentConfiguration.isDiskWarmRestart()) {
+            // contents in memory go to disk too, to be found at the next start
+            this.cache.inspectCache(disk::persist);
+        }
         this.cache.close();
+        if (disk != null) {
+            this.diskCache = null;
+            disk.close(currentConfiguration.isDiskWarmRestart());
+        }
     }
 
     private boolean isContentLengthCacheable(long contentLength) {
@@ -125,9 +266,15 @@ public class ContentsCache {
             LOG.log(Level.FINER, "not cacheable {0}", response);
             return false;
         }
+        List<String> vary = parseVary(headers);
+        if (vary.contains(VARY_ANY) || (!vary.isEmpty() && maxVariants <= 0)) {
+            LOG.log(Level.FINER, "not cacheable {0}, vary {1}", new Object[]{response, vary});
+            return false;
+        }
         switch (response.status().codeClass()) {
             case SUCCESS:
-                return true;
+                // partial contents are never cached, ranges are served from whole contents
+                return response.status().code() != HttpResponseStatus.PARTIAL_CONTENT.code();
             case REDIRECTION:
             case INFORMATIONAL:
             case SERVER_ERROR:
@@ -204,7 +351,384 @@ public class ContentsCache {
     }
 
     public ContentReceiver createCacheReceiver(ProxyRequest request) {
-        return isCacheable(request, true) ? new ContentReceiver(new ContentKey(request)) : null;
+        return isCacheable(request, true) ? new ContentReceiver(resolveKey(request), request.getRequestHeaders()) : null;
+    }
+
+    /**
+     * @param request
+     * @return the key of the content for the request, that of its variant whether the content has a Vary
+     */
+    private ContentKey resolveKey(ProxyRequest request) {
+        ContentKey key = new ContentKey(request);
+        Variants contentVariants = variants.get(key);
+        return contentVariants != null ? key.withVariant(Variants.variantOf(contentVariants.headers, request.getRequestHeaders())) : key;
+    }
+
+    /**
+     * Registers the variant of a content to be cached.
+     *
+     * @param key key the content has been requested with
+     * @param requestHeaders
+     * @param vary request headers from the Vary of the response
+     * @return the key to cache the content with
+     */
+    private ContentKey registerVariant(ContentKey key, HttpHeaders requestHeaders, List<String> vary) {
+        ContentKey primaryKey = key.getPrimaryKey();
+        List<ContentKey> evicted = new ArrayList<>();
+        if (vary.isEmpty()) {
+            Variants previous = variants.remove(primaryKey);
+            if (previous != null) {
+                // the content does not vary anymore
+                synchronized (previous) {
+                    evicted.addAll(previous.keys);
+                }
+                evicted.forEach(this::removeContent);
+            }
+            return primaryKey;
+        }
+        return addVariant(primaryKey, vary, Variants.variantOf(vary, requestHeaders));
+    }
+
+    /**
+     * @param primaryKey
+     * @param vary request headers from the Vary of the response
+     * @param variant normalised values of those headers
+     * @return the key of the variant, possibly already evicted whether it is over the maximum number of variants
+     */
+    private ContentKey addVariant(ContentKey primaryKey, List<String> vary, String variant) {
+        List<ContentKey> evicted = new ArrayList<>();
+        Variants contentVariants = variants.compute(primaryKey, (k, current) -> {
+            if (current != null && current.headers.equals(vary)) {
+                return current;
+            }
+            if (current != null) {
+                // the content varies on other headers now
+                synchronized (current) {
+                    evicted.addAll(current.keys);
+                }
+            } else {
+                // lookups resolve to the variants from now on
+                evicted.add(primaryKey);
+            }
+            return new Variants(vary);
+        });
+        ContentKey variantKey = primaryKey.withVariant(variant);
+        synchronized (contentVariants) {
+            contentVariants.keys.remove(variantKey);
+            contentVariants.keys.add(variantKey);
+            Iterator<ContentKey> oldest = contentVariants.keys.iterator();
+            while (contentVariants.keys.size() > maxVariants && oldest.hasNext()) {
+                evicted.add(oldest.next());
+                oldest.remove();
+                VARIANT_EVICTIONS_COUNTER.inc();
+            }
+        }
+        evicted.forEach(this::removeContent);
+        return variantKey;
+    }
+
+    private void removeContent(ContentKey key) {
+        cache.remove(key);
+        DiskCacheImpl disk = diskCache;
+        if (disk != null) {
+            disk.remove(key);
+        }
+    }
+
+    /**
+     * Indexes a content reloaded from disk at warm restart: its variant is registered again, from the variant of the key
+     * and the Vary of the stored response.
+     */
+    private void restore(ContentKey key, CachedContent content) {
+        if (key.variant != null) {
+            List<String> vary = parseVary(content.headers);
+            if (vary.isEmpty() || vary.contains(VARY_ANY) || maxVariants <= 0) {
+                removeContent(key); // unreachable
+                return;
+            }
+            addVariant(key.getPrimaryKey(), vary, key.variant);
+        }
+        index(key, content);
+    }
+
+    private void index(ContentKey key, CachedContent content) {
+        ConcurrentNavigableMap<String, Set<ContentKey>> uris = hostIndex.computeIfAbsent(
+                key.host != null ? key.host : "", host -> new ConcurrentSkipListMap<>()
+        );
+        while (true) {
+            Set<ContentKey> keys = uris.computeIfAbsent(key.uri, uri -> ConcurrentHashMap.newKeySet());
+            synchronized (keys) {
+                if (uris.get(key.uri) == keys) { // not dropped by pruneIndexes in the meantime
+                    keys.add(key);
+                    break;
+                }
+            }
+        }
+        for (String tag : parseTags(content.headers)) {
+            tagIndex.compute(tag, (t, keys) -> {
+                if (keys == null) {
+                    keys = ConcurrentHashMap.newKeySet();
+                }
+                keys.add(key);
+                return keys;
+            });
+        }
+    }
+
+    static Set<String> parseTags(HttpHeaders headers) {
+        if (headers == null) {
+            return Collections.emptySet();
+        }
+        Set<String> tags = new HashSet<>();
+        for (String value : headers.getAll(SURROGATE_KEY)) {
+            for (String tag : value.split(" ")) {
+                if (!tag.isEmpty()) {
+                    tags.add(tag);
+                }
+            }
+        }
+        for (String value : headers.getAll(CACHE_TAG)) {
+            for (String tag : value.split(",")) {
+                tag = tag.trim();
+                if (!tag.isEmpty()) {
+                    tags.add(tag);
+                }
+            }
+        }
+        return tags;
+    }
+
+    private void clearIndexes() {
+        variants.clear();
+        hostIndex.clear();
+        tagIndex.clear();
+    }
+
+    /**
+     * Removes from both tiers all the contents of a host.
+     *
+     * @param host as for the Host header of the requests, port included if any
+     * @return number of contents removed
+     */
+    public int purgeHost(String host) {
+        ConcurrentNavigableMap<String, Set<ContentKey>> uris = hostIndex.remove(host != null ? host : "");
+        int count = uris != null ? purge(uris.values()) : 0;
+        PURGED_COUNTER.labels("host").inc(count);
+        LOG.log(Level.INFO, "purged {0} contents of host {1}", new Object[]{count, host});
+        return count;
+    }
+
+    /**
+     * Removes from both tiers all the contents whose URI starts with a prefix.
+     *
+     * @param host host of the contents, null for all the hosts
+     * @param prefix
+     * @return number of contents removed
+     */
+    public int purgePrefix(String host, String prefix) {
+        Collection<ConcurrentNavigableMap<String, Set<ContentKey>>> hosts = host != null
+                ? Collections.singletonList(hostIndex.get(host))
+                : hostIndex.values();
+        int count = 0;
+        for (ConcurrentNavigableMap<String, Set<ContentKey>> uris : hosts) {
+            if (uris == null) {
+                continue;
+            }
+            // URIs are sorted: the ones with the prefix are contiguous
+            Iterator<Map.Entry<String, Set<ContentKey>>> it = uris.tailMap(prefix, true).entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Set<ContentKey>> entry = it.next();
+                if (!entry.getKey().startsWith(prefix)) {
+                    break;
+                }
+                it.remove();
+                count += purge(Collections.singletonList(entry.getValue()));
+            }
+        }
+        PURGED_COUNTER.labels("prefix").inc(count);
+        LOG.log(Level.INFO, "purged {0} contents with prefix {1} of host {2}", new Object[]{count, prefix, host});
+        return count;
+    }
+
+    /**
+     * Removes from both tiers all the contents tagged by the backend with Surrogate-Key or Cache-Tag.
+     *
+     * @param tag
+     * @return number of contents removed
+     */
+    public int purgeTag(String tag) {
+        Set<ContentKey> keys = tagIndex.remove(tag);
+        int count = keys != null ? purge(Collections.singletonList(keys)) : 0;
+        PURGED_COUNTER.labels("tag").inc(count);
+        LOG.log(Level.INFO, "purged {0} contents with tag {1}", new Object[]{count, tag});
+        return count;
+    }
+
+    private int purge(Collection<Set<ContentKey>> keys) {
+        int count = 0;
+        for (Set<ContentKey> group : keys) {
+            for (ContentKey key : group) {
+                if (isCached(key)) { // the indexes can be behind the evictions
+                    count++;
+                }
+                removeContent(key);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Drops from the indexes the contents no more in cache, e.g. evicted or expired.
+     */
+    private void pruneIndexes() {
+        hostIndex.values().forEach(uris -> uris.forEach((uri, keys) -> {
+            synchronized (keys) {
+                keys.removeIf(key -> !isCached(key));
+                if (keys.isEmpty()) {
+                    uris.remove(uri, keys);
+                }
+            }
+        }));
+        tagIndex.keySet().forEach(tag -> tagIndex.computeIfPresent(tag, (t, keys) -> {
+            keys.removeIf(key -> !isCached(key));
+            return keys.isEmpty() ? null : keys;
+        }));
+        variants.forEach((primaryKey, contentVariants) -> {
+            synchronized (contentVariants) {
+                contentVariants.keys.removeIf(key -> !isCached(key));
+                if (contentVariants.keys.isEmpty()) {
+                    variants.remove(primaryKey, contentVariants);
+                }
+            }
+        });
+    }
+
+    private boolean isCached(ContentKey key) {
+        DiskCacheImpl disk = diskCache;
+        return cache.containsKey(key) || (disk != null && disk.containsKey(key));
+    }
+
+    /**
+     * @param headers response headers
+     * @return the names of the request headers in the Vary, lowercase and sorted
+     */
+    static List<String> parseVary(HttpHeaders headers) {
+        List<String> values = headers.getAll(HttpHeaderNames.VARY);
+        if (values.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Set<String> names = new TreeSet<>();
+        for (String value : values) {
+            for (String name : value.split(",")) {
+                name = name.trim().toLowerCase();
+                if (!name.isEmpty()) {
+                    names.add(name);
+                }
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * Normalises the values of a request header a content varies on, so that equivalent requests share the same variant.
+     *
+     * @param name lowercase header name
+     * @param values
+     * @return
+     */
+    static String normaliseVariantValue(String name, List<String> values) {
+        if (values.isEmpty()) {
+            return "";
+        }
+        if (HttpHeaderNames.ACCEPT_ENCODING.contentEquals(name)) {
+            // accepted codings regardless of order and preference, e.g. "gzip, deflate, br" -> "br,deflate,gzip"
+            Set<String> codings = new TreeSet<>();
+            for (String value : values) {
+                for (String coding : value.split(",")) {
+                    String[] params = coding.split(";");
+                    String token = params[0].trim().toLowerCase();
+                    if (!token.isEmpty() && !isRejectedCoding(params)) {
+                        codings.add(token);
+                    }
+                }
+            }
+            return String.join(",", codings);
+        }
+        return String.join(",", values).replaceAll(" ", "").toLowerCase();
+    }
+
+    private static boolean isRejectedCoding(String[] params) {
+        for (int i = 1; i < params.length; i++) {
+            String param = params[i].replaceAll(" ", "");
+            if (param.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(param.substring(2)) <= 0;
+                } catch (NumberFormatException ex) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Request headers a content varies on, and the keys of its variants.
+     */
+    private static final class Variants {
+
+        private final List<String> headers;
+        // in order of storage, the oldest first
+        private final Set<ContentKey> keys = new LinkedHashSet<>();
+
+        private Variants(List<String> headers) {
+            this.headers = headers;
+        }
+
+        private static String variantOf(List<String> headers, HttpHeaders requestHeaders) {
+            StringBuilder variant = new StringBuilder();
+            for (String name : headers) {
+                if (variant.length() > 0) {
+                    variant.append('&');
+                }
+                variant.append(name).append('=').append(normaliseVariantValue(name, requestHeaders.getAll(name)));
+            }
+            return variant.toString();
+        }
+    }
+
+    /**
+     * Collapsed forwarding of cache misses: only the first receiver for a content fetches it from the backend, the
+     * other ones wait for the in-flight request to complete.
+     *
+     * @param receiver
+     * @return null whether the receiver has to fetch the content, otherwise the outcome of the in-flight request: true
+     * if the content has been cached, false if it has not or the wait timed out.
+     */
+    public Mono<Boolean> joinInFlightRequest(ContentReceiver receiver) {
+        long timeout = collapsedForwardingTimeout;
+        if (timeout <= 0) {
+            return null;
+        }
+        Sinks.One<Boolean> sink = Sinks.one();
+        Sinks.One<Boolean> inFlightRequest = inFlightRequests.putIfAbsent(receiver.key, sink);
+        if (inFlightRequest == null) {
+            receiver.inFlightRequest = sink;
+            return null;
+        }
+        COALESCED_REQUESTS_COUNTER.inc();
+        LOG.log(Level.FINEST, "{0} waiting for in-flight request", receiver.key);
+        return inFlightRequest.asMono()
+                .timeout(Duration.ofMillis(timeout), Mono.just(false))
+                .doOnNext(cached -> {
+                    if (!cached) {
+                        COALESCED_FALLBACKS_COUNTER.inc();
+                    }
+                });
+    }
+
+    @VisibleForTesting
+    int getInFlightRequestsCount() {
+        return inFlightRequests.size();
     }
 
     public final long computeDefaultExpireDate() {
@@ -213,16 +737,33 @@ public class ContentsCache {
 
     public int clear() {
         LOG.info("clearing cache");
-        return this.cache.clear();
+        int size = this.cache.clear();
+        clearIndexes();
+        DiskCacheImpl disk = this.diskCache;
+        if (disk != null) {
+            size += disk.clear();
+        }
+        return size;
     }
 
     public List<Map<String, Object>> inspectCache() {
         List<Map<String, Object>> res = new ArrayList<>();
-        this.cache.inspectCache((key, payload) -> {
+        inspectCache(this.cache, "memory", res);
+        DiskCacheImpl disk = this.diskCache;
+        if (disk != null) {
+            inspectCache(disk, "disk", res);
+        }
+        return res;
+    }
+
+    private static void inspectCache(CacheImpl cache, String tier, List<Map<String, Object>> res) {
+        cache.inspectCache((key, payload) -> {
             Map<String, Object> entry = new HashMap<>();
+            entry.put("tier", tier);
             entry.put("method", key.method);
             entry.put("host", key.host);
             entry.put("uri", key.uri);
+            entry.put("variant", key.variant);
             entry.put("cacheKey", key.composeKey());
             entry.put("heapSize", payload.heapSize);
             entry.put("directSize", payload.directSize);
@@ -232,15 +773,16 @@ public class ContentsCache {
             entry.put("hits", payload.hits);
             res.add(entry);
         });
-        return res;
     }
 
     public void reloadConfiguration(RuntimeServerConfiguration newConfiguration) {
-        CacheRuntimeConfiguration newCacheConfiguration = new CacheRuntimeConfiguration(
-                newConfiguration.getCacheMaxSize(),
-                newConfiguration.getCacheMaxFileSize(),
-                newConfiguration.isCacheDisabledForSecureRequestsWithoutPublic()
-        );
+        this.collapsedForwardingTimeout = newConfiguration.getCacheCollapsedForwardingTimeout();
+        this.staleWhileRevalidate = newConfiguration.getCacheStaleWhileRevalidate();
+        this.staleIfError = newConfiguration.getCacheStaleIfError();
+        this.revalidationWindow = newConfiguration.getCacheRevalidationWindow();
+        this.maxVariants = newConfiguration.getCacheMaxVariants();
+        this.rangeBackgroundFill = newConfiguration.isCacheRangeBackgroundFill();
+        CacheRuntimeConfiguration newCacheConfiguration = buildCacheConfiguration(newConfiguration);
         if (newCacheConfiguration.equals(currentConfiguration)) {
             LOG.info("Cache configuration not changed during hot reload");
             return;
@@ -249,19 +791,38 @@ public class ContentsCache {
         LOG.info("Cache configuration changed during hot reload, flushing");
         // need to clear
         CacheImpl oldCache = this.cache;
-        this.cache = new CaffeineCacheImpl(stats, newCacheConfiguration.getCacheMaxSize(), LOG);
+        DiskCacheImpl oldDiskCache = this.diskCache;
+        if (oldDiskCache != null) {
+            // the new tier could use the same directory
+            this.diskCache = null;
+            oldDiskCache.close();
+        }
+        DiskCacheImpl newDiskCache = createDiskCache(newCacheConfiguration);
+        this.diskCache = newDiskCache;
+        this.cache = createMemoryCache(newCacheConfiguration);
         currentConfiguration = newCacheConfiguration;
         oldCache.clear();
+        // before reloading the contents from disk, which indexes them again
+        clearIndexes();
+        if (newDiskCache != null && started) {
+            newDiskCache.start(newCacheConfiguration.isDiskWarmRestart(), this::restore);
+        }
     }
 
     public static final class ContentSender {
 
         private final ContentKey key;
-        private final CachedContent cached;
+        private CachedContent cached;
+        private final ByteBuf content;
+        private boolean stale;
+        private boolean staleWhileRevalidate;
 
-        private ContentSender(ContentKey key, CachedContent cached) {
+        private ContentSender(ContentKey key, CachedContent cached, ByteBuf content, long now) {
             this.key = key;
             this.cached = cached;
+            this.content = content;
+            this.stale = !cached.isFresh(now);
+            this.staleWhileRevalidate = stale && now <= cached.expiresTs + cached.staleWhileRevalidate;
         }
 
         public ContentKey getKey() {
@@ -272,6 +833,56 @@ public class ContentsCache {
             return cached;
         }
 
+        /**
+         * @return read-only view of the cached content, retained for this sender: it is released once written, or by
+         * {@link #release()} whether it is not going to be sent.
+         */
+        public ByteBuf getContent() {
+            return content;
+        }
+
+        public void release() {
+            content.release();
+        }
+
+        /**
+         * @return whether the content is expired, but still servable stale
+         */
+        public boolean isStale() {
+            return stale;
+        }
+
+        /**
+         * @return whether the content is expired and can be served while it is refreshed in background
+         * @see ContentsCache#startRevalidation(ProxyRequest, ContentSender)
+         */
+        public boolean isStaleWhileRevalidate() {
+            return staleWhileRevalidate;
+        }
+
+        /**
+         * @return whether the content is expired and has validators for a conditional request to the backend
+         * @see ContentsCache#revalidated(ContentSender, ContentReceiver, HttpClientResponse)
+         */
+        public boolean isRevalidable() {
+            return stale && cached.revalidationWindow > 0;
+        }
+
+        /**
+         * Turns a request to the backend into a conditional request for this content.
+         *
+         * @param headers headers of the request to the backend
+         */
+        public void addConditionalHeaders(HttpHeaders headers) {
+            String etag = cached.headers != null ? cached.headers.get(HttpHeaderNames.ETAG) : null;
+            if (etag != null) {
+                headers.set(HttpHeaderNames.IF_NONE_MATCH, etag);
+            }
+            if (cached.lastModified > 0) {
+                headers.set(HttpHeaderNames.IF_MODIFIED_SINCE, HttpUtils.formatDateHeader(new Date(cached.lastModified)));
+            }
+        }
+
     }
 
     public ContentSender getCacheSender(ProxyRequest request) {
@@ -279,61 +890,359 @@ public class ContentsCache {
             return null;
         }
 
-        ContentKey key = new ContentKey(request);
+        ContentKey key = resolveKey(request);
         CachedContent cached = cache.get(key);
+        DiskCacheImpl disk = diskCache;
+        if (cached == null && disk != null) {
+            cached = disk.get(key);
+            if (cached != null) {
+                disk.promoteIfNeeded(key, cached, this::promote);
+            }
+        }
+        if (cached == null) {
+            return null;
+        }
+        ByteBuf content = cached.retainContent();
+        if (content == null) { // evicted in the meantime, or unreadable from disk
+            return null;
+        }
+        ContentSender sender = new ContentSender(key, cached, content, System.currentTimeMillis());
+        if (sender.isStaleWhileRevalidate()) {
+            STALE_WHILE_REVALIDATE_HITS_COUNTER.inc();
+        }
+        return sender;
+    }
 
-        return cached != null ? new ContentSender(key, cached) : null;
+    /**
+     * Starts the refresh of a content served stale: only one refresh at a time is allowed for the same content.
+     *
+     * @param request
+     * @param sender
+     * @return the receiver for the refreshed content, null whether the content is already being refreshed
+     */
+    public ContentReceiver startRevalidation(ProxyRequest request, ContentSender sender) {
+        ContentReceiver receiver = new ContentReceiver(sender.key, request.getRequestHeaders());
+        Sinks.One<Boolean> sink = Sinks.one();
+        if (inFlightRequests.putIfAbsent(sender.key, sink) != null) {
+            return null;
+        }
+        receiver.inFlightRequest = sink;
+        BACKGROUND_REFRESHES_COUNTER.inc();
+        LOG.log(Level.FINEST, "{0} refreshing stale content", sender.key);
+        return receiver;
+    }
+
+    /**
+     * Starts the fetch of the whole content on a range request not served from cache, whether enabled: only one fetch
+     * at a time is allowed for the same content.
+     *
+     * @param request the range request
+     * @return the receiver for the content, null whether disabled, not cacheable or already being fetched
+     */
+    public ContentReceiver startBackgroundFill(ProxyRequest request) {
+        if (!rangeBackgroundFill || !isCacheable(request, false)) {
+            return null;
+        }
+        ContentReceiver receiver = new ContentReceiver(resolveKey(request), request.getRequestHeaders());
+        Sinks.One<Boolean> sink = Sinks.one();
+        if (inFlightRequests.putIfAbsent(receiver.key, sink) != null) {
+            return null;
+        }
+        receiver.inFlightRequest = sink;
+        BACKGROUND_FILLS_COUNTER.inc();
+        LOG.log(Level.FINEST, "{0} filling cache on range miss", receiver.key);
+        return receiver;
+    }
+
+    /**
+     * Handles the response of the backend to a conditional request for an expired content: on 304 Not Modified the
+     * content is refreshed (expiration and headers), with no need to transfer the body again.
+     * <p>
+     * The refreshed content is a new one sharing the body of the expired one, which is replaced in its cache tier: the
+     * expired content is never modified, as other requests may be serving it at the same time.
+     *
+     * @param sender the expired content, serving the refreshed one whether revalidated
+     * @param receiver receiver of the request, if any, completed whether the content has been refreshed
+     * @param response
+     * @return whether the content has been refreshed and the sender can be served as fresh
+     */
+    public boolean revalidated(ContentSender sender, ContentReceiver receiver, HttpClientResponse response) {
+        int status = response.status().code();
+        if (status != HttpResponseStatus.NOT_MODIFIED.code()) {
+            if (status >= 500) {
+                REVALIDATIONS_ERROR_COUNTER.inc();
+            } else {
+                REVALIDATIONS_MODIFIED_COUNTER.inc();
+            }
+            return false;
+        }
+        CachedContent cached = sender.cached;
+        // https://tools.ietf.org/html/rfc7234#section-4.3.4
+        HttpHeaders updated = response.responseHeaders();
+        HttpHeaders headers = cached.headers != null ? cached.headers.copy() : new DefaultHttpHeaders();
+        for (String name : updated.names()) {
+            if (!HttpHeaderNames.CONTENT_LENGTH.contentEqualsIgnoreCase(name)
+                    && !HttpHeaderNames.TRANSFER_ENCODING.contentEqualsIgnoreCase(name)
+                    && !HttpHeaderNames.CONNECTION.contentEqualsIgnoreCase(name)) {
+                headers.set(name, updated.getAll(name));
+            }
+        }
+        long expiresTs = updated.getTimeMillis(HttpHeaderNames.EXPIRES, -1);
+        if (expiresTs < System.currentTimeMillis()) {
+            expiresTs = computeDefaultExpireDate();
+        }
+        long lastModified = headers.getTimeMillis(HttpHeaderNames.LAST_MODIFIED, cached.lastModified);
+        CachedContent refreshed = cached.withHeaders(headers, lastModified, expiresTs);
+        DiskCacheImpl disk = diskCache;
+        boolean published = refreshed != null
+                && (cache.replace(sender.key, cached, refreshed) || (disk != null && disk.replace(sender.key, cached, refreshed)));
+        // whether evicted in the meantime, the sender still serves its own copy of the body
+        if (refreshed == null) {
+            refreshed = cached.withContent(null, headers, lastModified, expiresTs);
+        } else if (!published) {
+            refreshed.clear();
+        }
+        sender.cached = refreshed;
+        sender.stale = false;
+        sender.staleWhileRevalidate = false;
+        if (receiver != null) {
+            receiver.completeRevalidation();
+        }
+        REVALIDATIONS_NOT_MODIFIED_COUNTER.inc();
+        LOG.log(Level.FINEST, "{0} revalidated", sender.key);
+        return true;
+    }
+
+    /**
+     * Checks whether an expired content can be served in place of a failed response of the backend.
+     *
+     * @param sender a stale content, released whether not servable
+     * @return the sender itself, or null whether the content cannot be served on errors
+     */
+    public ContentSender useStaleOnError(ContentSender sender) {
+        if (sender == null) {
+            return null;
+        }
+        if (sender.isStale() && System.currentTimeMillis() <= sender.cached.expiresTs + sender.cached.staleIfError) {
+            STALE_IF_ERROR_HITS_COUNTER.inc();
+            return sender;
+        }
+        sender.release();
+        return null;
+    }
+
+    private void promote(ContentKey key, CachedContent content) {
+        cache.put(key, content);
     }
 
     @Data
     public static class CachedContent {
 
-        HttpClientResponse response;
-        final List<ByteBuf> chunks = new ArrayList<>();
-        final long creationTs = System.currentTimeMillis();
+        HttpResponseStatus status;
+        HttpHeaders headers;
+        // the whole body in a single buffer, read-only once sealed; null for an empty body
+        @Getter(AccessLevel.NONE)
+        ByteBuf content;
+        @Getter(AccessLevel.NONE)
+        @EqualsAndHashCode.Exclude
+        private boolean released;
+        // reads the body on each hit, for contents whose body is not held in memory (disk tier)
+        @Getter(AccessLevel.NONE)
+        @EqualsAndHashCode.Exclude
+        Supplier<ByteBuf> contentLoader;
+        final long creationTs;
         long lastModified;
         long expiresTs = -1;
+        long staleWhileRevalidate; // ms after expiresTs the content can be served while refreshed in background
+        long staleIfError; // ms after expiresTs the content can be served whether the backend fails
+        long revalidationWindow; // ms after expiresTs the content is kept for conditional requests, 0 without validators
         long heapSize;
         long directSize;
         int hits;
 
-        private void addChunk(ByteBuf chunk) {
-            chunks.add(chunk.copy().retain());
-            if (chunk.isDirect()) {
-                directSize += chunk.capacity();
-            } else {
-                heapSize += chunk.capacity();
+        public CachedContent() {
+            this(System.currentTimeMillis());
+        }
+
+        CachedContent(long creationTs) {
+            this.creationTs = creationTs;
+        }
+
+        /**
+         * @param chunk
+         * @param expectedSize content length declared by the backend, if any, to allocate the buffer once
+         */
+        private synchronized void addChunk(ByteBuf chunk, int expectedSize) {
+            if (released) {
+                return;
             }
+            if (content == null) {
+                int initialCapacity = Math.min(Math.max(expectedSize, chunk.readableBytes()), MAX_INITIAL_CONTENT_CAPACITY);
+                content = ByteBufAllocator.DEFAULT.directBuffer(initialCapacity);
+            }
+            content.writeBytes(chunk, chunk.readerIndex(), chunk.readableBytes());
+        }
+
+        boolean isFresh(long now) {
+            return expiresTs >= now;
         }
 
-        void clear() {
-            chunks.forEach(ByteBuf::release);
-            chunks.clear();
+        /**
+         * @return the time after which the content cannot be served anymore, not even stale
+         */
+        long getStaleUntilTs() {
+            return expiresTs + Math.max(revalidationWindow, Math.max(staleWhileRevalidate, staleIfError));
         }
 
-        public List<ByteBuf> getChunks() {
-            return chunks.stream()
-                    .map(c -> c.copy())
-                    .collect(Collectors.toList());
+        private synchronized int getReceivedSize() {
+            return content != null ? content.readableBytes() : 0;
+        }
+
+        /**
+         * Completes the content: the buffer is trimmed to the actual body size and made read-only, hits get views of
+         * it instead of copies.
+         */
+        synchronized void seal() {
+            if (released) {
+                return;
+            }
+            if (content != null) {
+                int size = content.readableBytes();
+                if (content.capacity() > size) {
+                    ByteBuf exact = content.alloc().directBuffer(size, size);
+                    exact.writeBytes(content);
+                    content.release();
+                    content = exact;
+                }
+                content = content.asReadOnly();
+                if (content.isDirect()) {
+                    directSize = size;
+                } else {
+                    heapSize = size;
+                }
+            }
+            if (headers != null) {
+                heapSize += sizeof(headers);
+            }
+        }
+
+        /**
+         * @param body body of the new content, owned by it from now on; null for an empty body
+         * @return a sealed content with the same response as this one and the given body, e.g. to move it to another
+         * cache tier
+         */
+        CachedContent withContent(ByteBuf body) {
+            return withContent(body, headers, lastModified, expiresTs);
+        }
+
+        /**
+         * @param body body of the new content, owned by it from now on; null for an empty body
+         * @param headers
+         * @param lastModified
+         * @param expiresTs
+         * @return a sealed content with the same response as this one, but the given body, headers and expiration, e.g.
+         * to publish a revalidated content without touching the one readers may be serving
+         */
+        CachedContent withContent(ByteBuf body, HttpHeaders headers, long lastModified, long expiresTs) {
+            CachedContent copy = new CachedContent(creationTs);
+            copy.status = status;
+            copy.headers = headers;
+            copy.lastModified = lastModified;
+            copy.expiresTs = expiresTs;
+            copy.staleWhileRevalidate = staleWhileRevalidate;
+            copy.staleIfError = staleIfError;
+            copy.revalidationWindow = revalidationWindow;
+            copy.content = body;
+            copy.seal();
+            return copy;
+        }
+
+        /**
+         * @param headers
+         * @param lastModified
+         * @param expiresTs
+         * @return a sealed content with the same body as this one, shared, but the given headers and expiration, e.g.
+         * to publish a revalidated content without touching the one readers may be serving; null whether the content
+         * has already been released
+         */
+        synchronized CachedContent withHeaders(HttpHeaders headers, long lastModified, long expiresTs) {
+            if (released) {
+                return null;
+            }
+            CachedContent copy = withContent(content != null ? content.retainedDuplicate() : null, headers, lastModified, expiresTs);
+            copy.contentLoader = contentLoader;
+            copy.hits = hits;
+            return copy;
+        }
+
+        /**
+         * Releases the cached content: views already handed out keep the memory alive until they are released too.
+         */
+        synchronized void clear() {
+            released = true;
+            if (content != null) {
+                content.release();
+                content = null;
+            }
+        }
+
+        synchronized boolean isReleased() {
+            return released;
+        }
+
+        /**
+         * @return a view of the cached content sharing its memory, or a copy of the body read on purpose whether it is
+         * not held in memory, retained and to be released by the caller; null whether the content has already been
+         * released (e.g. on eviction) or the body cannot be read.
+         */
+        ByteBuf retainContent() {
+            Supplier<ByteBuf> loader;
+            synchronized (this) {
+                if (released) {
+                    return null;
+                }
+                if (contentLoader == null) {
+                    return content != null ? content.retainedDuplicate() : Unpooled.EMPTY_BUFFER;
+                }
+                loader = contentLoader;
+            }
+            // no lock while reading, other hits of the same content read concurrently
+            return loader.get();
         }
 
         public long getMemUsage() {
-            // Just an estimate
-            return chunks.size() * 8
-                    + directSize + heapSize
-                    + 8 * 5
-                    + // other fields
-                    4 * 1;
+            return directSize + heapSize
+                    + 8 * 10 // other fields
+                    + 4 * 1;
         }
 
         @Override
         public String toString() {
-            return "ContentPayload{" + "chunks_n=" + chunks.size() + ", creationTs=" + new java.sql.Timestamp(creationTs) + ", lastModified=" + new java.sql.Timestamp(lastModified) + ", expiresTs=" + new java.sql.Timestamp(
+            return "ContentPayload{" + "creationTs=" + new java.sql.Timestamp(creationTs) + ", lastModified=" + new java.sql.Timestamp(lastModified) + ", expiresTs=" + new java.sql.Timestamp(
                     expiresTs) + ", size=" + (heapSize + directSize) + " (heap=" + heapSize + ", direct=" + directSize + ")" + '}';
         }
 
     }
 
+    /**
+     * @param cacheControl Cache-Control header, lowercase and without spaces
+     * @param directive
+     * @param defaultValue
+     * @return value of the directive in ms
+     */
+    static long parseCacheControlSeconds(String cacheControl, String directive, long defaultValue) {
+        for (String value : cacheControl.split(",")) {
+            if (value.startsWith(directive + "=")) {
+                try {
+                    return Math.max(0, Long.parseLong(value.substring(directive.length() + 1))) * 1000;
+                } catch (NumberFormatException ex) {
+                    return defaultValue;
+                }
+            }
+        }
+        return defaultValue;
+    }
+
     private static long sizeof(Object o) {
         if (o == null) {
             return 0;
@@ -351,6 +1260,15 @@ public class ContentsCache {
                     + // count integer
                     4; // cached hash code
         }
+        if (o instanceof HttpHeaders) {
+            long res = 8 + 8 + 4; // object header, entries reference, size
+            for (Map.Entry<String, String> header : (HttpHeaders) o) {
+                res += 8 * 3 // entry object header, key and value references
+                        + sizeof(header.getKey())
+                        + sizeof(header.getValue());
+            }
+            return res;
+        }
         throw new IllegalArgumentException("Unknown object " + o.getClass());
     }
 
@@ -359,24 +1277,33 @@ public class ContentsCache {
         final String method;
         final String host;
         final String uri;
+        // normalised values of the request headers listed in the Vary of the response, null for contents without Vary
+        final String variant;
 
         ContentKey(String method, String host, String uri) {
+            this(method, host, uri, null);
+        }
+
+        ContentKey(String method, String host, String uri, String variant) {
             this.method = method;
             this.host = host;
             this.uri = uri;
+            this.variant = variant;
         }
 
         public ContentKey(ProxyRequest request) {
             this.method = request.getMethod().name();
             this.host = request.getRequestHeaders().getAsString(HttpHeaderNames.HOST);
             this.uri = request.getUri();
+            this.variant = null;
         }
 
         public long getMemUsage() {
             // Just an estimate
             return sizeof(method)
                     + sizeof(host)
-                    + sizeof(uri);
+                    + sizeof(uri)
+                    + (variant != null ? sizeof(variant) : 0);
         }
 
         public String getMethod() {
@@ -391,13 +1318,30 @@ public class ContentsCache {
             return uri;
         }
 
+        public String getVariant() {
+            return variant;
+        }
+
+        /**
+         * @return the key of the content regardless of the variant
+         */
+        public ContentKey getPrimaryKey() {
+            return variant == null ? this : new ContentKey(method, host, uri);
+        }
+
+        public ContentKey withVariant(String variant) {
+            return Objects.equals(this.variant, variant) ? this : new ContentKey(method, host, uri, variant);
+        }
+
         public String composeKey() {
-            return method + " | " + host + " | " + uri;
+            return variant == null
+                    ? method + " | " + host + " | " + uri
+                    : method + " | " + host + " | " + uri + " | " + variant;
         }
 
         @Override
         public String toString() {
-            return "ContentKey{" + "method=" + method + ", host=" + host + ", uri=" + uri + '}';
+            return "ContentKey{" + "method=" + method + ", host=" + host + ", uri=" + uri + ", variant=" + variant + '}';
         }
 
         @Override
@@ -406,6 +1350,7 @@ public class ContentsCache {
             hash = 83 * hash + Objects.hashCode(this.method);
             hash = 83 * hash + Objects.hashCode(this.host);
             hash = 83 * hash + Objects.hashCode(this.uri);
+            hash = 83 * hash + Objects.hashCode(this.variant);
             return hash;
         }
 
@@ -430,6 +1375,9 @@ public class ContentsCache {
             if (!Objects.equals(this.uri, other.uri)) {
                 return false;
             }
+            if (!Objects.equals(this.variant, other.variant)) {
+                return false;
+            }
             return true;
         }
     }
@@ -447,6 +1395,21 @@ public class ContentsCache {
         return cache.getMemSize();
     }
 
+    public int getDiskCacheSize() {
+        DiskCacheImpl disk = diskCache;
+        return disk != null ? disk.getSize() : 0;
+    }
+
+    public long getDiskCacheUsage() {
+        DiskCacheImpl disk = diskCache;
+        return disk != null ? disk.getMemSize() : 0;
+    }
+
+    @VisibleForTesting
+    DiskCacheImpl getDiskCache() {
+        return diskCache;
+    }
+
     public CacheStats getStats() {
         return stats;
     }
@@ -456,28 +1419,59 @@ public class ContentsCache {
             return;
         }
         CachedContent content = receiver.content;
+        content.seal();
+        if (content.isReleased()) { // aborted
+            receiver.completeInFlightRequest(false);
+            return;
+        }
         // Now we have the actual content size
-        if (!isContentLengthCacheable(content.heapSize + content.directSize)) {
-            cache.remove(receiver.key); // just for make sure
+        if (!isContentLengthCacheable(content.getReceivedSize())) {
+            content.clear();
+            cache.remove(receiver.cacheKey); // just for make sure
+            receiver.completeInFlightRequest(false);
             return;
         }
-        cache.put(receiver.key, content);
+        cache.put(receiver.cacheKey, content);
+        index(receiver.cacheKey, content);
+        receiver.completeInFlightRequest(true);
     }
 
     public class ContentReceiver {
 
         private final ContentKey key;
+        private final HttpHeaders requestHeaders;
+        // key to cache the content with, that of the variant whether the response has a Vary
+        private ContentKey cacheKey;
         private final CachedContent content;
         private boolean notReallyCacheable = false;
+        private int expectedSize; // from the Content-Length, if any
+        private Sinks.One<Boolean> inFlightRequest; // set whether other requests wait for this one
 
-        public ContentReceiver(ContentKey key) {
+        public ContentReceiver(ContentKey key, HttpHeaders requestHeaders) {
             this.key = key;
+            this.requestHeaders = requestHeaders;
+            this.cacheKey = key;
             this.content = new CachedContent();
         }
 
         public void abort() {
             LOG.log(Level.FINEST, "Aborting cache receiver for {0}", key);
             content.clear();
+            completeInFlightRequest(false);
+        }
+
+        private void completeRevalidation() {
+            content.clear(); // no body, the cached one is still valid
+            completeInFlightRequest(true);
+        }
+
+        private void completeInFlightRequest(boolean cached) {
+            Sinks.One<Boolean> sink = inFlightRequest;
+            if (sink != null) {
+                inFlightRequest = null;
+                inFlightRequests.remove(key, sink);
+                sink.tryEmitValue(cached);
+            }
         }
 
         public boolean receivedFromRemote(HttpClientResponse response) {
@@ -494,12 +1488,24 @@ public class ContentsCache {
             content.expiresTs = expiresTs;
             long lastModified = response.responseHeaders().getTimeMillis(HttpHeaderNames.LAST_MODIFIED, -1);
             content.lastModified = lastModified;
+            String cacheControl = response.responseHeaders().get(HttpHeaderNames.CACHE_CONTROL, "").replaceAll(" ", "").toLowerCase();
+            content.staleWhileRevalidate = parseCacheControlSeconds(cacheControl, CACHE_CONTROL_STALE_WHILE_REVALIDATE, staleWhileRevalidate);
+            content.staleIfError = parseCacheControlSeconds(cacheControl, CACHE_CONTROL_STALE_IF_ERROR, staleIfError);
+            boolean validators = lastModified > 0 || response.responseHeaders().contains(HttpHeaderNames.ETAG);
+            content.revalidationWindow = validators ? revalidationWindow : 0;
             if (notReallyCacheable) {
                 LOG.log(Level.FINEST, "{0} rejecting non-cacheable response", key);
                 abort();
                 return false;
             }
-            content.setResponse(response);
+            cacheKey = registerVariant(key, requestHeaders, parseVary(response.responseHeaders()));
+            content.status = response.status();
+            content.headers = response.responseHeaders().copy();
+            try {
+                expectedSize = Math.max(0, Integer.parseInt(response.responseHeaders().get(HttpHeaderNames.CONTENT_LENGTH, "0")));
+            } catch (NumberFormatException ex) {
+                expectedSize = 0;
+            }
 
             return true;
         }
@@ -510,7 +1516,13 @@ public class ContentsCache {
                 abort();
                 return;
             }
-            content.addChunk(chunk);
+            content.addChunk(chunk, expectedSize);
+            if (!isContentLengthCacheable(content.getReceivedSize())) {
+                // no need to keep on buffering
+                LOG.log(Level.FINEST, "{0} rejecting response exceeding max file size", key);
+                notReallyCacheable = true;
+                abort();
+            }
         }
     }
 
@@ -519,6 +1531,11 @@ public class ContentsCache {
         @Override
         public void run() {
             cache.evict();
+            DiskCacheImpl disk = diskCache;
+            if (disk != null) {
+                disk.evict();
+            }
+            pruneIndexes();
         }
     }
 }
@@ -0,0 +1,687 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.carapaceproxy.server.cache.ContentsCache.CachedContent;
+import org.carapaceproxy.server.cache.ContentsCache.ContentKey;
+import org.carapaceproxy.utils.PrometheusUtils;
+import org.glassfish.jersey.internal.guava.ThreadFactoryBuilder;
+
+/**
+ * Second tier of the cache: contents evicted from memory are demoted to local files, one per content. The index only
+ * keeps the location of the bodies: on each hit the body is read from its file into a pooled buffer, released once
+ * written to the socket, so that the number of contents is bounded neither by the memory nor by the mappings the OS
+ * allows to a process.
+ * <p>
+ * Contents hit at least <code>promotionHits</code> times on disk are copied back to memory (promotion). The disk copy is kept
+ * until it expires or it is evicted, so that a content evicted again from memory does not need to be rewritten.
+ * <p>
+ * On a graceful close the index of the contents (keys, expiration, headers and location of the bodies) can be
+ * snapshotted into the directory, to be reloaded in background at the next start (warm restart).
+ */
+class DiskCacheImpl implements CacheImpl {
+
+    private static final Counter DISK_HITS_COUNTER = PrometheusUtils.createCounter("cache", "disk_hits_total", "disk cache hits count").register();
+    private static final Counter DISK_MISSES_COUNTER = PrometheusUtils.createCounter("cache", "disk_misses_total", "disk cache misses count").register();
+    private static final Counter DEMOTIONS_COUNTER = PrometheusUtils.createCounter("cache", "disk_demotions_total", "contents evicted from memory and written to disk").register();
+    private static final Counter PROMOTIONS_COUNTER = PrometheusUtils.createCounter("cache", "disk_promotions_total", "contents read from disk and copied back to memory").register();
+    private static final Counter DISK_ERRORS_COUNTER = PrometheusUtils.createCounter("cache", "disk_errors_total", "failed disk cache reads and writes").register();
+    private static final Gauge DISK_USAGE_GAUGE = PrometheusUtils.createGauge("cache", "disk_usage_bytes", "disk space currently used").register();
+    private static final Gauge DISK_ENTRIES_GAUGE = PrometheusUtils.createGauge("cache", "disk_entries", "contents currently on disk").register();
+
+    private static final String THREAD_NAME = "cache-disk-writer";
+    private static final int INITIAL_CACHE_SIZE_CAPACITY = 2000;
+    static final String FILE_SUFFIX = ".cache";
+    static final String INDEX_FILE = "cache.index";
+    static final int FILE_MAGIC = 0xCA9AC001;
+    static final int INDEX_MAGIC = 0xCA9AC1DF;
+
+    private final Path directory;
+    private final int promotionHits;
+    private final Cache<ContentKey, DiskEntry> cache;
+    private final ExecutorService writer;
+    private final Logger logger;
+    // file names are unique across restarts, files of previous runs may still be in use
+    private final String filePrefix = Long.toString(System.currentTimeMillis(), 36) + "_";
+    private final AtomicLong fileIdGenerator = new AtomicLong();
+    private final Set<ContentKey> promoting = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong entries = new AtomicLong(0);
+    private final AtomicLong diskSize = new AtomicLong(0);
+
+    private boolean verbose = false;
+    private volatile boolean closed;
+    private volatile boolean keepFiles;
+
+    static final class DiskEntry {
+
+        final Path file;
+        final long bodyOffset;
+        final long size;
+        // swapped on revalidation, the file is unchanged
+        volatile CachedContent content;
+
+        DiskEntry(Path file, long bodyOffset, long size, CachedContent content) {
+            this.file = file;
+            this.bodyOffset = bodyOffset;
+            this.size = size;
+            this.content = content;
+        }
+    }
+
+    public DiskCacheImpl(Path directory, long maxSize, int promotionHits, Logger logger) throws IOException {
+        this.directory = directory;
+        this.promotionHits = promotionHits;
+        this.logger = logger;
+        Files.createDirectories(directory);
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat(THREAD_NAME).setDaemon(true).build());
+        this.cache = Caffeine.<ContentKey, DiskEntry>newBuilder()
+                .initialCapacity(INITIAL_CACHE_SIZE_CAPACITY)
+                .maximumWeight(maxSize)
+                .expireAfter(new Expiry<ContentKey, DiskEntry>() {
+                    @Override
+                    public long expireAfterCreate(ContentKey key, DiskEntry entry, long currentTime) {
+                        return (entry.content.getStaleUntilTs() - System.currentTimeMillis()) * 1_000_000; // In nanos
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(ContentKey key, DiskEntry entry, long currentTime, long currentDuration) {
+                        return (entry.content.getStaleUntilTs() - System.currentTimeMillis()) * 1_000_000; // In nanos
+                    }
+
+                    @Override
+                    public long expireAfterRead(ContentKey key, DiskEntry entry, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .weigher((ContentKey key, DiskEntry entry) -> (int) Math.min(Integer.MAX_VALUE, entry.size))
+                .removalListener((ContentKey key, DiskEntry entry, RemovalCause cause) -> {
+                    if (verbose) {
+                        logger.log(Level.FINE, "disk content {0}: removed, cause {1}", new Object[]{key.uri, cause});
+                    }
+                    release(entry);
+                })
+                .build();
+    }
+
+    /**
+     * Reloads in background the contents of the last snapshot, if any, and deletes all the other files left by
+     * previous runs.
+     *
+     * @param warmRestart false to skip the snapshot and just clean up the directory
+     */
+    void start(boolean warmRestart) {
+        start(warmRestart, null);
+    }
+
+    /**
+     * @param warmRestart false to skip the snapshot and just clean up the directory
+     * @param sink called for every content reloaded, if any
+     * @see #start(boolean)
+     */
+    void start(boolean warmRestart, CacheEntriesSink sink) {
+        writer.execute(() -> {
+            try {
+                Set<Path> loaded = warmRestart ? loadSnapshot(sink) : Collections.emptySet();
+                deleteFiles(file -> !loaded.contains(file) && !file.getFileName().toString().startsWith(filePrefix));
+            } catch (IOException | RuntimeException err) {
+                logger.log(Level.SEVERE, "cannot load disk cache from " + directory, err);
+            }
+        });
+    }
+
+    private Set<Path> loadSnapshot(CacheEntriesSink sink) throws IOException {
+        Path indexFile = directory.resolve(INDEX_FILE);
+        if (!Files.exists(indexFile)) {
+            return Collections.emptySet();
+        }
+        Set<Path> loaded = new HashSet<>();
+        int expired = 0;
+        long now = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_MAGIC) {
+                throw new IOException("bad index file " + indexFile);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count && !closed; i++) {
+                Path file = directory.resolve(in.readUTF());
+                long bodyOffset = in.readLong();
+                int bodySize = in.readInt();
+                ContentKey key = readKey(in);
+                CachedContent content = readContent(in);
+                if (content.getStaleUntilTs() < now) {
+                    expired++;
+                    continue;
+                }
+                if (!Files.isRegularFile(file) || Files.size(file) != bodyOffset + bodySize) {
+                    logger.log(Level.WARNING, "cannot reload content {0}: missing or truncated file {1}", new Object[]{key.uri, file});
+                    continue;
+                }
+                CachedContent stored = stored(content, file, bodyOffset, bodySize);
+                if (index(key, new DiskEntry(file, bodyOffset, bodyOffset + bodySize, stored), false)) {
+                    loaded.add(file);
+                    if (sink != null) {
+                        sink.accept(key, stored);
+                    }
+                }
+            }
+        } finally {
+            // never reload twice the same snapshot
+            Files.deleteIfExists(indexFile);
+        }
+        logger.log(Level.INFO, "reloaded {0} contents from disk cache {1}, {2} expired", new Object[]{loaded.size(), directory, expired});
+        return loaded;
+    }
+
+    /**
+     * Writes the index of the contents into the directory, to be reloaded by {@link #start(boolean)}.
+     */
+    private void writeSnapshot() throws IOException {
+        Path tmpFile = directory.resolve(INDEX_FILE + ".tmp");
+        long now = System.currentTimeMillis();
+        List<Map.Entry<ContentKey, DiskEntry>> snapshot = new ArrayList<>();
+        cache.asMap().forEach((key, entry) -> {
+            if (entry.content.getStaleUntilTs() >= now) {
+                snapshot.add(new AbstractMap.SimpleImmutableEntry<>(key, entry));
+            }
+        });
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<ContentKey, DiskEntry> e : snapshot) {
+                DiskEntry entry = e.getValue();
+                out.writeUTF(entry.file.getFileName().toString());
+                out.writeLong(entry.bodyOffset);
+                out.writeInt((int) (entry.size - entry.bodyOffset));
+                writeKey(out, e.getKey());
+                writeContent(out, entry.content);
+            }
+        }
+        Files.move(tmpFile, directory.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.log(Level.INFO, "saved index of {0} contents of disk cache {1}", new Object[]{snapshot.size(), directory});
+    }
+
+    @Override
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    @Override
+    public int getSize() {
+        return entries.intValue();
+    }
+
+    /**
+     * @return disk space used by the contents
+     */
+    @Override
+    public long getMemSize() {
+        return diskSize.get();
+    }
+
+    /**
+     * Writes the content to disk synchronously.
+     *
+     * @param key
+     * @param payload a sealed content, still owned by the caller
+     */
+    @Override
+    public void put(ContentKey key, CachedContent payload) {
+        ByteBuf body = payload.retainContent();
+        if (body == null) { // released in the meantime
+            return;
+        }
+        try {
+            write(key, payload, body);
+        } finally {
+            body.release();
+        }
+    }
+
+    /**
+     * Writes in background a content being evicted from memory. A view of the body is retained until the write is
+     * completed, so the caller can release the content right after.
+     *
+     * @param key
+     * @param payload
+     */
+    void demote(ContentKey key, CachedContent payload) {
+        if (isStored(key, payload)) {
+            return;
+        }
+        ByteBuf body = payload.retainContent();
+        if (body == null) {
+            return;
+        }
+        DEMOTIONS_COUNTER.inc();
+        try {
+            writer.execute(() -> {
+                try {
+                    write(key, payload, body);
+                } finally {
+                    body.release();
+                }
+            });
+        } catch (RuntimeException closed) {
+            body.release();
+        }
+    }
+
+    /**
+     * Writes synchronously the content, unless already on disk.
+     *
+     * @param key
+     * @param payload
+     */
+    void persist(ContentKey key, CachedContent payload) {
+        if (!isStored(key, payload)) {
+            put(key, payload);
+        }
+    }
+
+    private boolean isStored(ContentKey key, CachedContent payload) {
+        if (payload.getStaleUntilTs() < System.currentTimeMillis()) {
+            return true; // not worth storing
+        }
+        DiskEntry current = cache.getIfPresent(key);
+        return current != null && current.content.creationTs == payload.creationTs; // e.g. promoted content
+    }
+
+    private void write(ContentKey key, CachedContent payload, ByteBuf body) {
+        Path file = directory.resolve(filePrefix + fileIdGenerator.incrementAndGet() + FILE_SUFFIX);
+        int bodySize = body.readableBytes();
+        ByteBuf header = Unpooled.buffer();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            DataOutput out = new ByteBufOutputStream(header);
+            out.writeInt(FILE_MAGIC);
+            writeKey(out, key);
+            writeContent(out, payload);
+            out.writeInt(bodySize);
+            long bodyOffset = header.readableBytes();
+            writeFully(channel, header.nioBuffers());
+            if (bodySize > 0) {
+                writeFully(channel, body.nioBuffers());
+            }
+            index(key, new DiskEntry(file, bodyOffset, bodyOffset + bodySize, stored(payload, file, bodyOffset, bodySize)), true);
+        } catch (IOException | RuntimeException err) {
+            DISK_ERRORS_COUNTER.inc();
+            logger.log(Level.WARNING, "cannot write content " + key.uri + " to disk: " + err, err);
+            deleteFile(file);
+        } finally {
+            header.release();
+        }
+    }
+
+    /**
+     * @param payload
+     * @param file
+     * @param bodyOffset
+     * @param bodySize
+     * @return a sealed copy of the content with no body in memory, read from the file on each hit instead
+     */
+    private CachedContent stored(CachedContent payload, Path file, long bodyOffset, int bodySize) {
+        CachedContent stored = payload.withContent(null);
+        stored.contentLoader = () -> readBody(file, bodyOffset, bodySize);
+        return stored;
+    }
+
+    /**
+     * @param file
+     * @param bodyOffset
+     * @param bodySize
+     * @return the body read into a pooled buffer, owned by the caller; null whether the file cannot be read, e.g.
+     * deleted on eviction in the meantime
+     */
+    private ByteBuf readBody(Path file, long bodyOffset, int bodySize) {
+        if (bodySize == 0) {
+            return Unpooled.EMPTY_BUFFER;
+        }
+        ByteBuf body = ByteBufAllocator.DEFAULT.directBuffer(bodySize, bodySize);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = bodyOffset;
+            while (body.isWritable()) {
+                int read = body.writeBytes(channel, position, body.writableBytes());
+                if (read < 0) {
+                    throw new EOFException("truncated file " + file);
+                }
+                position += read;
+            }
+            return body;
+        } catch (NoSuchFileException evicted) {
+            body.release();
+            return null;
+        } catch (IOException err) {
+            body.release();
+            DISK_ERRORS_COUNTER.inc();
+            logger.log(Level.WARNING, "cannot read cache file " + file + ": " + err, err);
+            return null;
+        }
+    }
+
+    /**
+     * @param key
+     * @param entry
+     * @param replace false not to overwrite a content for the same key
+     * @return whether the entry has been added
+     */
+    private boolean index(ContentKey key, DiskEntry entry, boolean replace) {
+        if (replace) {
+            cache.put(key, entry);
+        } else if (cache.asMap().putIfAbsent(key, entry) != null) {
+            entry.content.clear();
+            return false;
+        }
+        entries.incrementAndGet();
+        diskSize.addAndGet(entry.size);
+        DISK_ENTRIES_GAUGE.inc();
+        DISK_USAGE_GAUGE.inc(entry.size);
+        logger.log(Level.FINE, "adding content {0} to disk", key.uri);
+        return true;
+    }
+
+    /**
+     * Gets a content whose body is read from the file on each {@link CachedContent#retainContent()}.
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public CachedContent get(ContentKey key) {
+        DiskEntry entry = cache.getIfPresent(key);
+        if (entry != null && entry.content.getStaleUntilTs() < System.currentTimeMillis()) {
+            logger.log(Level.FINE, "expiring disk content {0}, expired at {1}", new Object[]{key.uri, new java.util.Date(entry.content.expiresTs)});
+            cache.invalidate(key);
+            entry = null;
+        }
+        if (entry == null) {
+            DISK_MISSES_COUNTER.inc();
+            return null;
+        }
+        DISK_HITS_COUNTER.inc();
+        entry.content.hits++;
+        return entry.content;
+    }
+
+    /**
+     * Copies in background a content hit often enough back to memory.
+     *
+     * @param key
+     * @param payload a content got from this cache
+     * @param memoryCache receives the copy
+     */
+    void promoteIfNeeded(ContentKey key, CachedContent payload, BiConsumer<ContentKey, CachedContent> memoryCache) {
+        if (payload.hits < promotionHits || !promoting.add(key)) {
+            return;
+        }
+        try {
+            writer.execute(() -> {
+                try {
+                    // read from the file, owned by the memory copy from now on
+                    ByteBuf body = payload.retainContent();
+                    if (body == null) {
+                        return;
+                    }
+                    if (!body.isReadable()) {
+                        body.release();
+                        body = null;
+                    }
+                    PROMOTIONS_COUNTER.inc();
+                    memoryCache.accept(key, payload.withContent(body));
+                } finally {
+                    promoting.remove(key);
+                }
+            });
+        } catch (RuntimeException closed) {
+            promoting.remove(key);
+        }
+    }
+
+    @Override
+    public boolean containsKey(ContentKey key) {
+        return cache.asMap().containsKey(key);
+    }
+
+    /**
+     * Swaps the content of the entry, keeping its file: the new content must read the body of the current one (see
+     * {@link CachedContent#withHeaders}), and the headers in the file are updated only on the next snapshot.
+     */
+    @Override
+    public boolean replace(ContentKey key, CachedContent current, CachedContent payload) {
+        DiskEntry entry = cache.asMap().get(key);
+        if (entry == null) {
+            return false;
+        }
+        synchronized (entry) {
+            if (entry.content != current) {
+                return false;
+            }
+            entry.content = payload;
+        }
+        // no body in memory, the new content reads the same file
+        current.clear();
+        // same entry: no removal is notified, the expiration is recomputed for the new content
+        cache.asMap().replace(key, entry, entry);
+        return true;
+    }
+
+    private void release(DiskEntry entry) {
+        entries.decrementAndGet();
+        diskSize.addAndGet(-entry.size);
+        DISK_ENTRIES_GAUGE.dec();
+        DISK_USAGE_GAUGE.dec(entry.size);
+        // bodies already read are owned by the hits, pending reads of the deleted file just miss
+        entry.content.clear();
+        if (!keepFiles) {
+            deleteFile(entry.file);
+        }
+    }
+
+    @Override
+    public void remove(ContentKey key) {
+        cache.invalidate(key);
+    }
+
+    @Override
+    public void evict() {
+        cache.cleanUp();
+    }
+
+    @Override
+    public int clear() {
+        int currentSize = getSize();
+        cache.invalidateAll();
+        cache.cleanUp();
+        return currentSize;
+    }
+
+    @Override
+    public void close() {
+        close(false);
+    }
+
+    /**
+     * @param snapshot whether to keep the files and save the index of the contents, to reload them at the next start
+     */
+    void close(boolean snapshot) {
+        closed = true;
+        writer.shutdown(); // pending writes hold retained contents
+        try {
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException exit) {
+            Thread.currentThread().interrupt();
+        }
+        if (snapshot) {
+            try {
+                writeSnapshot();
+                keepFiles = true;
+            } catch (IOException err) {
+                logger.log(Level.SEVERE, "cannot save index of disk cache " + directory, err);
+            }
+        }
+        clear();
+    }
+
+    @Override
+    public void inspectCache(CacheEntriesSink sink) {
+        cache.asMap().forEach((key, entry) -> {
+            sink.accept(key, entry.content);
+        });
+    }
+
+    private static void writeKey(DataOutput out, ContentKey key) throws IOException {
+        writeString(out, key.method);
+        writeString(out, key.host);
+        writeString(out, key.uri);
+        writeString(out, key.variant);
+    }
+
+    private static ContentKey readKey(DataInput in) throws IOException {
+        return new ContentKey(readString(in), readString(in), readString(in), readString(in));
+    }
+
+    private static void writeContent(DataOutput out, CachedContent payload) throws IOException {
+        HttpResponseStatus status = payload.status != null ? payload.status : HttpResponseStatus.OK;
+        out.writeInt(status.code());
+        writeString(out, status.reasonPhrase());
+        out.writeLong(payload.creationTs);
+        out.writeLong(payload.lastModified);
+        out.writeLong(payload.expiresTs);
+        out.writeLong(payload.staleWhileRevalidate);
+        out.writeLong(payload.staleIfError);
+        out.writeLong(payload.revalidationWindow);
+        HttpHeaders headers = payload.headers != null ? payload.headers : new DefaultHttpHeaders();
+        out.writeInt(headers.size());
+        for (Map.Entry<String, String> h : headers) {
+            writeString(out, h.getKey());
+            writeString(out, h.getValue());
+        }
+    }
+
+    private static CachedContent readContent(DataInput in) throws IOException {
+        HttpResponseStatus status = HttpResponseStatus.valueOf(in.readInt(), readString(in));
+        CachedContent content = new CachedContent(in.readLong());
+        content.status = status;
+        content.lastModified = in.readLong();
+        content.expiresTs = in.readLong();
+        content.staleWhileRevalidate = in.readLong();
+        content.staleIfError = in.readLong();
+        content.revalidationWindow = in.readLong();
+        int count = in.readInt();
+        content.headers = new DefaultHttpHeaders();
+        for (int i = 0; i < count; i++) {
+            content.headers.add(readString(in), readString(in));
+        }
+        return content;
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    private void deleteFile(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException err) {
+            logger.log(Level.WARNING, "cannot delete cache file {0}: {1}", new Object[]{file, err});
+        }
+    }
+
+    private void deleteFiles(Predicate<Path> filter) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + FILE_SUFFIX)) {
+            for (Path file : files) {
+                if (filter.test(file)) {
+                    deleteFile(file);
+                }
+            }
+        }
+    }
+}
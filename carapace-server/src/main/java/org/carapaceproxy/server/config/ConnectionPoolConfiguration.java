@@ -19,6 +19,7 @@
  */
 package org.carapaceproxy.server.config;
 
+import static org.carapaceproxy.server.config.NetworkListenerConfiguration.PROTOCOL_HTTP11;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 
@@ -29,6 +30,8 @@ import lombok.Data;
 @AllArgsConstructor
 public class ConnectionPoolConfiguration {
 
+    public static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+
     private String id;
     private String domain;
     private int maxConnectionsPerEndpoint;
@@ -38,5 +41,36 @@ public class ConnectionPoolConfiguration {
     private int idleTimeout;
     private int disposeTimeout;
     private boolean enabled;
+    private int minIdleConnections; // per endpoint, kept open by warm-up
+    private String httpProtocol; // protocol to talk to the backends, HTTP11 or H2C (HTTP/2 multiplexed connections)
+    private int maxConcurrentStreams; // per connection, for HTTP/2 only
+
+    public ConnectionPoolConfiguration(String id, String domain,
+                                       int maxConnectionsPerEndpoint,
+                                       int borrowTimeout,
+                                       int connectTimeout,
+                                       int stuckRequestTimeout,
+                                       int idleTimeout,
+                                       int disposeTimeout,
+                                       boolean enabled) {
+        this(id, domain, maxConnectionsPerEndpoint, borrowTimeout, connectTimeout, stuckRequestTimeout, idleTimeout, disposeTimeout, enabled, 0);
+    }
+
+    public ConnectionPoolConfiguration(String id, String domain,
+                                       int maxConnectionsPerEndpoint,
+                                       int borrowTimeout,
+                                       int connectTimeout,
+                                       int stuckRequestTimeout,
+                                       int idleTimeout,
+                                       int disposeTimeout,
+                                       boolean enabled,
+                                       int minIdleConnections) {
+        this(id, domain, maxConnectionsPerEndpoint, borrowTimeout, connectTimeout, stuckRequestTimeout, idleTimeout, disposeTimeout, enabled, minIdleConnections,
+                PROTOCOL_HTTP11, DEFAULT_MAX_CONCURRENT_STREAMS);
+    }
+
+    public boolean isHttp2() {
+        return !PROTOCOL_HTTP11.equals(httpProtocol);
+    }
 
 }
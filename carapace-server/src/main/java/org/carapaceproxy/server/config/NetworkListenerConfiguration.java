@@ -32,6 +32,12 @@ public class NetworkListenerConfiguration {
 
     public static final List<String> DEFAULT_SSL_PROTOCOLS = Collections.unmodifiableList(Arrays.asList("TLSv1.2", "TLSv1.3"));
 
+    // HTTP protocols, named as reactor-netty HttpProtocol
+    public static final String PROTOCOL_HTTP11 = "HTTP11";
+    public static final String PROTOCOL_H2 = "H2"; // HTTP/2 over TLS, negotiated with ALPN
+    public static final String PROTOCOL_H2C = "H2C"; // HTTP/2 cleartext, with upgrade from HTTP/1.1 or prior knowledge
+    public static final List<String> DEFAULT_HTTP_PROTOCOLS = Collections.unmodifiableList(Arrays.asList(PROTOCOL_HTTP11));
+
     private final String host;
     private final int port;
     private final boolean ssl;
@@ -41,6 +47,7 @@ public class NetworkListenerConfiguration {
     private final String sslTrustoreFile;
     private final String sslTrustorePassword;
     private String[] sslProtocols = new String[0];
+    private String[] httpProtocols = DEFAULT_HTTP_PROTOCOLS.toArray(new String[0]);
 
     public HostPort getKey() {
         return new HostPort(host, port);
@@ -132,6 +139,18 @@ public class NetworkListenerConfiguration {
         this.sslProtocols = sslProtocols;
     }
 
+    public String[] getHttpProtocols() {
+        return httpProtocols;
+    }
+
+    public void setHttpProtocols(String... httpProtocols) {
+        this.httpProtocols = httpProtocols;
+    }
+
+    public boolean isHttpProtocolEnabled(String protocol) {
+        return Arrays.asList(httpProtocols).contains(protocol);
+    }
+
     @Override
     public int hashCode() {
         int hash = 3;
@@ -144,6 +163,7 @@ public class NetworkListenerConfiguration {
         hash = 89 * hash + Objects.hashCode(this.sslTrustoreFile);
         hash = 89 * hash + Objects.hashCode(this.sslTrustorePassword);
         hash = 89 * hash + Arrays.deepHashCode(this.sslProtocols);
+        hash = 89 * hash + Arrays.deepHashCode(this.httpProtocols);
         return hash;
     }
 
@@ -186,6 +206,9 @@ public class NetworkListenerConfiguration {
         if (!Arrays.deepEquals(this.sslProtocols, other.sslProtocols)) {
             return false;
         }
+        if (!Arrays.deepEquals(this.httpProtocols, other.httpProtocols)) {
+            return false;
+        }
         return true;
     }
 
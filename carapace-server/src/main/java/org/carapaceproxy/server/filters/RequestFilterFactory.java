@@ -24,6 +24,7 @@ import org.carapaceproxy.core.RequestFilter;
 import org.carapaceproxy.server.config.ConfigurationNotValidException;
 import org.carapaceproxy.server.config.RequestFilterConfiguration;
 import org.carapaceproxy.server.mapper.requestmatcher.RequestMatcher;
+import org.carapaceproxy.server.mapper.requestmatcher.RequestMatcherCompiler;
 import org.carapaceproxy.server.mapper.requestmatcher.parser.ParseException;
 import org.carapaceproxy.server.mapper.requestmatcher.parser.RequestMatchParser;
 
@@ -40,7 +41,7 @@ public class RequestFilterFactory {
 
         RequestMatcher matcher;
         try {
-            matcher = new RequestMatchParser(filterConfig.getOrDefault("match", "all").trim()).parse();
+            matcher = RequestMatcherCompiler.compile(new RequestMatchParser(filterConfig.getOrDefault("match", "all").trim()).parse());
         } catch (ParseException e) {
             throw new ConfigurationNotValidException(e);
         }
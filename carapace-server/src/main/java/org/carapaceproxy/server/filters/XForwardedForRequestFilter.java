@@ -42,6 +42,7 @@ public class XForwardedForRequestFilter extends BasicRequestFilter {
         request.getRequestHeaders().remove("X-Forwarded-For");
         InetSocketAddress address = request.getRemoteAddress();
         request.getRequestHeaders().add("X-Forwarded-For", address.getAddress().getHostAddress());
+        request.invalidateProperties();
     }
 
 }
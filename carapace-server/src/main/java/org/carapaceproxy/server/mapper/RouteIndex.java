@@ -0,0 +1,304 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.mapper;
+
+import static org.carapaceproxy.core.ProxyRequest.PROPERTY_HEADERS;
+import static org.carapaceproxy.core.ProxyRequest.PROPERTY_METHOD;
+import static org.carapaceproxy.core.ProxyRequest.PROPERTY_URI;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.carapaceproxy.server.config.RouteConfiguration;
+import org.carapaceproxy.server.mapper.requestmatcher.AndRequestMatcher;
+import org.carapaceproxy.server.mapper.requestmatcher.CompiledRequestMatcher;
+import org.carapaceproxy.server.mapper.requestmatcher.EqualsRequestMatcher;
+import org.carapaceproxy.server.mapper.requestmatcher.MatchingContext;
+import org.carapaceproxy.server.mapper.requestmatcher.MatchingProperty;
+import org.carapaceproxy.server.mapper.requestmatcher.OrRequestMatcher;
+import org.carapaceproxy.server.mapper.requestmatcher.RegexpRequestMatcher;
+import org.carapaceproxy.server.mapper.requestmatcher.RequestMatcher;
+
+/**
+ * Index over the enabled routes of a configuration, used to skip routes that cannot match a request.
+ * <p>
+ * Each route is registered under conditions that are necessary for its matcher to succeed: an exact Host header, a
+ * literal URI prefix or an exact method. Routes without such a condition are always candidates. Candidates are returned
+ * in configuration order, so first-match semantics is preserved.
+ */
+final class RouteIndex {
+
+    static final String PROPERTY_HOST = PROPERTY_HEADERS + HttpHeaderNames.HOST;
+
+    private static final MatchingProperty HOST = MatchingProperty.of(PROPERTY_HOST);
+    private static final MatchingProperty METHOD = MatchingProperty.of(PROPERTY_METHOD);
+    private static final MatchingProperty URI = MatchingProperty.of(PROPERTY_URI);
+
+    private static final String REGEXP_METACHARS = "\\^$.|?*+()[]{}";
+    private static final String REGEXP_QUANTIFIERS = "?*+{";
+
+    private final List<RouteConfiguration> routes = new ArrayList<>(); // enabled routes only
+    private final Map<String, BitSet> byHost = new HashMap<>();
+    private final Map<String, BitSet> byMethod = new HashMap<>();
+    private final PrefixNode byUriPrefix = new PrefixNode();
+    private final BitSet unindexed = new BitSet();
+
+    RouteIndex(List<RouteConfiguration> configuredRoutes) {
+        for (RouteConfiguration route : configuredRoutes) {
+            if (!route.isEnabled()) {
+                continue;
+            }
+            int position = routes.size();
+            routes.add(route);
+            List<IndexKey> keys = extractKeys(route.getMatcher());
+            if (keys == null) {
+                unindexed.set(position);
+                continue;
+            }
+            for (IndexKey key : keys) {
+                switch (key.type) {
+                    case HOST:
+                        byHost.computeIfAbsent(key.value, k -> new BitSet()).set(position);
+                        break;
+                    case METHOD:
+                        byMethod.computeIfAbsent(key.value, k -> new BitSet()).set(position);
+                        break;
+                    case URI_PREFIX:
+                        byUriPrefix.add(key.value, position);
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Routes that may match the request, to be evaluated in configuration order.
+     *
+     * @param context
+     * @return positions of the candidate routes, owned by the caller
+     * @see #getRoute(int)
+     */
+    BitSet candidates(MatchingContext context) {
+        BitSet candidates = (BitSet) unindexed.clone();
+        if (!byHost.isEmpty()) {
+            BitSet hostRoutes = byHost.get(context.getProperty(HOST));
+            if (hostRoutes != null) {
+                candidates.or(hostRoutes);
+            }
+        }
+        if (!byMethod.isEmpty()) {
+            BitSet methodRoutes = byMethod.get(context.getProperty(METHOD));
+            if (methodRoutes != null) {
+                candidates.or(methodRoutes);
+            }
+        }
+        if (!byUriPrefix.children.isEmpty()) {
+            byUriPrefix.collect(context.getProperty(URI), candidates);
+        }
+        return candidates;
+    }
+
+    RouteConfiguration getRoute(int position) {
+        return routes.get(position);
+    }
+
+    int getIndexedRoutesCount() {
+        return routes.size() - unindexed.cardinality();
+    }
+
+    int getRoutesCount() {
+        return routes.size();
+    }
+
+    /**
+     * Computes a set of keys such that at least one of them is satisfied whenever the matcher matches.
+     *
+     * @param matcher
+     * @return the keys or null whether the matcher cannot be indexed.
+     */
+    static List<IndexKey> extractKeys(RequestMatcher matcher) {
+        if (matcher instanceof CompiledRequestMatcher) {
+            return extractKeys(((CompiledRequestMatcher) matcher).getSource());
+        }
+        if (matcher instanceof EqualsRequestMatcher) {
+            EqualsRequestMatcher equals = (EqualsRequestMatcher) matcher;
+            if (PROPERTY_HOST.equals(equals.getName())) {
+                return Collections.singletonList(new IndexKey(IndexKeyType.HOST, equals.getValue()));
+            }
+            if (PROPERTY_METHOD.equals(equals.getName())) {
+                return Collections.singletonList(new IndexKey(IndexKeyType.METHOD, equals.getValue()));
+            }
+            return null;
+        }
+        if (matcher instanceof RegexpRequestMatcher) {
+            RegexpRequestMatcher regexp = (RegexpRequestMatcher) matcher;
+            if (PROPERTY_URI.equals(regexp.getName())) {
+                String prefix = literalPrefix(regexp.getExpression().pattern());
+                if (!prefix.isEmpty()) {
+                    return Collections.singletonList(new IndexKey(IndexKeyType.URI_PREFIX, prefix));
+                }
+            }
+            return null;
+        }
+        if (matcher instanceof AndRequestMatcher) {
+            // any of the conjuncts is a necessary condition: choose the most selective one
+            List<IndexKey> best = null;
+            for (RequestMatcher m : ((AndRequestMatcher) matcher).getMatchers()) {
+                List<IndexKey> keys = extractKeys(m);
+                if (keys != null && (best == null || cost(keys) < cost(best))) {
+                    best = keys;
+                }
+            }
+            return best;
+        }
+        if (matcher instanceof OrRequestMatcher) {
+            // every disjunct has to be indexable
+            List<IndexKey> res = new ArrayList<>();
+            for (RequestMatcher m : ((OrRequestMatcher) matcher).getMatchers()) {
+                List<IndexKey> keys = extractKeys(m);
+                if (keys == null) {
+                    return null;
+                }
+                res.addAll(keys);
+            }
+            return res.isEmpty() ? null : res;
+        }
+        // match-all, secure, not: no necessary condition can be inferred
+        return null;
+    }
+
+    private static int cost(List<IndexKey> keys) {
+        int cost = 0;
+        for (IndexKey key : keys) {
+            cost += key.type.cost;
+        }
+        return cost;
+    }
+
+    /**
+     * Literal text every string matching the whole given regular expression has to start with.
+     *
+     * @param regexp
+     * @return the literal prefix, empty whether there is none.
+     */
+    static String literalPrefix(String regexp) {
+        // top-level alternation: each branch could start differently
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < regexp.length(); i++) {
+            char c = regexp.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                inClass = c != ']';
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                return "";
+            }
+        }
+
+        StringBuilder prefix = new StringBuilder();
+        int i = regexp.startsWith("^") ? 1 : 0;
+        while (i < regexp.length()) {
+            char c = regexp.charAt(i);
+            char literal;
+            int next;
+            if (c == '\\') {
+                if (i + 1 >= regexp.length() || Character.isLetterOrDigit(regexp.charAt(i + 1))) {
+                    break; // character classes, back references, quotations
+                }
+                literal = regexp.charAt(i + 1);
+                next = i + 2;
+            } else if (REGEXP_METACHARS.indexOf(c) >= 0) {
+                break;
+            } else {
+                literal = c;
+                next = i + 1;
+            }
+            if (next < regexp.length() && REGEXP_QUANTIFIERS.indexOf(regexp.charAt(next)) >= 0) {
+                break; // the literal is optional or repeated
+            }
+            prefix.append(literal);
+            i = next;
+        }
+        return prefix.toString();
+    }
+
+    enum IndexKeyType {
+        HOST(1),
+        URI_PREFIX(2),
+        METHOD(8);
+
+        private final int cost;
+
+        IndexKeyType(int cost) {
+            this.cost = cost;
+        }
+    }
+
+    static final class IndexKey {
+
+        final IndexKeyType type;
+        final String value;
+
+        IndexKey(IndexKeyType type, String value) {
+            this.type = type;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return type + "=" + value;
+        }
+    }
+
+    private static final class PrefixNode {
+
+        private final Map<Character, PrefixNode> children = new HashMap<>();
+        private final BitSet routes = new BitSet();
+
+        void add(String prefix, int position) {
+            PrefixNode node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.children.computeIfAbsent(prefix.charAt(i), c -> new PrefixNode());
+            }
+            node.routes.set(position);
+        }
+
+        void collect(String value, BitSet result) {
+            PrefixNode node = this;
+            for (int i = 0; i < value.length(); i++) {
+                node = node.children.get(value.charAt(i));
+                if (node == null) {
+                    return;
+                }
+                result.or(node.routes);
+            }
+        }
+    }
+}
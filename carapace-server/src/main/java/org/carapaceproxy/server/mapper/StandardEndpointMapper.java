@@ -20,7 +20,9 @@
 package org.carapaceproxy.server.mapper;
 
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.prometheus.client.Summary;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -44,12 +46,14 @@ import java.util.Optional;
 import org.carapaceproxy.SimpleHTTPResponse;
 import org.carapaceproxy.core.ProxyRequest;
 import org.carapaceproxy.server.mapper.requestmatcher.RequestMatcher;
+import org.carapaceproxy.server.mapper.requestmatcher.RequestMatcherCompiler;
 import org.carapaceproxy.server.config.RouteConfiguration;
 import org.carapaceproxy.server.mapper.requestmatcher.RegexpRequestMatcher;
 import org.carapaceproxy.server.filters.UrlEncodedQueryString;
 import org.carapaceproxy.server.mapper.CustomHeader.HeaderMode;
 import org.carapaceproxy.server.mapper.requestmatcher.parser.ParseException;
 import org.carapaceproxy.server.mapper.requestmatcher.parser.RequestMatchParser;
+import org.carapaceproxy.utils.PrometheusUtils;
 
 /**
  * Standard Endpoint mapping
@@ -57,10 +61,16 @@ import org.carapaceproxy.server.mapper.requestmatcher.parser.RequestMatchParser;
 public class StandardEndpointMapper extends EndpointMapper {
 
     public static final String ACME_CHALLENGE_ROUTE_ACTION_ID = "acme-challenge";
+
+    private static final Summary EVALUATED_ROUTES_SUMMARY = PrometheusUtils.createSummary(
+            "mapper", "evaluated_routes", "routes evaluated to map a request"
+    ).register();
+
     private final Map<String, BackendConfiguration> backends = new HashMap<>(); // wiped out whenever a new configuration is applied
     private final Map<String, DirectorConfiguration> directors = new HashMap<>();
     private final List<String> allbackendids = new ArrayList<>();
     private final List<RouteConfiguration> routes = new ArrayList<>();
+    private volatile RouteIndex routeIndex; // rebuilt whenever routes change
     private final Map<String, ActionConfiguration> actions = new HashMap<>();
     public final Map<String, CustomHeader> headers = new HashMap();
     private final BackendSelector backendSelector;
@@ -68,6 +78,7 @@ public class StandardEndpointMapper extends EndpointMapper {
     private String defaultInternalErrorAction = "internal-error";
     private String forceDirectorParameter = "x-director";
     private String forceBackendParameter = "x-backend";
+    private boolean compileRouteMatchers = true;
 
     private static final Logger LOG = Logger.getLogger(StandardEndpointMapper.class.getName());
     private static final String ACME_CHALLENGE_URI_PATTERN = "/\\.well-known/acme-challenge/";
@@ -111,10 +122,26 @@ public class StandardEndpointMapper extends EndpointMapper {
 
     @Override
     public MapResult map(ProxyRequest request) {
-        for (RouteConfiguration route : routes) {
-            if (!route.isEnabled()) {
-                continue;
-            }
+        RouteIndex index = getRouteIndex();
+        BitSet candidates = index.candidates(request);
+        int candidatesCount = candidates.cardinality();
+        try {
+            return map(request, index, candidates);
+        } finally {
+            EVALUATED_ROUTES_SUMMARY.observe(candidatesCount - candidates.cardinality());
+        }
+    }
+
+    /**
+     * @param request
+     * @param index
+     * @param candidates positions of the routes that may match the request, each one is cleared once evaluated
+     * @return result of the first matching route, not found whether none matches
+     */
+    private MapResult map(ProxyRequest request, RouteIndex index, BitSet candidates) {
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            candidates.clear(i);
+            RouteConfiguration route = index.getRoute(i);
             boolean matchResult = route.matches(request);
             if (LOG.isLoggable(Level.FINER)) {
                 LOG.log(Level.FINER, "route {0}, map {1} -> {2}", new Object[]{route.getId(), request.getUri(), matchResult});
@@ -221,6 +248,15 @@ public class StandardEndpointMapper extends EndpointMapper {
         return MapResult.notFound(MapResult.NO_ROUTE);
     }
 
+    private RouteIndex getRouteIndex() {
+        RouteIndex index = routeIndex;
+        if (index == null) {
+            index = new RouteIndex(routes);
+            routeIndex = index;
+        }
+        return index;
+    }
+
     @Override
     public SimpleHTTPResponse mapInternalError(String routeid) {
         ActionConfiguration errorAction = null;
@@ -287,6 +323,8 @@ public class StandardEndpointMapper extends EndpointMapper {
         LOG.log(Level.INFO, "configured mapper.debug={0}", debuggingHeaderEnabled);
         this.debuggingHeaderName = properties.getString("mapper.debug.name", DEBUGGING_HEADER_DEFAULT_NAME);
         LOG.log(Level.INFO, "configured mapper.debug.name={0}", debuggingHeaderName);
+        this.compileRouteMatchers = properties.getBoolean("mapper.routes.compile", compileRouteMatchers);
+        LOG.log(Level.INFO, "configured mapper.routes.compile={0}", compileRouteMatchers);
 
         /**
          * HEADERS
@@ -419,6 +457,9 @@ public class StandardEndpointMapper extends EndpointMapper {
                 boolean enabled = properties.getBoolean(prefix + "enabled", false);
                 matchingCondition = properties.getString(prefix + "match", "all");
                 RequestMatcher matcher = new RequestMatchParser(matchingCondition).parse();
+                if (compileRouteMatchers) {
+                    matcher = RequestMatcherCompiler.compile(matcher);
+                }
                 LOG.log(Level.INFO, "configured route {0} action: {1} enabled: {2} matcher: {3}", new Object[]{id, action, enabled, matcher});
                 RouteConfiguration config = new RouteConfiguration(id, action, enabled, matcher);
                 // Error action
@@ -437,6 +478,9 @@ public class StandardEndpointMapper extends EndpointMapper {
                 );
             }
         }
+
+        routeIndex = new RouteIndex(routes);
+        LOG.log(Level.INFO, "configured route index: {0} of {1} enabled routes indexed", new Object[]{routeIndex.getIndexedRoutesCount(), routeIndex.getRoutesCount()});
     }
 
     private void addHeader(String id, String name, String value, String mode) throws ConfigurationNotValidException {
@@ -484,6 +528,7 @@ public class StandardEndpointMapper extends EndpointMapper {
             throw new ConfigurationNotValidException("route " + route.getId() + " is already configured");
         }
         routes.add(route);
+        routeIndex = null;
     }
 
     @Override
@@ -46,6 +46,10 @@ public class AndRequestMatcher implements RequestMatcher {
         return true;
     }
 
+    public List<RequestMatcher> getMatchers() {
+        return matchers;
+    }
+
     @Override
     public String getDescription() {
         return matchers.stream()
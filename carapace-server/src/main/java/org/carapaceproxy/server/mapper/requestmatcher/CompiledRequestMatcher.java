@@ -0,0 +1,59 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.mapper.requestmatcher;
+
+import java.util.function.Predicate;
+
+/**
+ * Matcher produced by {@link RequestMatcherCompiler}: evaluates a flat predicate built once from the parsed matcher tree.
+ */
+public final class CompiledRequestMatcher implements RequestMatcher {
+
+    private final RequestMatcher source;
+    private final Predicate<MatchingContext> predicate;
+
+    CompiledRequestMatcher(RequestMatcher source, Predicate<MatchingContext> predicate) {
+        this.source = source;
+        this.predicate = predicate;
+    }
+
+    @Override
+    public boolean matches(MatchingContext context) {
+        return predicate.test(context);
+    }
+
+    /**
+     * @return the interpreted matcher this one has been compiled from.
+     */
+    public RequestMatcher getSource() {
+        return source;
+    }
+
+    @Override
+    public String getDescription() {
+        return source.getDescription();
+    }
+
+    @Override
+    public String toString() {
+        return source.toString();
+    }
+
+}
@@ -39,6 +39,14 @@ public class EqualsRequestMatcher implements RequestMatcher {
         return context.getProperty(name).equals(value);
     }
 
+    public String getName() {
+        return name;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
     public String getDescription() {
         return name + " = " + value;
     }
@@ -33,6 +33,15 @@ public interface MatchingContext {
      */
     String getProperty(String name);
 
+    /**
+     *
+     * @param property already resolved property.
+     * @return property value or empty string whether not exists.
+     */
+    default String getProperty(MatchingProperty property) {
+        return getProperty(property.getName());
+    }
+
     /**
      *
      * @return true whether HTTPS is used.
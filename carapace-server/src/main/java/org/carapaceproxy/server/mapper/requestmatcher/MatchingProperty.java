@@ -0,0 +1,125 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.mapper.requestmatcher;
+
+import static org.carapaceproxy.core.ProxyRequest.PROPERTY_CONTENT_TYPE;
+import static org.carapaceproxy.core.ProxyRequest.PROPERTY_HEADERS;
+import static org.carapaceproxy.core.ProxyRequest.PROPERTY_LISTENER_HOST_PORT;
+import static org.carapaceproxy.core.ProxyRequest.PROPERTY_LISTENER_IPADDRESS;
+import static org.carapaceproxy.core.ProxyRequest.PROPERTY_METHOD;
+import static org.carapaceproxy.core.ProxyRequest.PROPERTY_URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interned property of a {@link MatchingContext}: the property name is resolved once, so that contexts can access the
+ * value directly instead of parsing the name on every lookup.
+ */
+public final class MatchingProperty {
+
+    public enum Type {
+        URI,
+        METHOD,
+        CONTENT_TYPE,
+        HEADER,
+        LISTENER_HOST_PORT,
+        LISTENER_IPADDRESS,
+        UNKNOWN
+    }
+
+    private static final Map<String, MatchingProperty> PROPERTIES = new ConcurrentHashMap<>();
+    private static final AtomicInteger ID_GENERATOR = new AtomicInteger();
+
+    private final int id;
+    private final String name;
+    private final Type type;
+    private final String headerName;
+
+    private MatchingProperty(String name) {
+        this.id = ID_GENERATOR.getAndIncrement();
+        this.name = name;
+        if (name.startsWith(PROPERTY_HEADERS)) {
+            this.type = Type.HEADER;
+            this.headerName = name.substring(PROPERTY_HEADERS.length());
+        } else {
+            this.headerName = null;
+            switch (name) {
+                case PROPERTY_URI:
+                    this.type = Type.URI;
+                    break;
+                case PROPERTY_METHOD:
+                    this.type = Type.METHOD;
+                    break;
+                case PROPERTY_CONTENT_TYPE:
+                    this.type = Type.CONTENT_TYPE;
+                    break;
+                case PROPERTY_LISTENER_HOST_PORT:
+                    this.type = Type.LISTENER_HOST_PORT;
+                    break;
+                case PROPERTY_LISTENER_IPADDRESS:
+                    this.type = Type.LISTENER_IPADDRESS;
+                    break;
+                default:
+                    this.type = Type.UNKNOWN;
+            }
+        }
+    }
+
+    /**
+     * @param name
+     * @return the unique instance for the given property name.
+     */
+    public static MatchingProperty of(String name) {
+        return PROPERTIES.computeIfAbsent(name, MatchingProperty::new);
+    }
+
+    /**
+     * @return number of properties interned so far: ids are in [0, count).
+     */
+    public static int count() {
+        return ID_GENERATOR.get();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return header name for properties of type {@link Type#HEADER}, null otherwise.
+     */
+    public String getHeaderName() {
+        return headerName;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
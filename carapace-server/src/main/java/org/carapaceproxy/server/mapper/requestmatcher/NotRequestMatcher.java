@@ -37,6 +37,10 @@ public class NotRequestMatcher implements RequestMatcher {
         return !matcher.matches(context);
     }
 
+    public RequestMatcher getMatcher() {
+        return matcher;
+    }
+
     @Override
     public String getDescription() {
         return "not " + matcher.getDescription();
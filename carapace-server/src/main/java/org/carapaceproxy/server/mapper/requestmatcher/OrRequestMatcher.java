@@ -48,6 +48,10 @@ public class OrRequestMatcher implements RequestMatcher {
         return false;
     }
 
+    public List<RequestMatcher> getMatchers() {
+        return matchers;
+    }
+
     @Override
     public String getDescription() {
         String desc = wrap ? "(" : "";
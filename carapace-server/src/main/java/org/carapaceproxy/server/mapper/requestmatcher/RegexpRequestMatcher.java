@@ -47,6 +47,14 @@ public class RegexpRequestMatcher implements RequestMatcher {
         return expression.matcher(context.getProperty(name)).matches();
     }
 
+    public String getName() {
+        return name;
+    }
+
+    public Pattern getExpression() {
+        return expression;
+    }
+
     @Override
     public String getDescription() {
         return name + " ~ \"" + this.expression.toString() + "\"";
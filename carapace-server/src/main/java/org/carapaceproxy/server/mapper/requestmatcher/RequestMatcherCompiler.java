@@ -0,0 +1,165 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.mapper.requestmatcher;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles a parsed {@link RequestMatcher} tree into a {@link CompiledRequestMatcher}.
+ * <p>
+ * Property names are resolved to {@link MatchingProperty} once, single-child compositions are flattened and the
+ * operands of and/or compositions are reordered to evaluate cheap checks (secure, equals) before regular expressions.
+ * Reordering does not change the outcome as matchers have no side effects; it is skipped whenever an operand reads an
+ * unknown property, to keep the failure of the lookup where the interpreted matcher would raise it.
+ */
+public final class RequestMatcherCompiler {
+
+    private static final int COST_CONSTANT = 0;
+    private static final int COST_EQUALS = 1;
+    private static final int COST_REGEXP = 4;
+    private static final int COST_COMPOSITE = 8;
+
+    private RequestMatcherCompiler() {
+    }
+
+    public static CompiledRequestMatcher compile(RequestMatcher matcher) {
+        if (matcher instanceof CompiledRequestMatcher) {
+            return (CompiledRequestMatcher) matcher;
+        }
+        return new CompiledRequestMatcher(matcher, toPredicate(matcher));
+    }
+
+    private static Predicate<MatchingContext> toPredicate(RequestMatcher matcher) {
+        if (matcher instanceof MatchAllRequestMatcher) {
+            return context -> true;
+        }
+        if (matcher instanceof SecureRequestMatcher) {
+            return MatchingContext::isSecure;
+        }
+        if (matcher instanceof EqualsRequestMatcher) {
+            EqualsRequestMatcher equals = (EqualsRequestMatcher) matcher;
+            MatchingProperty property = MatchingProperty.of(equals.getName());
+            String value = equals.getValue();
+            return context -> context.getProperty(property).equals(value);
+        }
+        if (matcher instanceof RegexpRequestMatcher) {
+            RegexpRequestMatcher regexp = (RegexpRequestMatcher) matcher;
+            MatchingProperty property = MatchingProperty.of(regexp.getName());
+            Pattern expression = regexp.getExpression();
+            return context -> expression.matcher(context.getProperty(property)).matches();
+        }
+        if (matcher instanceof NotRequestMatcher) {
+            return toPredicate(((NotRequestMatcher) matcher).getMatcher()).negate();
+        }
+        if (matcher instanceof AndRequestMatcher) {
+            Predicate<MatchingContext>[] operands = toPredicates(((AndRequestMatcher) matcher).getMatchers());
+            if (operands.length == 1) {
+                return operands[0];
+            }
+            return context -> {
+                for (Predicate<MatchingContext> operand : operands) {
+                    if (!operand.test(context)) {
+                        return false;
+                    }
+                }
+                return true;
+            };
+        }
+        if (matcher instanceof OrRequestMatcher) {
+            Predicate<MatchingContext>[] operands = toPredicates(((OrRequestMatcher) matcher).getMatchers());
+            if (operands.length == 1) {
+                return operands[0];
+            }
+            return context -> {
+                for (Predicate<MatchingContext> operand : operands) {
+                    if (operand.test(context)) {
+                        return true;
+                    }
+                }
+                return false;
+            };
+        }
+        if (matcher instanceof CompiledRequestMatcher) {
+            return toPredicate(((CompiledRequestMatcher) matcher).getSource());
+        }
+        // custom matcher: nothing to compile
+        return matcher::matches;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Predicate<MatchingContext>[] toPredicates(List<RequestMatcher> matchers) {
+        List<RequestMatcher> ordered = new ArrayList<>(matchers);
+        if (ordered.stream().allMatch(RequestMatcherCompiler::readsKnownProperties)) {
+            ordered.sort(Comparator.comparingInt(RequestMatcherCompiler::cost)); // stable
+        }
+        Predicate<MatchingContext>[] res = new Predicate[ordered.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = toPredicate(ordered.get(i));
+        }
+        return res;
+    }
+
+    private static int cost(RequestMatcher matcher) {
+        if (matcher instanceof MatchAllRequestMatcher || matcher instanceof SecureRequestMatcher) {
+            return COST_CONSTANT;
+        }
+        if (matcher instanceof EqualsRequestMatcher) {
+            return COST_EQUALS;
+        }
+        if (matcher instanceof RegexpRequestMatcher) {
+            return COST_REGEXP;
+        }
+        return COST_COMPOSITE;
+    }
+
+    private static boolean readsKnownProperties(RequestMatcher matcher) {
+        if (matcher instanceof MatchAllRequestMatcher || matcher instanceof SecureRequestMatcher) {
+            return true;
+        }
+        if (matcher instanceof EqualsRequestMatcher) {
+            return isKnown(((EqualsRequestMatcher) matcher).getName());
+        }
+        if (matcher instanceof RegexpRequestMatcher) {
+            return isKnown(((RegexpRequestMatcher) matcher).getName());
+        }
+        if (matcher instanceof NotRequestMatcher) {
+            return readsKnownProperties(((NotRequestMatcher) matcher).getMatcher());
+        }
+        if (matcher instanceof AndRequestMatcher) {
+            return ((AndRequestMatcher) matcher).getMatchers().stream().allMatch(RequestMatcherCompiler::readsKnownProperties);
+        }
+        if (matcher instanceof OrRequestMatcher) {
+            return ((OrRequestMatcher) matcher).getMatchers().stream().allMatch(RequestMatcherCompiler::readsKnownProperties);
+        }
+        if (matcher instanceof CompiledRequestMatcher) {
+            return readsKnownProperties(((CompiledRequestMatcher) matcher).getSource());
+        }
+        return false;
+    }
+
+    private static boolean isKnown(String name) {
+        return MatchingProperty.of(name).getType() != MatchingProperty.Type.UNKNOWN;
+    }
+
+}
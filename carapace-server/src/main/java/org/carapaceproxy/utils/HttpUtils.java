@@ -21,6 +21,9 @@ package org.carapaceproxy.utils;
  */
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import static java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME;
 
 /**
@@ -31,9 +34,63 @@ import static java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME;
 public class HttpUtils {
 
     private static final ZoneId GMT = ZoneId.of("GMT");
+    private static final String BYTES_UNIT = "bytes=";
+    // more ranges than this are served as a whole
+    public static final int MAX_BYTE_RANGES = 16;
 
     public static final String formatDateHeader(java.util.Date date) {
         return RFC_1123_DATE_TIME.format(ZonedDateTime.ofInstant(date.toInstant(), GMT));
     }
 
+    /**
+     * Parses the Range header of a request (https://tools.ietf.org/html/rfc7233#section-2.1).
+     *
+     * @param header value of the Range header
+     * @param length length of the representation
+     * @return the satisfiable ranges as {first, last} offsets, inclusive; an empty list whether no range is
+     * satisfiable; null whether the header has to be ignored (not in bytes, malformed or too many ranges)
+     */
+    public static List<long[]> parseByteRanges(String header, long length) {
+        if (header == null || !header.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+        String[] specs = header.substring(BYTES_UNIT.length()).split(",");
+        if (specs.length > MAX_BYTE_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>(specs.length);
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                if (first.isEmpty()) { // suffix range: last n bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix > 0 && length > 0) {
+                        ranges.add(new long[]{Math.max(0, length - suffix), length - 1});
+                    }
+                    continue;
+                }
+                long start = Long.parseLong(first);
+                long end = last.isEmpty() ? length - 1 : Long.parseLong(last);
+                if (start < 0 || end < start) {
+                    return null;
+                }
+                if (start < length) {
+                    ranges.add(new long[]{start, Math.min(end, length - 1)});
+                }
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        return ranges.isEmpty() ? Collections.emptyList() : ranges;
+    }
+
 }
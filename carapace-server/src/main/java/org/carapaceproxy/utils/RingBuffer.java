@@ -0,0 +1,185 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.utils;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer.
+ * <p>
+ * Each slot has a sequence number telling whether it is free for the producer claiming the position or filled for the
+ * consumer: producers never wait for each other, apart from a CAS on the tail.
+ *
+ * @param <T> type of the items
+ */
+public final class RingBuffer<T> {
+
+    // time a producer waits between attempts when the buffer is full
+    private static final long OFFER_RETRY_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final int capacity;
+    private final AtomicReferenceArray<T> items;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong(); // next position to be claimed by producers
+    private volatile long head; // next position to be consumed, written by the consumer only
+    private volatile Thread waitingConsumer;
+
+    /**
+     * @param capacity at least 2: with a single slot the sequence of a filled slot and that of a slot free for the next
+     * round would be the same
+     */
+    public RingBuffer(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        this.capacity = capacity;
+        this.items = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an item, without waiting.
+     *
+     * @param item
+     * @return false whether the buffer is full
+     */
+    public boolean offer(T item) {
+        Objects.requireNonNull(item);
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) (position % capacity);
+            long available = sequences.get(index) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (available < 0) {
+                return false; // the slot has not been consumed yet
+            } else {
+                position = tail.get(); // claimed by another producer
+            }
+        }
+        items.set(index, item);
+        sequences.set(index, position + 1); // publish to the consumer
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Adds an item, waiting up to the given time for a free slot.
+     *
+     * @param item
+     * @param timeout
+     * @param unit
+     * @return false whether the buffer is still full after the timeout
+     */
+    public boolean offer(T item, long timeout, TimeUnit unit) {
+        if (offer(item)) {
+            return true;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(this, Math.min(remaining, OFFER_RETRY_NANOS));
+            if (offer(item)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes the next item, to be called by the consumer thread only.
+     *
+     * @return null whether the buffer is empty
+     */
+    public T poll() {
+        long position = head;
+        int index = (int) (position % capacity);
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        T item = items.get(index);
+        items.lazySet(index, null);
+        head = position + 1;
+        sequences.set(index, position + capacity); // free the slot for the next round
+        return item;
+    }
+
+    /**
+     * Takes the next item, waiting up to the given time; to be called by the consumer thread only.
+     *
+     * @param timeout
+     * @param unit
+     * @return null whether the buffer is still empty after the timeout
+     * @throws InterruptedException
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        T item = poll();
+        if (item != null || timeout <= 0) {
+            return item;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        // set before polling again: an item published afterwards unparks us
+        waitingConsumer = Thread.currentThread();
+        try {
+            while ((item = poll()) == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return item;
+        } finally {
+            waitingConsumer = null;
+        }
+    }
+
+    /**
+     * @return approximate number of items in the buffer
+     */
+    public int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
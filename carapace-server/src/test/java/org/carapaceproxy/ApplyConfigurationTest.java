@@ -210,6 +210,41 @@ public class ApplyConfigurationTest {
                 Throwable cause = e.getCause();
                 assertTrue(cause instanceof ConfigurationNotValidException && cause.getMessage().contains("Unsupported SSL Protocols"));
             }
+            // listeners with HTTP/2
+            {
+                Properties configuration = new Properties();
+                configuration.put("mapper.class", StaticEndpointMapper.class.getName());
+                configuration.put("certificate.1.hostname", "*");
+                configuration.put("certificate.1.mode", "manual");
+                configuration.put("listener.1.host", "localhost");
+                configuration.put("listener.1.port", "1423");
+                configuration.put("listener.1.ssl", "true");
+                configuration.put("listener.1.protocols", "h2,http11");
+                configuration.put("listener.2.host", "localhost");
+                configuration.put("listener.2.port", "1426");
+                configuration.put("listener.2.protocols", "HTTP11,H2C");
+                reloadConfiguration(configuration, server);
+                assertTrue(server.getCurrentConfiguration().getListeners().stream()
+                        .anyMatch(l -> l.getPort() == 1423 && l.isHttpProtocolEnabled("H2")));
+                assertTrue(server.getCurrentConfiguration().getListeners().stream()
+                        .anyMatch(l -> l.getPort() == 1426 && l.isHttpProtocolEnabled("H2C")));
+                testIt(1426, true);
+            }
+            // HTTP/2 cleartext is not allowed on ssl listeners
+            try {
+                Properties configuration = new Properties();
+                configuration.put("mapper.class", StaticEndpointMapper.class.getName());
+                configuration.put("certificate.1.hostname", "*");
+                configuration.put("certificate.1.mode", "manual");
+                configuration.put("listener.1.host", "localhost");
+                configuration.put("listener.1.port", "1423");
+                configuration.put("listener.1.ssl", "true");
+                configuration.put("listener.1.protocols", "H2C");
+                reloadConfiguration(configuration, server);
+                fail("Expecting an error for H2C over ssl");
+            } catch (ConfigurationNotValidException e) {
+                assertTrue(e.getMessage().contains("Unsupported HTTP protocol"));
+            }
         }
     }
 
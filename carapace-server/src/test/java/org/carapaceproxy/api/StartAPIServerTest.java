@@ -128,14 +128,25 @@ public class StartAPIServerTest extends UseAdminServer {
             RawHttpClient.HttpResponse resp = client.get("/api/cache/info", credentials);
             String s = resp.getBodyString();
             System.out.println("s:" + s);
-            assertThat(s, is("{\"result\":\"ok\",\"hits\":0,\"directMemoryUsed\":0,\"misses\":0,\"heapMemoryUsed\":0,\"totalMemoryUsed\":0,\"cachesize\":0}"));
+            assertThat(s, is("{\"result\":\"ok\",\"hits\":0,\"directMemoryUsed\":0,\"misses\":0,\"heapMemoryUsed\":0,\"totalMemoryUsed\":0,\"diskUsed\":0,\"cachesize\":0,\"diskcachesize\":0}"));
         }
 
         try (RawHttpClient client = new RawHttpClient("localhost", 8761)) {
             RawHttpClient.HttpResponse resp = client.get("/api/cache/flush", credentials);
             String s = resp.getBodyString();
             System.out.println("s:" + s);
-            assertThat(s, is("{\"result\":\"ok\",\"cachesize\":0}"));
+            assertThat(s, is("{\"result\":\"ok\",\"peers\":{},\"cachesize\":0}"));
+        }
+
+        try (RawHttpClient client = new RawHttpClient("localhost", 8761)) {
+            RawHttpClient.HttpResponse resp = client.get("/api/cache/purge/tag?tag=product-1", credentials);
+            String s = resp.getBodyString();
+            assertThat(s, is("{\"peers\":{},\"result\":\"ok\",\"purged\":0}"));
+        }
+
+        try (RawHttpClient client = new RawHttpClient("localhost", 8761)) {
+            RawHttpClient.HttpResponse resp = client.get("/api/cache/purge/prefix?host=localhost", credentials);
+            assertThat(resp.getStatusLine(), containsString("422"));
         }
     }
 
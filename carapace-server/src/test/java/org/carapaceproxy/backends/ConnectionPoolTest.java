@@ -26,6 +26,7 @@ import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.mock;
@@ -50,6 +51,11 @@ import org.carapaceproxy.utils.HttpTestUtils;
 import org.carapaceproxy.utils.TestUtils;
 import org.junit.Rule;
 import org.junit.Test;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.http.server.HttpServer;
 import reactor.netty.http.server.HttpServerRequest;
 import reactor.netty.resources.ConnectionProvider;
 
@@ -196,6 +202,12 @@ public class ConnectionPoolTest extends UseAdminServer {
         // connection pool selection
         ProxyRequestsManager.ConnectionsManager connectionsManager = server.getProxyRequestsManager().getConnectionsManager();
 
+        // no host header
+        {
+            ProxyRequest proxyRequest = mock(ProxyRequest.class);
+            assertThat(connectionsManager.apply(proxyRequest).getKey(), is(defaultPool));
+        }
+
         // default providder
         {
             HttpServerRequest request = mock(HttpServerRequest.class);
@@ -210,6 +222,11 @@ public class ConnectionPoolTest extends UseAdminServer {
             assertThat(maxConnectionsPerHost.size(), is(2));
             maxConnectionsPerHost.values().stream().allMatch(e -> e == 10);
 
+            // prebuilt client shared by requests to the same backend
+            HttpClient httpClient = connectionsManager.getHttpClient(res, "localhost", wireMockRule.port());
+            assertThat(connectionsManager.getHttpClient(res, "localhost", wireMockRule.port()), sameInstance(httpClient));
+            assertThat(connectionsManager.getHttpClient(res, "localhost2", wireMockRule.port()), not(sameInstance(httpClient)));
+
             try (RawHttpClient client = new RawHttpClient("localhost", port)) {
                 RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\n" + HttpHeaderNames.HOST + ": localhost*" + "\r\n\r\n");
                 assertEquals("it <b>works</b> !!", resp.getBodyString());
@@ -269,6 +286,108 @@ public class ConnectionPoolTest extends UseAdminServer {
         }
     }
 
+    @Test
+    public void testIncrementalReconfiguration() throws Exception {
+        configureAndStartServer();
+
+        ConnectionPoolConfiguration defaultPool = new ConnectionPoolConfiguration(
+                "*", "*", 10, 5_000, 10_000, 15_000, 20_000, 50_000, true
+        );
+        ConnectionPoolConfiguration customPool = new ConnectionPoolConfiguration(
+                "localhosts", "localhost[0-9]", 20, 21_000, 22_000, 23_000, 24_000, 25_000, true
+        );
+        Map<ConnectionPoolConfiguration, ConnectionProvider> connectionPools = server.getProxyRequestsManager().getConnectionPools();
+        ConnectionProvider defaultProvider = connectionPools.get(defaultPool);
+        ConnectionProvider customProvider = connectionPools.get(customPool);
+        int port = server.getLocalPort();
+        EndpointKey endpoint = EndpointKey.make("localhost", wireMockRule.port());
+        try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+            RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\n" + HttpHeaderNames.HOST + ": localhost3" + "\r\n\r\n");
+            assertEquals("it <b>works</b> !!", resp.getBodyString());
+        }
+        assertThat(server.getConnectionPoolsStats().get(endpoint).get("localhosts").getTotalConnections(), is(1));
+
+        // new backend and a changed pool: the other pools are kept
+        config.put("backend.3.id", "localhost3");
+        config.put("backend.3.enabled", "true");
+        config.put("backend.3.host", "localhost3");
+        config.put("backend.3.port", wireMockRule.port() + "");
+        config.put("connectionpool.3.maxconnectionsperendpoint", "30");
+        changeDynamicConfiguration(config);
+
+        connectionPools = server.getProxyRequestsManager().getConnectionPools();
+        assertThat(connectionPools.size(), is(3));
+        assertThat(connectionPools.get(defaultPool), sameInstance(defaultProvider));
+        assertThat(connectionPools.get(customPool), nullValue());
+        customPool.setMaxConnectionsPerEndpoint(30);
+        ConnectionProvider newCustomProvider = connectionPools.get(customPool);
+        assertThat(newCustomProvider, not(nullValue()));
+        assertThat(newCustomProvider, not(sameInstance(customProvider)));
+        assertThat(newCustomProvider.maxConnectionsPerHost().size(), is(3));
+
+        // the metrics of the changed pool are those of the new provider
+        try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+            RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\n" + HttpHeaderNames.HOST + ": localhost3" + "\r\n\r\n");
+            assertEquals("it <b>works</b> !!", resp.getBodyString());
+        }
+        TestUtils.waitForCondition(() -> {
+            Map<String, HttpProxyServer.ConnectionPoolStats> stats = server.getConnectionPoolsStats().get(endpoint);
+            return stats != null && stats.get("localhosts") != null && stats.get("localhosts").getTotalConnections() == 1;
+        }, 10);
+        // stats are still reported once the old provider has been disposed
+        Thread.sleep(1_000);
+        assertThat(server.getConnectionPoolsStats().get(endpoint).get("localhosts").getTotalConnections(), is(1));
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        configureAndStartServer();
+
+        config.put("connectionpool.1.minidleconnections", "2");
+        changeDynamicConfiguration(config);
+
+        EndpointKey endpoint = EndpointKey.make("localhost", wireMockRule.port());
+        TestUtils.waitForCondition(() -> {
+            Map<String, HttpProxyServer.ConnectionPoolStats> stats = server.getConnectionPoolsStats().get(endpoint);
+            return stats != null && stats.get("localhost") != null && stats.get("localhost").getIdleConnections() == 2;
+        }, 10);
+    }
+
+    @Test
+    public void testHttp2Backend() throws Exception {
+        DisposableServer backend = HttpServer.create()
+                .host("localhost")
+                .port(0)
+                .protocol(HttpProtocol.H2C)
+                .handle((request, response) -> response.sendString(Mono.just("it <b>works</b> !!")))
+                .bindNow();
+        try {
+            configureAndStartServer();
+            config.put("backend.1.port", backend.port() + "");
+            config.put("connectionpool.1.httpprotocol", "h2c");
+            config.put("connectionpool.1.maxconcurrentstreams", "5");
+            changeDynamicConfiguration(config);
+
+            ConnectionPoolConfiguration pool = server.getCurrentConfiguration().getConnectionPools().get(0);
+            assertThat(pool.getHttpProtocol(), is("H2C"));
+            assertThat(pool.getMaxConcurrentStreams(), is(5));
+
+            int port = server.getLocalPort();
+            for (int i = 0; i < 3; i++) {
+                try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                    assertEquals("it <b>works</b> !!", client.get("/index.html").getBodyString());
+                }
+            }
+
+            // requests multiplexed on a single connection
+            Map<String, HttpProxyServer.ConnectionPoolStats> stats = server.getConnectionPoolsStats().get(EndpointKey.make("localhost", backend.port()));
+            assertThat(stats.get("localhost").getTotalConnections(), is(1));
+            assertThat(stats.get("localhost").getActiveStreams(), is(0));
+        } finally {
+            backend.disposeNow();
+        }
+    }
+
     @Test
     public void testAPIResource() throws Exception {
         configureAndStartServer();
@@ -288,22 +407,22 @@ public class ConnectionPoolTest extends UseAdminServer {
 
             // default pool
             assertThat(pools.get("*"), is(new ConnectionPoolsResource.ConnectionPoolBean(
-                    "*", "*", 10, 5_000, 10_000, 15_000, 20_000, 50_000, true, 0
+                    "*", "*", 10, 5_000, 10_000, 15_000, 20_000, 50_000, true, 0, 0, 100, "HTTP11", 100, 0
             )));
 
             // pool with defaults
             assertThat(pools.get("localhost"), is(new ConnectionPoolsResource.ConnectionPoolBean(
-                    "localhost", "localhost", 10, 5_000, 10_000, 15_000, 20_000, 50_000, true, 1
+                    "localhost", "localhost", 10, 5_000, 10_000, 15_000, 20_000, 50_000, true, 1, 0, 100, "HTTP11", 100, 0
             )));
 
             // disabled custom pool
             assertThat(pools.get("localhost2"), is(new ConnectionPoolsResource.ConnectionPoolBean(
-                    "localhost2", "localhost2", 10, 5_000, 10_000, 15_000, 20_000, 50_000, false, 0
+                    "localhost2", "localhost2", 10, 5_000, 10_000, 15_000, 20_000, 50_000, false, 0, 0, 100, "HTTP11", 100, 0
             )));
 
             // custom pool
             assertThat(pools.get("localhosts"), is(new ConnectionPoolsResource.ConnectionPoolBean(
-                    "localhosts", "localhost[0-9]", 20, 21_000, 22_000, 23_000, 24_000, 25_000, true, 0
+                    "localhosts", "localhost[0-9]", 20, 21_000, 22_000, 23_000, 24_000, 25_000, true, 0, 0, 100, "HTTP11", 100, 0
             )));
         }
     }
@@ -25,22 +25,31 @@ import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
 import com.google.common.io.Files;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 import org.carapaceproxy.server.mapper.MapResult;
+import org.carapaceproxy.server.mapper.requestmatcher.MatchingProperty;
 import org.carapaceproxy.client.EndpointKey;
 import org.carapaceproxy.utils.RawHttpClient;
 import org.carapaceproxy.utils.TestEndpointMapper;
+import org.carapaceproxy.utils.TestUtils;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.assertFalse;
@@ -120,6 +129,9 @@ public class RequestsLoggerTest {
         when(rh.getAction()).thenReturn(r.action);
         when(rh.getRemoteAddress()).thenReturn(new InetSocketAddress(r.remoteIp, 44444));
         when(rh.getLocalAddress()).thenReturn(new InetSocketAddress(r.localIp, 55555));
+        when(rh.getProperty(MatchingProperty.of(ProxyRequest.PROPERTY_LISTENER_IPADDRESS))).thenReturn(r.localIp);
+        when(rh.getProperty(MatchingProperty.of(ProxyRequest.PROPERTY_METHOD))).thenReturn(r.reqMethod.name());
+        when(rh.getProperty(MatchingProperty.of(ProxyRequest.PROPERTY_HEADERS + HttpHeaderNames.HOST))).thenReturn(r.reqHost);
         when(rh.getStartTs()).thenReturn(f.parse(r.startTs).getTime());
         when(rh.getBackendStartTs()).thenReturn(f.parse(r.backendStartTs).getTime());
         when(rh.getLastActivity()).thenReturn(f.parse(r.endTs).getTime());
@@ -504,6 +516,267 @@ public class RequestsLoggerTest {
 
     }
 
+    @Test
+    public void testTemplate() throws Exception {
+        MockProxyRequest r = new MockProxyRequest();
+        r.reqMethod = HttpMethod.GET;
+        r.reqHost = "thehost";
+        r.reqUri = "/index.html";
+        r.remoteIp = "123.123.123.123";
+        r.localIp = "234.234.234.234";
+        r.startTs = "2018-10-23 10:10:10.000";
+        r.backendStartTs = "2018-10-23 10:10:10.542";
+        r.endTs = "2018-10-23 10:10:11.012";
+        r.action = MapResult.builder()
+                .host("host")
+                .port(1111)
+                .action(MapResult.Action.PROXY)
+                .routeId("routeid_1")
+                .build();
+        ProxyRequest request = createMockRequestHandler(r);
+
+        AccessLogTemplate template = AccessLogTemplate.compile(
+                "\\<<method>\\> <uri> <unknown> <user_id> a<b <total_time>/<backend_time> <tls_protocol> <timestamp>", "HH:mm:ss");
+        assertThat(new RequestsLogger.Entry(request, template).render(),
+                is("<GET> /index.html   a<b 1012/542 n/a 10:10:10"));
+        assertTrue(template.isCompiledFrom(
+                "\\<<method>\\> <uri> <unknown> <user_id> a<b <total_time>/<backend_time> <tls_protocol> <timestamp>", "HH:mm:ss"));
+
+        when(request.isServedFromCache()).thenReturn(true);
+        assertThat(new RequestsLogger.Entry(request, AccessLogTemplate.compile("<backend_id> <backend_time>", "HH:mm")).render(),
+                is("CACHED 0"));
+    }
+
+    @Test
+    public void testStructuredOutput() throws Exception {
+        MockProxyRequest r = new MockProxyRequest();
+        r.reqMethod = HttpMethod.GET;
+        r.reqHost = "thehost";
+        r.reqUri = "/index.html?q=\"a\"";
+        r.remoteIp = "123.123.123.123";
+        r.localIp = "234.234.234.234";
+        r.startTs = "2018-10-23 10:10:10.000";
+        r.backendStartTs = "2018-10-23 10:10:10.542";
+        r.endTs = "2018-10-23 10:10:11.012";
+        r.action = MapResult.builder()
+                .host("host")
+                .port(1111)
+                .action(MapResult.Action.PROXY)
+                .routeId("routeid_1")
+                .build();
+        r.userid = "uid_1";
+        ProxyRequest request = createMockRequestHandler(r);
+        when(request.getResponseStatus()).thenReturn(200);
+        when(request.getSentBytes()).thenReturn(1234L);
+
+        RuntimeServerConfiguration c = genConf();
+        c.setAccessLogOutput("json");
+        RequestsLogger reqLogger = new RequestsLogger(c);
+        reqLogger.setBreakRunForTests(true);
+        reqLogger.logRequest(request);
+        run(reqLogger);
+        reqLogger.flushAccessLogFile();
+        List<String> rows = readFile(accessLogFilePath);
+        assertThat(rows.size(), is(1));
+        long startTs = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").parse(r.startTs).getTime();
+        assertThat(rows.get(0), is("{\"timestamp\":" + startTs
+                + ",\"client_ip\":\"123.123.123.123\",\"server_ip\":\"234.234.234.234\",\"method\":\"GET\",\"host\":\"thehost\""
+                + ",\"uri\":\"/index.html?q=\\\"a\\\"\",\"status\":200,\"bytes\":1234,\"total_time\":1012,\"backend_time\":542"
+                + ",\"action_id\":\"PROXY\",\"route_id\":\"routeid_1\",\"backend_id\":\"host:1111\",\"user_id\":\"uid_1\""
+                + ",\"session_id\":null,\"tls_protocol\":null,\"tls_cipher_suite\":null}"));
+        reqLogger.close();
+        run(reqLogger);
+
+        // binary records are appended to the same file after a switch of the output
+        long textLength = new File(accessLogFilePath).length();
+        c = genConf();
+        c.setAccessLogOutput("binary");
+        reqLogger = new RequestsLogger(c);
+        reqLogger.setBreakRunForTests(true);
+        reqLogger.logRequest(request);
+        run(reqLogger);
+        reqLogger.close();
+        run(reqLogger);
+        byte[] content = java.nio.file.Files.readAllBytes(Paths.get(accessLogFilePath));
+        ByteBuffer record = ByteBuffer.wrap(content, (int) textLength, content.length - (int) textLength);
+        assertThat(record.getInt(), is(content.length - (int) textLength - 4));
+        assertThat(record.get(), is(AccessLogEncoder.Binary.VERSION));
+        assertThat(record.getLong(), is(startTs));
+        assertThat(record.getInt(), is(200));
+        assertThat(record.getLong(), is(1234L));
+        assertThat(record.getLong(), is(1012L));
+        assertThat(record.getLong(), is(542L));
+        assertThat(readString(record), is("123.123.123.123"));
+        assertThat(readString(record), is("234.234.234.234"));
+        assertThat(readString(record), is("GET"));
+    }
+
+    @Test
+    public void testAdvancedAccessLog() throws Exception {
+        MockProxyRequest r = new MockProxyRequest();
+        r.reqMethod = HttpMethod.POST;
+        r.reqHost = "thehost";
+        r.reqUri = "/index.html";
+        r.remoteIp = "123.123.123.123";
+        r.localIp = "234.234.234.234";
+        r.startTs = "2018-10-23 10:10:10.000";
+        r.backendStartTs = "2018-10-23 10:10:10.542";
+        r.endTs = "2018-10-23 10:10:11.012";
+        r.action = MapResult.builder()
+                .host("host")
+                .port(1111)
+                .action(MapResult.Action.PROXY)
+                .routeId("routeid_1")
+                .build();
+        ProxyRequest request = createMockRequestHandler(r);
+        // only the first bytes are kept, without consuming the buffers
+        BodyCapture requestBody = new BodyCapture(5);
+        ByteBuf data = Unpooled.copiedBuffer("hello", StandardCharsets.UTF_8);
+        requestBody.capture(data);
+        assertThat(data.readableBytes(), is(5));
+        requestBody.capture(Unpooled.copiedBuffer(" world", StandardCharsets.UTF_8));
+        BodyCapture responseBody = new BodyCapture(5);
+        responseBody.capture(Unpooled.copiedBuffer("ab", StandardCharsets.UTF_8));
+        when(request.getRequestBodyCapture()).thenReturn(requestBody);
+        when(request.getResponseBodyCapture()).thenReturn(responseBody);
+
+        RuntimeServerConfiguration c = genConf();
+        String advancedAccessLogFilePath = tmpDir.getRoot().getAbsolutePath() + "/access.advanced.log";
+        c.setAccessLogAdvancedPath(advancedAccessLogFilePath);
+        RequestsLogger reqLogger = new RequestsLogger(c, true);
+        reqLogger.setBreakRunForTests(true);
+        reqLogger.logRequest(request);
+        run(reqLogger);
+        reqLogger.flushAccessLogFile();
+        assertFalse(new File(accessLogFilePath).exists());
+        List<String> rows = readFile(advancedAccessLogFilePath);
+        assertThat(rows.size(), is(1));
+        assertTrue(rows.get(0).startsWith("{\"timestamp\":"));
+        assertTrue(rows.get(0).endsWith(",\"tls_cipher_suite\":null"
+                + ",\"request_body\":\"aGVsbG8=\",\"request_body_bytes\":11,\"response_body\":\"YWI=\",\"response_body_bytes\":2}"));
+        reqLogger.close();
+        run(reqLogger);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        RuntimeServerConfiguration c = genConf();
+        c.setAccessLogFlushInterval(100);
+        c.setAccessLogFormat("<uri>");
+        c.setAccessLogMaxQueueCapacity(2);
+        c.setAccessLogBackpressurePolicy("block");
+        c.setAccessLogBackpressureBlockTimeout(200);
+
+        RequestsLogger reqLogger = new RequestsLogger(c);
+        reqLogger.setBreakRunForTests(true);
+
+        MockProxyRequest r = new MockProxyRequest();
+        r.reqMethod = HttpMethod.GET;
+        r.reqHost = "thehost";
+        r.remoteIp = "123.123.123.123";
+        r.localIp = "234.234.234.234";
+        r.startTs = "2018-10-23 10:10:10.000";
+        r.backendStartTs = "2018-10-23 10:10:10.542";
+        r.endTs = "2018-10-23 10:10:11.012";
+        r.action = MapResult.builder()
+                .host("host")
+                .port(1111)
+                .action(MapResult.Action.PROXY)
+                .routeId("routeid_1")
+                .build();
+        for (int i = 1; i <= 3; i++) {
+            r.reqUri = "/index" + i + ".html";
+            ProxyRequest request = createMockRequestHandler(r);
+            long startts = System.currentTimeMillis();
+            reqLogger.logRequest(request);
+            // the third one waits for a free slot and then it is discarded
+            assertThat(System.currentTimeMillis() - startts >= 200, is(i == 3));
+        }
+
+        // all the queued entries are written at once
+        run(reqLogger);
+        reqLogger.flushAccessLogFile();
+        List<String> rows = readFile(accessLogFilePath);
+        assertThat(rows.size(), is(2));
+        assertThat(rows.get(0), is("/index1.html"));
+        assertThat(rows.get(1), is("/index2.html"));
+
+        // whether the queue is more than half full, only some entries are retained
+        RuntimeServerConfiguration c2 = genConf();
+        c2.setAccessLogFlushInterval(100);
+        c2.setAccessLogFormat("<uri>");
+        c2.setAccessLogMaxQueueCapacity(100);
+        c2.setAccessLogBackpressurePolicy("sample");
+        c2.setAccessLogBackpressureSampleRate(1_000_000);
+        reqLogger = new RequestsLogger(c2);
+        reqLogger.setBreakRunForTests(true);
+        for (int i = 0; i < 100; i++) {
+            r.reqUri = "/sampled" + i + ".html";
+            reqLogger.logRequest(createMockRequestHandler(r));
+        }
+        run(reqLogger);
+        reqLogger.flushAccessLogFile();
+        rows = readFile(accessLogFilePath);
+        assertThat(rows.size() >= 2 + 50 && rows.size() < 2 + 100, is(true));
+    }
+
+    @Test
+    public void testTimeBasedRotationAndRetention() throws Exception {
+        RuntimeServerConfiguration c = genConf();
+        c.setAccessLogFormat("<uri>");
+        c.setAccessLogRotationInterval(200);
+        c.setAccessLogRetentionMaxFiles(1);
+
+        RequestsLogger reqLogger = new RequestsLogger(c);
+        reqLogger.setBreakRunForTests(true);
+
+        MockProxyRequest r = new MockProxyRequest();
+        r.reqMethod = HttpMethod.GET;
+        r.reqHost = "thehost";
+        r.remoteIp = "123.123.123.123";
+        r.localIp = "234.234.234.234";
+        r.startTs = "2018-10-23 10:10:10.000";
+        r.backendStartTs = "2018-10-23 10:10:10.542";
+        r.endTs = "2018-10-23 10:10:11.012";
+        r.action = MapResult.builder()
+                .host("host")
+                .port(1111)
+                .action(MapResult.Action.PROXY)
+                .routeId("routeid_1")
+                .build();
+        for (int i = 1; i <= 3; i++) {
+            r.reqUri = "/index" + i + ".html";
+            reqLogger.logRequest(createMockRequestHandler(r));
+            run(reqLogger);
+            reqLogger.flushAccessLogFile();
+            Thread.sleep(250);
+            reqLogger.rotateAccessLogFile();
+            assertFalse(new File(accessLogFilePath).exists());
+        }
+
+        // only the last rotated file is kept
+        File dir = tmpDir.getRoot();
+        TestUtils.waitForCondition(() -> {
+            String[] rotated = dir.list((d, name) -> name.startsWith("access.log-"));
+            return rotated.length == 1 && rotated[0].endsWith(".gzip");
+        }, 100);
+        File[] rotated = dir.listFiles((d, name) -> name.startsWith("access.log-"));
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(rotated[0])), StandardCharsets.UTF_8))) {
+            assertThat(reader.readLine(), is("/index3.html"));
+        }
+    }
+
     @Test
     public void testWithServer() throws Exception {
 
@@ -519,8 +792,11 @@ public class RequestsLoggerTest {
 
         try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
             server.getCurrentConfiguration().setAccessLogPath(tmpDir.getRoot().getAbsolutePath() + "/access.log");
+            server.getCurrentConfiguration().setAccessLogAdvancedPath(tmpDir.getRoot().getAbsolutePath() + "/access.advanced.log");
             server.start();
             int port = server.getLocalPort();
+            // advanced access log disabled by default
+            assertTrue(server.getAdvancedRequestsLogger() == null);
 
             try (RawHttpClient client = new RawHttpClient("localhost", port)) {
                 RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
@@ -547,6 +823,7 @@ public class RequestsLoggerTest {
         }
 
         readFile(accessLogFilePath);
+        assertFalse(new File(tmpDir.getRoot(), "access.advanced.log").exists());
     }
 
     @Test
@@ -0,0 +1,154 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.carapaceproxy.cluster.impl.ZooKeeperGroupMembershipHandler;
+import org.carapaceproxy.core.RuntimeServerConfiguration;
+import org.carapaceproxy.server.cache.CacheInvalidator.Invalidation;
+import org.carapaceproxy.utils.TestUtils;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CacheInvalidatorTest {
+
+    private static final String QUEUE_PATH = "/proxy/queues/" + CacheInvalidator.QUEUE_CACHE_INVALIDATION;
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private static ZooKeeperGroupMembershipHandler peer(TestingServer zk, String peerId) {
+        return new ZooKeeperGroupMembershipHandler(zk.getConnectString(), 6000, false /*acl */, peerId, Collections.EMPTY_MAP, new Properties());
+    }
+
+    private static Map<String, Object> batch(String origin, long epoch, long sequence) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("origin", origin);
+        data.put("epoch", epoch);
+        data.put("sequence", sequence);
+        data.put("invalidations", Collections.emptyList());
+        return data;
+    }
+
+    @Test
+    public void testBurstsOfBatches() throws Exception {
+        RuntimeServerConfiguration configuration = new RuntimeServerConfiguration();
+        ContentsCache cache = new ContentsCache(configuration);
+        CacheInvalidator invalidator = new CacheInvalidator(cache, configuration);
+        try (TestingServer testingServer = new TestingServer(2229, tmpDir.newFolder())) {
+            testingServer.start();
+            try (ZooKeeperGroupMembershipHandler peer1 = peer(testingServer, "p1");
+                    ZooKeeperGroupMembershipHandler peer2 = peer(testingServer, "p2");
+                    ZooKeeperGroupMembershipHandler peer3 = peer(testingServer, "p3")) {
+                peer1.start();
+                peer2.start();
+                peer3.start();
+                invalidator.start(peer1);
+
+                // batches of the same origin and of different origins in quick succession are never lost
+                double gaps = CacheInvalidator.GAPS_COUNTER.get();
+                for (int i = 1; i <= 100; i++) {
+                    peer2.publishMessage(CacheInvalidator.QUEUE_CACHE_INVALIDATION, batch("p2", 1, i));
+                    peer3.publishMessage(CacheInvalidator.QUEUE_CACHE_INVALIDATION, batch("p3", 1, i));
+                }
+                TestUtils.waitForCondition(() -> {
+                    Map<String, String> info = peer1.loadInfoForPeer("p1");
+                    return "1:100".equals(info.get(CacheInvalidator.PEER_INFO_ACK_PREFIX + "p2"))
+                            && "1:100".equals(info.get(CacheInvalidator.PEER_INFO_ACK_PREFIX + "p3"));
+                }, 100);
+                assertThat(CacheInvalidator.GAPS_COUNTER.get(), is(gaps));
+            } finally {
+                invalidator.stop();
+                cache.close();
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidationsAndAcks() throws Exception {
+        RuntimeServerConfiguration configuration = new RuntimeServerConfiguration();
+        configuration.setCacheInvalidationAckTimeout(2_000);
+        ContentsCache cache1 = new ContentsCache(configuration);
+        ContentsCache cache2 = new ContentsCache(configuration);
+        CacheInvalidator invalidator1 = new CacheInvalidator(cache1, configuration);
+        CacheInvalidator invalidator2 = new CacheInvalidator(cache2, configuration);
+        try (TestingServer testingServer = new TestingServer(2229, tmpDir.newFolder())) {
+            testingServer.start();
+            try (ZooKeeperGroupMembershipHandler peer1 = peer(testingServer, "p1");
+                    ZooKeeperGroupMembershipHandler peer2 = peer(testingServer, "p2")) {
+                peer1.start();
+                peer2.start();
+                invalidator1.start(peer1);
+                invalidator2.start(peer2);
+
+                Map<String, Object> res = invalidator1.invalidate(Invalidation.tag("product-1"));
+                assertThat(res.get("purged"), is(0));
+                assertThat(res.get("peers"), is(Collections.singletonMap("p2", CacheInvalidator.ACK_OK)));
+                res = invalidator2.invalidate(Invalidation.flush());
+                assertThat(res.get("peers"), is(Collections.singletonMap("p1", CacheInvalidator.ACK_OK)));
+
+                // the acks of the peers are kept apart
+                res = invalidator1.invalidate(Invalidation.prefix("localhost", "/index"));
+                assertThat(res.get("peers"), is(Collections.singletonMap("p2", CacheInvalidator.ACK_OK)));
+                String ack = peer2.loadInfoForPeer("p2").get(CacheInvalidator.PEER_INFO_ACK_PREFIX + "p1");
+                assertThat(ack.endsWith(":2"), is(true));
+
+                // batches acknowledged by all the peers are deleted
+                try (CuratorFramework zk = CuratorFrameworkFactory.newClient(testingServer.getConnectString(), new RetryOneTime(100))) {
+                    zk.start();
+                    TestUtils.waitForCondition(() -> zk.getChildren().forPath(QUEUE_PATH).isEmpty(), 30);
+                }
+
+                // a peer without invalidator never acknowledges
+                try (ZooKeeperGroupMembershipHandler peer3 = peer(testingServer, "p3")) {
+                    peer3.start();
+                    res = invalidator1.invalidate(Invalidation.host("localhost"));
+                    Map<String, String> acks = (Map<String, String>) res.get("peers");
+                    assertThat(acks.get("p2"), is(CacheInvalidator.ACK_OK));
+                    assertThat(acks.get("p3"), is(CacheInvalidator.ACK_TIMEOUT));
+
+                    // missing batches of a peer lead to a flush
+                    double gaps = CacheInvalidator.GAPS_COUNTER.get();
+                    peer3.publishMessage(CacheInvalidator.QUEUE_CACHE_INVALIDATION, batch("p3", 1, 1));
+                    TestUtils.waitForCondition(() -> "1:1".equals(peer2.loadInfoForPeer("p2").get(CacheInvalidator.PEER_INFO_ACK_PREFIX + "p3")), 100);
+                    assertThat(CacheInvalidator.GAPS_COUNTER.get(), is(gaps));
+                    peer3.publishMessage(CacheInvalidator.QUEUE_CACHE_INVALIDATION, batch("p3", 1, 3));
+                    TestUtils.waitForCondition(() -> "1:3".equals(peer2.loadInfoForPeer("p2").get(CacheInvalidator.PEER_INFO_ACK_PREFIX + "p3")), 100);
+                    assertThat(CacheInvalidator.GAPS_COUNTER.get() > gaps, is(true));
+                }
+            } finally {
+                invalidator1.stop();
+                invalidator2.stop();
+                cache1.close();
+                cache2.close();
+            }
+        }
+    }
+}
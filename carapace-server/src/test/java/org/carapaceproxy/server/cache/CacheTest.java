@@ -20,19 +20,28 @@
 package org.carapaceproxy.server.cache;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
 import static org.carapaceproxy.server.cache.ContentsCache.CACHE_CONTROL_CACHE_DISABLED_VALUES;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.carapaceproxy.EndpointStats;
 import org.carapaceproxy.client.EndpointKey;
 import org.carapaceproxy.core.HttpProxyServer;
 import org.carapaceproxy.server.config.NetworkListenerConfiguration;
 import org.carapaceproxy.server.config.SSLCertificateConfiguration;
 import static org.carapaceproxy.server.config.SSLCertificateConfiguration.CertificateMode.STATIC;
+import org.carapaceproxy.utils.HttpUtils;
 import org.carapaceproxy.utils.RawHttpClient;
 import org.carapaceproxy.utils.TestEndpointMapper;
 import org.carapaceproxy.utils.TestUtils;
@@ -130,6 +139,557 @@ public class CacheTest {
         }
     }
 
+    @Test
+    public void testCollapsedForwarding() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Content-Length", "it <b>works</b> !!".length() + "")
+                        .withBody("it <b>works</b> !!")
+                        .withFixedDelay(1_000)));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            ExecutorService threadPool = Executors.newFixedThreadPool(5);
+            try {
+                List<Future<String>> responses = new ArrayList<>();
+                for (int i = 0; i < 5; i++) {
+                    responses.add(threadPool.submit(() -> {
+                        try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                            return client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").toString();
+                        }
+                    }));
+                }
+                for (Future<String> response : responses) {
+                    assertTrue(response.get().contains("it <b>works</b> !!"));
+                }
+            } finally {
+                threadPool.shutdown();
+            }
+
+            // a single request to the backend, the other ones served by the cache as soon as it completed
+            verify(1, getRequestedFor(urlEqualTo("/index.html")));
+            assertEquals(1, server.getCache().getCacheSize());
+            assertEquals(0, server.getCache().getInFlightRequestsCount());
+        }
+    }
+
+    @Test
+    public void testCollapsedForwardingLeaderCancelled() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withBody("it <b>works</b> !!")
+                        .withFixedDelay(10_000)));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            // the client of the request fetching the content goes away before the backend responds
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                client.sendRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                TestUtils.waitForCondition(() -> server.getCache().getInFlightRequestsCount() == 1, 10);
+            }
+            TestUtils.waitForCondition(() -> server.getCache().getInFlightRequestsCount() == 0, 5);
+
+            // next requests do not wait for it
+            stubFor(get(urlEqualTo("/index.html"))
+                    .willReturn(aResponse()
+                            .withStatus(200)
+                            .withHeader("Content-Type", "text/html")
+                            .withBody("it <b>works</b> !!")));
+            long start = System.currentTimeMillis();
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.toString().contains("it <b>works</b> !!"));
+            }
+            assertTrue(System.currentTimeMillis() - start < server.getCurrentConfiguration().getCacheCollapsedForwardingTimeout());
+            assertEquals(0, server.getCache().getInFlightRequestsCount());
+        }
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Cache-Control", "stale-while-revalidate=60")
+                        .withHeader("Expires", HttpUtils.formatDateHeader(new java.util.Date(System.currentTimeMillis() + 2_000)))
+                        .withBody("version 1")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.toString().contains("version 1"));
+            }
+            Thread.sleep(3_000); // expired
+
+            stubFor(get(urlEqualTo("/index.html"))
+                    .willReturn(aResponse()
+                            .withStatus(200)
+                            .withHeader("Content-Type", "text/html")
+                            .withBody("version 2")));
+
+            // stale content served while refreshed in background
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.toString().contains("version 1"));
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.contains("Response is Stale")));
+            }
+            TestUtils.waitForCondition(() -> wireMockRule.findAll(getRequestedFor(urlEqualTo("/index.html"))).size() == 2
+                    && server.getCache().getInFlightRequestsCount() == 0, 10);
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.toString().contains("version 2"));
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached")));
+                assertFalse(resp.getHeaderLines().stream().anyMatch(h -> h.contains("Response is Stale")));
+            }
+            verify(2, getRequestedFor(urlEqualTo("/index.html")));
+        }
+    }
+
+    @Test
+    public void testRefreshedContentOutlivesStaleDeadline() throws Exception {
+
+        long start = System.currentTimeMillis();
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Cache-Control", "stale-while-revalidate=3")
+                        .withHeader("Expires", HttpUtils.formatDateHeader(new java.util.Date(start + 2_000)))
+                        .withBody("version 1")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.toString().contains("version 1"));
+            }
+            Thread.sleep(3_000); // expired, servable stale up to 5 seconds from the start
+
+            stubFor(get(urlEqualTo("/index.html"))
+                    .willReturn(aResponse()
+                            .withStatus(200)
+                            .withHeader("Content-Type", "text/html")
+                            .withHeader("Expires", HttpUtils.formatDateHeader(new java.util.Date(System.currentTimeMillis() + 60_000)))
+                            .withBody("version 2")));
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.toString().contains("version 1"));
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.contains("Response is Stale")));
+            }
+            TestUtils.waitForCondition(() -> wireMockRule.findAll(getRequestedFor(urlEqualTo("/index.html"))).size() == 2
+                    && server.getCache().getInFlightRequestsCount() == 0, 10);
+
+            // past the deadline of the stale content: the refreshed one has to be still in cache
+            Thread.sleep(Math.max(0, start + 7_000 - System.currentTimeMillis()));
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.toString().contains("version 2"));
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached")));
+            }
+            verify(2, getRequestedFor(urlEqualTo("/index.html")));
+        }
+    }
+
+    @Test
+    public void testStaleIfError() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Expires", HttpUtils.formatDateHeader(new java.util.Date(System.currentTimeMillis() + 2_000)))
+                        .withBody("version 1")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            // default for contents without the directive
+            RuntimeServerConfiguration currentConfiguration = server.getCurrentConfiguration();
+            currentConfiguration.setCacheStaleIfError(60_000);
+            server.getCache().reloadConfiguration(currentConfiguration);
+            server.start();
+            int port = server.getLocalPort();
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.toString().contains("version 1"));
+            }
+            Thread.sleep(3_000); // expired
+
+            stubFor(get(urlEqualTo("/index.html"))
+                    .willReturn(aResponse()
+                            .withStatus(500)
+                            .withBody("error")));
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.toString().contains("version 1"));
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.contains("Response is Stale")));
+            }
+            verify(2, getRequestedFor(urlEqualTo("/index.html")));
+
+            // backend back
+            stubFor(get(urlEqualTo("/index.html"))
+                    .willReturn(aResponse()
+                            .withStatus(200)
+                            .withHeader("Content-Type", "text/html")
+                            .withBody("version 2")));
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.toString().contains("version 2"));
+                assertFalse(resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached")));
+            }
+        }
+    }
+
+    @Test
+    public void testConditionalRevalidation() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("ETag", "\"v1\"")
+                        .withHeader("Expires", HttpUtils.formatDateHeader(new java.util.Date(System.currentTimeMillis() + 2_000)))
+                        .withBody("version 1")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.toString().contains("version 1"));
+            }
+            Thread.sleep(3_000); // expired
+            long expiredTs = (Long) server.getCache().inspectCache().get(0).get("expiresTs");
+
+            stubFor(get(urlEqualTo("/index.html"))
+                    .withHeader("If-None-Match", equalTo("\"v1\""))
+                    .willReturn(aResponse()
+                            .withStatus(304)
+                            .withHeader("ETag", "\"v1\"")
+                            .withHeader("Expires", HttpUtils.formatDateHeader(new java.util.Date(System.currentTimeMillis() + 60_000)))));
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.toString().contains("200 OK"));
+                assertTrue(resp.toString().contains("version 1"));
+                assertFalse(resp.getHeaderLines().stream().anyMatch(h -> h.contains("Response is Stale")));
+            }
+            verify(1, getRequestedFor(urlEqualTo("/index.html")).withHeader("If-None-Match", equalTo("\"v1\"")));
+
+            // refreshed: served from cache with no more requests to the backend
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.toString().contains("version 1"));
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached")));
+            }
+            verify(2, getRequestedFor(urlEqualTo("/index.html")));
+            // the expired content has been replaced by a new one, released in background
+            TestUtils.waitForCondition(() -> server.getCache().getCacheSize() == 1, 10);
+            List<Map<String, Object>> entries = server.getCache().inspectCache();
+            assertThat(entries.size(), is(1));
+            assertTrue((Long) entries.get(0).get("expiresTs") > expiredTs);
+        }
+    }
+
+    @Test
+    public void testVariants() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Vary", "Accept-Language")
+                        .withBody("en")));
+        stubFor(get(urlEqualTo("/index.html"))
+                .withHeader("Accept-Language", equalTo("it"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Vary", "Accept-Language")
+                        .withBody("it")));
+        stubFor(get(urlEqualTo("/index.html"))
+                .withHeader("Accept-Language", equalTo("fr"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Vary", "Accept-Language")
+                        .withBody("fr")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            RuntimeServerConfiguration currentConfiguration = server.getCurrentConfiguration();
+            currentConfiguration.setCacheMaxVariants(2);
+            server.getCache().reloadConfiguration(currentConfiguration);
+            server.start();
+            int port = server.getLocalPort();
+
+            for (int i = 0; i < 2; i++) {
+                try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                    RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                    assertTrue(resp.getBodyString().equals("en"));
+                }
+                try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                    RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nAccept-Language: it\r\nConnection: close\r\n\r\n");
+                    assertTrue(resp.getBodyString().equals("it"));
+                }
+            }
+            // one request to the backend per variant
+            verify(2, getRequestedFor(urlEqualTo("/index.html")));
+            assertThat(server.getCache().getCacheSize(), is(2));
+
+            // over the maximum number of variants: the oldest one is evicted
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nAccept-Language: fr\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.getBodyString().equals("fr"));
+            }
+            TestUtils.waitForCondition(() -> server.getCache().getCacheSize() == 2, 10);
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.getBodyString().equals("en"));
+                assertFalse(resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached")));
+            }
+            verify(4, getRequestedFor(urlEqualTo("/index.html")));
+        }
+
+        assertEquals("br,gzip", ContentsCache.normaliseVariantValue("accept-encoding", Arrays.asList("gzip, br;q=0.5, deflate;q=0")));
+        assertEquals("br,gzip", ContentsCache.normaliseVariantValue("accept-encoding", Arrays.asList("br", "GZIP")));
+        assertEquals("en-us,en;q=0.9", ContentsCache.normaliseVariantValue("accept-language", Arrays.asList("en-US, en;q=0.9")));
+    }
+
+    @Test
+    public void testVariantsAfterWarmRestart() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Vary", "Accept-Language")
+                        .withBody("en")));
+        stubFor(get(urlEqualTo("/index.html"))
+                .withHeader("Accept-Language", equalTo("it"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Vary", "Accept-Language")
+                        .withBody("it")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+        String diskPath = tmpDir.newFolder().getAbsolutePath();
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            RuntimeServerConfiguration currentConfiguration = server.getCurrentConfiguration();
+            currentConfiguration.setCacheDiskMaxSize(1024 * 1024);
+            currentConfiguration.setCacheDiskPath(diskPath);
+            server.getCache().reloadConfiguration(currentConfiguration);
+            server.start();
+            int port = server.getLocalPort();
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.getBodyString().equals("en"));
+            }
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nAccept-Language: it\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.getBodyString().equals("it"));
+            }
+            verify(2, getRequestedFor(urlEqualTo("/index.html")));
+        }
+
+        // variants are still served from the cache after the restart
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            RuntimeServerConfiguration currentConfiguration = server.getCurrentConfiguration();
+            currentConfiguration.setCacheDiskMaxSize(1024 * 1024);
+            currentConfiguration.setCacheDiskPath(diskPath);
+            server.getCache().reloadConfiguration(currentConfiguration);
+            server.start();
+            int port = server.getLocalPort();
+            TestUtils.waitForCondition(() -> server.getCache().getDiskCacheSize() == 2, 10);
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nAccept-Language: it\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.getBodyString().equals("it"));
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached")));
+            }
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.getBodyString().equals("en"));
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached")));
+            }
+            verify(2, getRequestedFor(urlEqualTo("/index.html")));
+        }
+    }
+
+    @Test
+    public void testRangeRequests() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/plain")
+                        .withBody("0123456789")));
+        stubFor(get(urlEqualTo("/video.mp4"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "video/mp4")
+                        .withBody("0123456789")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            RuntimeServerConfiguration currentConfiguration = server.getCurrentConfiguration();
+            currentConfiguration.setCacheRangeBackgroundFill(true);
+            server.getCache().reloadConfiguration(currentConfiguration);
+            server.start();
+            int port = server.getLocalPort();
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertEquals("0123456789", resp.getBodyString());
+            }
+
+            // single range
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nRange: bytes=2-4\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.getStatusLine().contains("206"));
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.contains("bytes 2-4/10")));
+                assertEquals("234", resp.getBodyString());
+            }
+            // multiple ranges
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nRange: bytes=0-1,-2\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.getStatusLine().contains("206"));
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.contains("multipart/byteranges")));
+                String body = resp.getBodyString();
+                assertTrue(body.contains("Content-Range: bytes 0-1/10\r\n\r\n01\r\n"));
+                assertTrue(body.contains("Content-Range: bytes 8-9/10\r\n\r\n89\r\n"));
+            }
+            // not satisfiable
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nRange: bytes=20-\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.getStatusLine().contains("416"));
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.contains("bytes */10")));
+            }
+            // If-Range not matching: the whole content
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nRange: bytes=2-4\r\nIf-Range: \"other\"\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.getStatusLine().contains("200"));
+                assertEquals("0123456789", resp.getBodyString());
+            }
+            verify(1, getRequestedFor(urlEqualTo("/index.html")));
+
+            // range miss: forwarded, and the whole content is fetched in background
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /video.mp4 HTTP/1.1\r\nHost: localhost\r\nRange: bytes=2-4\r\nConnection: close\r\n\r\n");
+                assertFalse(resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached")));
+            }
+            TestUtils.waitForCondition(() -> server.getCache().getCacheSize() == 2, 10);
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /video.mp4 HTTP/1.1\r\nHost: localhost\r\nRange: bytes=2-4\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.getStatusLine().contains("206"));
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached")));
+                assertEquals("234", resp.getBodyString());
+            }
+            verify(2, getRequestedFor(urlEqualTo("/video.mp4")));
+        }
+    }
+
+    @Test
+    public void testPurge() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Surrogate-Key", "home product-1")
+                        .withBody("index")));
+        stubFor(get(urlEqualTo("/static/app.js"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/javascript")
+                        .withBody("app")));
+        stubFor(get(urlEqualTo("/static/app.css"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/css")
+                        .withHeader("Cache-Tag", "product-1, style")
+                        .withBody("css")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+            ContentsCache cache = server.getCache();
+
+            String[] hosts = {"localhost", "other"};
+            String[] uris = {"/index.html", "/static/app.js", "/static/app.css"};
+            Runnable load = () -> {
+                for (String host : hosts) {
+                    for (String uri : uris) {
+                        try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                            client.executeRequest("GET " + uri + " HTTP/1.1\r\nHost: " + host + "\r\nConnection: close\r\n\r\n");
+                        } catch (Exception err) {
+                            throw new RuntimeException(err);
+                        }
+                    }
+                }
+            };
+            load.run();
+            TestUtils.waitForCondition(() -> cache.getCacheSize() == 6, 10);
+
+            assertEquals(2, cache.purgePrefix("localhost", "/static/"));
+            TestUtils.waitForCondition(() -> cache.getCacheSize() == 4, 10);
+            assertEquals(0, cache.purgePrefix("localhost", "/static/"));
+
+            assertEquals(3, cache.purgeTag("product-1"));
+            TestUtils.waitForCondition(() -> cache.getCacheSize() == 1, 10);
+            assertEquals(0, cache.purgeTag("home"));
+
+            assertEquals(1, cache.purgeHost("other"));
+            TestUtils.waitForCondition(() -> cache.getCacheSize() == 0, 10);
+
+            load.run();
+            TestUtils.waitForCondition(() -> cache.getCacheSize() == 6, 10);
+            assertEquals(4, cache.purgePrefix(null, "/static/app"));
+            TestUtils.waitForCondition(() -> cache.getCacheSize() == 2, 10);
+            assertEquals(1, cache.purgeHost("localhost"));
+            TestUtils.waitForCondition(() -> cache.getCacheSize() == 1, 10);
+        }
+    }
+
     @Test
     public void testNotServeFromCacheIfCachableButClientsDisablesCache() throws Exception {
 
@@ -20,6 +20,8 @@
 package org.carapaceproxy.server.cache;
 
 import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.netty.buffer.ByteBuf;
+import java.nio.charset.StandardCharsets;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.List;
@@ -100,7 +102,7 @@ public class CaffeineCacheImplTest {
             } else {
                 this.key = key;
                 this.payload = new CachedContent();
-                this.payload.chunks.addAll(payload.chunks);
+                this.payload.content = payload.content;
                 TestUtils.setFinalField(this.payload, "creationTs", payload.creationTs);
                 this.payload.directSize = payload.directSize;
                 this.payload.expiresTs = payload.expiresTs;
@@ -151,8 +153,6 @@ public class CaffeineCacheImplTest {
     private static CacheEntry genCacheEntry(String resource, int payloadLength, long expireTs) {
         ContentKey key = new ContentKey("", "", resource);
         CachedContent payload = new CachedContent();
-        payload.chunks.add(Unpooled.EMPTY_BUFFER);
-        payload.chunks.add(Unpooled.EMPTY_BUFFER);
         payload.directSize = payloadLength / 2;
         payload.heapSize = payloadLength - payload.directSize;
         if (expireTs > 0) {
@@ -379,4 +379,39 @@ public class CaffeineCacheImplTest {
 
     }
 
+    @Test
+    public void testExactContentSize() throws Exception {
+        CachedContent payload = new CachedContent();
+        payload.content = Unpooled.directBuffer(1024);
+        payload.content.writeBytes(new byte[100]);
+        payload.seal();
+
+        assertThat(payload.content.capacity(), is(100));
+        assertThat(payload.directSize, is(100L));
+        assertThat(payload.heapSize, is(0L));
+        payload.clear();
+    }
+
+    @Test
+    public void testRetainedContentAfterEviction() throws Exception {
+        initializeCache(0);
+
+        ContentKey key = new ContentKey("GET", "localhost", "/index.html");
+        CachedContent payload = new CachedContent();
+        payload.content = Unpooled.copiedBuffer("it works", StandardCharsets.UTF_8);
+        payload.seal();
+        payload.expiresTs = System.currentTimeMillis() + 60 * 60 * 1000;
+        cache.put(key, payload);
+
+        // served while evicted
+        ByteBuf content = cache.get(key).retainContent();
+        cache.remove(key);
+        runEviction(cache, 1);
+        assertThat(payload.retainContent(), is(nullValue()));
+
+        assertTrue(content.isReadOnly());
+        assertThat(content.toString(StandardCharsets.UTF_8), is("it works"));
+        assertTrue(content.release()); // last reference
+    }
+
 }
@@ -0,0 +1,207 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import org.carapaceproxy.server.cache.ContentsCache.CachedContent;
+import org.carapaceproxy.server.cache.ContentsCache.ContentKey;
+import org.carapaceproxy.utils.TestUtils;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DiskCacheImplTest {
+
+    private static final Logger LOG = Logger.getLogger(DiskCacheImplTest.class.getName());
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private DiskCacheImpl cache;
+
+    @After
+    public void afterEach() {
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+    private static CachedContent genContent(String body, long expiresTs) {
+        CachedContent payload = new CachedContent();
+        payload.status = HttpResponseStatus.OK;
+        payload.headers = new DefaultHttpHeaders().add(HttpHeaderNames.CONTENT_TYPE, "text/plain");
+        payload.expiresTs = expiresTs;
+        payload.content = Unpooled.directBuffer().writeBytes(body.getBytes(StandardCharsets.UTF_8));
+        payload.seal();
+        return payload;
+    }
+
+    private static String read(ByteBuf content) {
+        return content.toString(StandardCharsets.UTF_8);
+    }
+
+    private int countFiles(File dir) {
+        return dir.list((d, name) -> name.endsWith(DiskCacheImpl.FILE_SUFFIX)).length;
+    }
+
+    @Test
+    public void testDemotionAndReads() throws Exception {
+        File dir = tmpDir.newFolder();
+        cache = new DiskCacheImpl(dir.toPath(), 1024 * 1024, 2, LOG);
+
+        ContentKey key = new ContentKey("GET", "localhost", "/index.html");
+        CachedContent payload = genContent("it works !!", System.currentTimeMillis() + 60_000);
+        cache.demote(key, payload);
+        payload.clear(); // evicted from memory, the disk write has a view of its own
+
+        TestUtils.waitForCondition(() -> cache.getSize() == 1, 10);
+        assertThat(countFiles(dir), is(1));
+
+        CachedContent cached = cache.get(key);
+        assertThat(cached, is(notNullValue()));
+        assertThat(cached.status, is(HttpResponseStatus.OK));
+        assertThat(cached.headers.get(HttpHeaderNames.CONTENT_TYPE), is("text/plain"));
+        assertThat(cached.creationTs, is(payload.creationTs));
+        assertThat(cached.directSize, is(0L)); // the index holds no body
+        ByteBuf content = cached.retainContent();
+        assertThat(content.isDirect(), is(true));
+        assertThat(read(content), is("it works !!"));
+        assertThat(cache.getMemSize() > content.readableBytes(), is(true));
+        // each hit reads its own copy
+        ByteBuf other = cached.retainContent();
+        assertThat(other == content, is(false));
+        assertThat(read(other), is("it works !!"));
+        other.release();
+        assertThat(other.refCnt(), is(0));
+
+        // bodies already read survive the removal of the content
+        cache.remove(key);
+        cache.evict();
+        assertThat(cache.get(key), is(nullValue()));
+        TestUtils.waitForCondition(() -> cached.retainContent() == null, 10);
+        assertThat(read(content), is("it works !!"));
+        content.release();
+        TestUtils.waitForCondition(() -> countFiles(dir) == 0, 10);
+        assertThat(cache.getSize(), is(0));
+        assertThat(cache.getMemSize(), is(0L));
+    }
+
+    @Test
+    public void testMaxSizeAndExpiration() throws Exception {
+        File dir = tmpDir.newFolder();
+        cache = new DiskCacheImpl(dir.toPath(), 1024, 2, LOG);
+
+        ContentKey expired = new ContentKey("GET", "localhost", "/expired");
+        cache.demote(expired, genContent("expired", System.currentTimeMillis() - 1_000));
+        ContentKey huge = new ContentKey("GET", "localhost", "/huge");
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 2048; i++) {
+            body.append('a');
+        }
+        cache.put(huge, genContent(body.toString(), System.currentTimeMillis() + 60_000));
+        cache.evict();
+
+        assertThat(cache.get(expired), is(nullValue()));
+        assertThat(cache.get(huge), is(nullValue()));
+        TestUtils.waitForCondition(() -> countFiles(dir) == 0, 10);
+    }
+
+    @Test
+    public void testPromotion() throws Exception {
+        File dir = tmpDir.newFolder();
+        cache = new DiskCacheImpl(dir.toPath(), 1024 * 1024, 2, LOG);
+
+        ContentKey key = new ContentKey("GET", "localhost", "/index.html");
+        cache.put(key, genContent("it works !!", System.currentTimeMillis() + 60_000));
+
+        Map<ContentKey, CachedContent> memory = new ConcurrentHashMap<>();
+        CachedContent cached = cache.get(key);
+        cache.promoteIfNeeded(key, cached, memory::put);
+        Thread.sleep(500);
+        assertThat(memory.isEmpty(), is(true));
+
+        cached = cache.get(key);
+        cache.promoteIfNeeded(key, cached, memory::put);
+        TestUtils.waitForCondition(() -> memory.containsKey(key), 10);
+
+        CachedContent promoted = memory.get(key);
+        assertThat(promoted.creationTs, is(cached.creationTs));
+        assertThat(promoted.hits, is(0));
+        ByteBuf content = promoted.retainContent();
+        assertThat(read(content), is("it works !!"));
+        content.release();
+        promoted.clear();
+
+        // the disk copy is kept
+        assertThat(cache.get(key), is(notNullValue()));
+    }
+
+    @Test
+    public void testWarmRestart() throws Exception {
+        File dir = tmpDir.newFolder();
+        assertThat(new File(dir, "orphan" + DiskCacheImpl.FILE_SUFFIX).createNewFile(), is(true));
+        cache = new DiskCacheImpl(dir.toPath(), 1024 * 1024, 2, LOG);
+
+        ContentKey key = new ContentKey("GET", "localhost", "/index.html");
+        cache.put(key, genContent("it works !!", System.currentTimeMillis() + 60_000));
+        ContentKey expiring = new ContentKey("GET", null, "/expiring.html");
+        cache.put(expiring, genContent("expiring", System.currentTimeMillis() + 1_000));
+        CachedContent before = cache.get(key);
+        cache.close(true);
+        assertThat(new File(dir, DiskCacheImpl.INDEX_FILE).isFile(), is(true));
+        Thread.sleep(1_500);
+
+        cache = new DiskCacheImpl(dir.toPath(), 1024 * 1024, 2, LOG);
+        cache.start(true);
+        TestUtils.waitForCondition(() -> cache.getSize() == 1 && countFiles(dir) == 1, 10);
+        assertThat(new File(dir, DiskCacheImpl.INDEX_FILE).exists(), is(false));
+
+        assertThat(cache.get(expiring), is(nullValue()));
+        CachedContent cached = cache.get(key);
+        assertThat(cached, is(notNullValue()));
+        assertThat(cached.creationTs, is(before.creationTs));
+        assertThat(cached.expiresTs, is(before.expiresTs));
+        assertThat(cached.headers.get(HttpHeaderNames.CONTENT_TYPE), is("text/plain"));
+        ByteBuf content = cached.retainContent();
+        assertThat(read(content), is("it works !!"));
+        content.release();
+
+        // a cold start wipes the directory
+        cache.close(false);
+        cache = new DiskCacheImpl(dir.toPath(), 1024 * 1024, 2, LOG);
+        cache.start(false);
+        TestUtils.waitForCondition(() -> countFiles(dir) == 0, 10);
+        assertThat(cache.getSize(), is(0));
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.mapper;
+
+import static org.carapaceproxy.core.ProxyRequest.PROPERTY_METHOD;
+import static org.carapaceproxy.core.ProxyRequest.PROPERTY_URI;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import org.carapaceproxy.server.config.RouteConfiguration;
+import org.carapaceproxy.server.mapper.requestmatcher.MatchingContext;
+import org.carapaceproxy.server.mapper.requestmatcher.parser.RequestMatchParser;
+import org.junit.Test;
+
+public class RouteIndexTest {
+
+    @Test
+    public void testLiteralPrefix() {
+        assertThat(RouteIndex.literalPrefix("/api/.*"), is("/api/"));
+        assertThat(RouteIndex.literalPrefix("^/api/v1/.*"), is("/api/v1/"));
+        assertThat(RouteIndex.literalPrefix("/index\\.html"), is("/index.html"));
+        assertThat(RouteIndex.literalPrefix("/apis?/.*"), is("/api"));
+        assertThat(RouteIndex.literalPrefix("/a{2}.*"), is("/"));
+        assertThat(RouteIndex.literalPrefix("/static/\\d+/.*"), is("/static/"));
+        assertThat(RouteIndex.literalPrefix("/(a|b)/.*"), is("/"));
+        assertThat(RouteIndex.literalPrefix(".*index.html.*"), is(""));
+        assertThat(RouteIndex.literalPrefix("/a/.*|/b/.*"), is(""));
+        assertThat(RouteIndex.literalPrefix("[/]a.*"), is(""));
+    }
+
+    @Test
+    public void testCandidatesKeepConfigurationOrder() throws Exception {
+        List<RouteConfiguration> routes = new ArrayList<>();
+        routes.add(route("host-a", "request.headers.host = \"a.example.com\""));
+        routes.add(route("api", "request.uri ~ \"/api/.*\""));
+        routes.add(route("secure", "secure"));
+        routes.add(route("post", "request.method = \"POST\""));
+        routes.add(route("host-b-api", "request.uri ~ \"/api/v2/.*\" and request.headers.host = \"b.example.com\""));
+        routes.add(route("host-a-or-b", "request.headers.host = \"a.example.com\" or request.headers.host = \"b.example.com\""));
+        routes.add(route("not-indexable-or", "request.headers.host = \"a.example.com\" or request.uri ~ \".*\\.css\""));
+        routes.add(new RouteConfiguration("disabled", "proxy-all", false, new RequestMatchParser("all").parse()));
+
+        RouteIndex index = new RouteIndex(routes);
+        assertThat(index.getRoutesCount(), is(7));
+        assertThat(index.getIndexedRoutesCount(), is(5));
+
+        assertThat(candidates(index, "a.example.com", "GET", "/index.html"),
+                is(Arrays.asList("host-a", "secure", "host-a-or-b", "not-indexable-or")));
+        assertThat(candidates(index, "b.example.com", "GET", "/api/v2/test"),
+                is(Arrays.asList("api", "secure", "host-b-api", "host-a-or-b", "not-indexable-or")));
+        assertThat(candidates(index, "c.example.com", "POST", "/api/v2/test"),
+                is(Arrays.asList("api", "secure", "post", "not-indexable-or")));
+        assertThat(candidates(index, "c.example.com", "GET", "/apis"),
+                is(Arrays.asList("secure", "not-indexable-or")));
+    }
+
+    private static RouteConfiguration route(String id, String match) throws Exception {
+        return new RouteConfiguration(id, "proxy-all", true, new RequestMatchParser(match).parse());
+    }
+
+    private static List<String> candidates(RouteIndex index, String host, String method, String uri) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(RouteIndex.PROPERTY_HOST, host);
+        properties.put(PROPERTY_METHOD, method);
+        properties.put(PROPERTY_URI, uri);
+        MatchingContext context = new MatchingContext() {
+            @Override
+            public String getProperty(String name) {
+                return properties.getOrDefault(name, "");
+            }
+
+            @Override
+            public boolean isSecure() {
+                return false;
+            }
+        };
+        return index.candidates(context).stream()
+                .mapToObj(position -> index.getRoute(position).getId())
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.mapper.requestmatcher;
+
+import static org.carapaceproxy.core.ProxyRequest.PROPERTY_CONTENT_TYPE;
+import static org.carapaceproxy.core.ProxyRequest.PROPERTY_METHOD;
+import static org.carapaceproxy.core.ProxyRequest.PROPERTY_URI;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.carapaceproxy.server.mapper.requestmatcher.parser.RequestMatchParser;
+import org.junit.Test;
+
+public class RequestMatcherCompilerTest {
+
+    private static final List<String> EXPRESSIONS = Arrays.asList(
+            "all",
+            "secure",
+            "not secure",
+            "request.uri ~ \".*test.*\"",
+            "request.method = \"POST\"",
+            "request.headers.host = \"a.example.com\"",
+            "request.uri ~ \"/api/.*\" and request.method = \"GET\"",
+            "request.uri ~ \"/api/.*\" or request.headers.host = \"a.example.com\" or secure",
+            "not (request.method = \"GET\" or request.method = \"HEAD\") and request.uri ~ \"/api/.*\"",
+            "request.uri ~ \".*\\.css\" and (secure or request.content-type = \"text/css\")",
+            "(request.method = \"GET\" and not secure) or (request.method = \"POST\" and secure)"
+    );
+
+    @Test
+    public void testSameResultsAsInterpreted() throws Exception {
+        for (String expression : EXPRESSIONS) {
+            RequestMatcher interpreted = new RequestMatchParser(expression).parse();
+            CompiledRequestMatcher compiled = RequestMatcherCompiler.compile(interpreted);
+            assertSame(interpreted, compiled.getSource());
+            assertEquals(interpreted.getDescription(), compiled.getDescription());
+            for (String uri : Arrays.asList("/test.html", "/api/items", "/style.css")) {
+                for (String method : Arrays.asList("GET", "POST", "HEAD")) {
+                    for (String host : Arrays.asList("a.example.com", "b.example.com")) {
+                        for (boolean secure : new boolean[]{true, false}) {
+                            MatchingContext context = context(uri, method, host, secure);
+                            assertEquals(expression + " on " + uri + " " + method + " " + host + " secure=" + secure,
+                                    interpreted.matches(context), compiled.matches(context));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUnknownPropertyIsNotReordered() throws Exception {
+        RequestMatcher matcher = RequestMatcherCompiler.compile(
+                new RequestMatchParser("request.unknown ~ \".*\" and secure").parse()
+        );
+        try {
+            matcher.matches(context("/", "GET", "a.example.com", false));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static MatchingContext context(String uri, String method, String host, boolean secure) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(PROPERTY_URI, uri);
+        properties.put(PROPERTY_METHOD, method);
+        properties.put(PROPERTY_CONTENT_TYPE, uri.endsWith(".css") ? "text/css" : "text/html");
+        properties.put("request.headers.host", host);
+        return new MatchingContext() {
+            @Override
+            public String getProperty(String name) {
+                String value = properties.get(name);
+                if (value == null) {
+                    throw new IllegalArgumentException("Property name " + name + " does not exists.");
+                }
+                return value;
+            }
+
+            @Override
+            public boolean isSecure() {
+                return secure;
+            }
+        };
+    }
+}
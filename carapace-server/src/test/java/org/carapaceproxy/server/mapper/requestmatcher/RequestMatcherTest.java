@@ -33,6 +33,8 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import io.netty.handler.codec.http.DefaultHttpHeaders;
 import org.carapaceproxy.server.config.NetworkListenerConfiguration.HostPort;
@@ -303,4 +305,31 @@ public class RequestMatcherTest {
             assertFalse(matcher.matches(request));
         }
     }
+
+    @Test
+    public void testPropertiesResolvedOncePerRequest() throws Exception {
+        DefaultHttpHeaders headers = new DefaultHttpHeaders();
+        headers.add(HttpHeaders.USER_AGENT, "firefox");
+
+        HttpServerRequest serverRequest = mock(HttpServerRequest.class);
+        when(serverRequest.uri()).thenReturn("/test.html");
+        when(serverRequest.method()).thenReturn(HttpMethod.GET);
+        when(serverRequest.requestHeaders()).thenReturn(headers);
+
+        ProxyRequest request = new ProxyRequest(serverRequest, null, new HostPort("localhost", 8080));
+        RequestMatcher matcher = RequestMatcherCompiler.compile(new RequestMatchParser(
+                "request.headers.user-agent = \"firefox\" and request.method = \"GET\""
+        ).parse());
+        assertTrue(matcher.matches(request));
+        assertTrue(matcher.matches(request));
+        assertEquals("firefox", request.getProperty("request.headers.user-agent"));
+        verify(serverRequest, times(1)).requestHeaders();
+        verify(serverRequest, times(1)).method();
+
+        // headers changed by filters
+        headers.set(HttpHeaders.USER_AGENT, "chrome");
+        assertTrue(matcher.matches(request));
+        request.invalidateProperties();
+        assertFalse(matcher.matches(request));
+    }
 }
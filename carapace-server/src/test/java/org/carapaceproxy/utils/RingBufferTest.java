@@ -0,0 +1,126 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class RingBufferTest {
+
+    @Test
+    public void testOfferAndPoll() throws Exception {
+        RingBuffer<Integer> buffer = new RingBuffer<>(3);
+        assertThat(buffer.poll(), is(nullValue()));
+        for (int round = 0; round < 5; round++) {
+            assertThat(buffer.offer(1), is(true));
+            assertThat(buffer.offer(2), is(true));
+            assertThat(buffer.offer(3), is(true));
+            assertThat(buffer.offer(4), is(false));
+            assertThat(buffer.size(), is(3));
+            assertThat(buffer.poll(), is(1));
+            assertThat(buffer.offer(4), is(true));
+            assertThat(buffer.poll(), is(2));
+            assertThat(buffer.poll(), is(3));
+            assertThat(buffer.poll(), is(4));
+            assertThat(buffer.poll(), is(nullValue()));
+            assertThat(buffer.size(), is(0));
+        }
+
+        long start = System.currentTimeMillis();
+        assertThat(buffer.poll(100, TimeUnit.MILLISECONDS), is(nullValue()));
+        assertThat(System.currentTimeMillis() - start >= 100, is(true));
+
+        buffer.offer(1);
+        buffer.offer(2);
+        buffer.offer(3);
+        start = System.currentTimeMillis();
+        assertThat(buffer.offer(4, 100, TimeUnit.MILLISECONDS), is(false));
+        assertThat(System.currentTimeMillis() - start >= 100, is(true));
+    }
+
+    @Test
+    public void testMinimumCapacity() throws Exception {
+        RingBuffer<Integer> buffer = new RingBuffer<>(2);
+        for (int i = 0; i < 10; i += 2) {
+            assertThat(buffer.offer(i), is(true));
+            assertThat(buffer.offer(i + 1), is(true));
+            assertThat(buffer.offer(-1), is(false));
+            assertThat(buffer.poll(), is(i));
+            assertThat(buffer.poll(), is(i + 1));
+            assertThat(buffer.poll(), is(nullValue()));
+        }
+        // slots freed one at a time while wrapping around
+        assertThat(buffer.offer(1), is(true));
+        for (int i = 2; i < 10; i++) {
+            assertThat(buffer.offer(i), is(true));
+            assertThat(buffer.poll(), is(i - 1));
+        }
+        assertThat(buffer.poll(), is(9));
+        assertThat(buffer.poll(), is(nullValue()));
+
+        try {
+            new RingBuffer<>(1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final int producers = 4;
+        final int items = 10_000;
+        RingBuffer<Integer> buffer = new RingBuffer<>(100);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < items; i++) {
+                    while (!buffer.offer(producer * items + i, 1, TimeUnit.SECONDS)) {
+                        // retry
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        // items of each producer come in order
+        int[] last = new int[producers];
+        for (int p = 0; p < producers; p++) {
+            last[p] = -1;
+        }
+        for (int count = 0; count < producers * items; count++) {
+            Integer item = buffer.poll(10, TimeUnit.SECONDS);
+            int producer = item / items;
+            assertThat(item % items, is(last[producer] + 1));
+            last[producer] = item % items;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(buffer.poll(), is(nullValue()));
+    }
+}